@@ -0,0 +1,81 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an action on a given data type
+ */
+public class ActionMetrics {
+
+  private final String action;
+
+  private final String dataType;
+
+  /**
+   * Latency of each single call to Health Connect
+   */
+  final LatencyHistogram ipc = new LatencyHistogram();
+
+  /**
+   * Time spent building the result, from records to the message passed to the WebView
+   */
+  final LatencyHistogram serialization = new LatencyHistogram();
+
+  /**
+   * Time from the call to execute() to the result being sent
+   */
+  final LatencyHistogram total = new LatencyHistogram();
+
+  final LongAdder requests = new LongAdder();
+
+  final LongAdder errors = new LongAdder();
+
+  final LongAdder cancelled = new LongAdder();
+
+  /**
+   * Errors raised after the result had been sent, JS never sees them
+   */
+  final LongAdder lateErrors = new LongAdder();
+
+  final LongAdder records = new LongAdder();
+
+  final LongAdder resultChars = new LongAdder();
+
+  public ActionMetrics(String action, String dataType) {
+    this.action = action;
+    this.dataType = dataType;
+  }
+
+  public void reset() {
+    ipc.reset();
+    serialization.reset();
+    total.reset();
+    requests.reset();
+    errors.reset();
+    cancelled.reset();
+    lateErrors.reset();
+    records.reset();
+    resultChars.reset();
+  }
+
+  public JSONObject toJSON() throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("action", action);
+    obj.put("dataType", dataType);
+    obj.put("requests", requests.sum());
+    obj.put("errors", errors.sum());
+    obj.put("cancelled", cancelled.sum());
+    obj.put("lateErrors", lateErrors.sum());
+    obj.put("records", records.sum());
+    obj.put("resultChars", resultChars.sum());
+    JSONObject latency = new JSONObject();
+    latency.put("ipc", ipc.toJSON());
+    latency.put("serialization", serialization.toJSON());
+    latency.put("total", total.toJSON());
+    obj.put("latency", latency);
+    return obj;
+  }
+}
@@ -0,0 +1,57 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.aggregate.AggregateMetric;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of an aggregation over a time window
+ */
+public class AggregateBucket {
+
+  private final Instant startTime;
+
+  private final Instant endTime;
+
+  private final Map<AggregateMetric<?>, Object> values = new HashMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param startTime start of the time window
+   * @param endTime   end of the time window
+   */
+  public AggregateBucket(Instant startTime, Instant endTime) {
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+
+  public Instant getStartTime() {
+    return startTime;
+  }
+
+  public Instant getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * Sets the value of a metric, null values are ignored
+   */
+  public <T> void put(AggregateMetric<T> metric, T value) {
+    if (value != null) {
+      values.put(metric, value);
+    }
+  }
+
+  /**
+   * Gets the value of a metric
+   *
+   * @return the value or null if there was no data to aggregate
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(AggregateMetric<T> metric) {
+    return (T) values.get(metric);
+  }
+}
@@ -0,0 +1,112 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.metadata.DataOrigin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated buckets already read from Health Connect, so that overlapping ranges are not read again,
+ * for example while the user pans a chart. Only buckets that are over are kept, because records
+ * can still be added to the current one. Entries expire after a while, in case other apps add
+ * records to the past, and the entries of a data type are dropped when this app stores or deletes data of that type.
+ * Each drop starts a new generation, buckets read from Health Connect in an earlier generation are not cached.
+ */
+public class BucketCache {
+
+  static final int MAX_BUCKETS = 4096;
+
+  static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  /**
+   * A cached bucket
+   */
+  public static class Entry {
+    final Object value;
+    final String unit;
+    final long cachedAt = System.nanoTime();
+
+    Entry(Object value, String unit) {
+      this.value = value;
+      this.unit = unit;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> buckets = new LinkedHashMap<>(256, 0.75f, true);
+
+  private long generation;
+
+  /**
+   * Builds the key of a series of buckets
+   *
+   * @param dataType    the data type, the same for all its aliases
+   * @param bucketType  the type of bucket
+   * @param dataOrigins the apps the data comes from, empty for all
+   */
+  public static String key(String dataType, String bucketType, Set<DataOrigin> dataOrigins) {
+    List<String> packages = new ArrayList<>();
+    for (DataOrigin origin : dataOrigins) {
+      packages.add(origin.getPackageName());
+    }
+    Collections.sort(packages);
+    return dataType.toLowerCase() + "/" + bucketType.toLowerCase() + "/" + String.join(",", packages);
+  }
+
+  /**
+   * @param key   key of the series
+   * @param start start of the bucket, in ms
+   * @return the bucket, or null if not cached or expired
+   */
+  public synchronized Entry get(String key, long start) {
+    String k = key + "@" + start;
+    Entry entry = buckets.get(k);
+    if (entry != null && System.nanoTime() - entry.cachedAt > TTL_NANOS) {
+      buckets.remove(k);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * @return the current generation, to be read before reading buckets from Health Connect
+   */
+  public synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Caches a bucket that is over, unless the cache was cleared since it was read
+   *
+   * @param generation the generation when the bucket was read from Health Connect
+   */
+  public synchronized void put(String key, long start, Object value, String unit, long generation) {
+    // data may have been written after the bucket was read
+    if (generation != this.generation) return;
+    buckets.put(key + "@" + start, new Entry(value, unit));
+    Iterator<Entry> eldest = buckets.values().iterator();
+    while (buckets.size() > MAX_BUCKETS) {
+      eldest.next();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Drops the buckets of a data type
+   *
+   * @param dataType the data type, as passed to key(), null for all
+   */
+  public synchronized void clear(String dataType) {
+    generation++;
+    if (dataType == null) {
+      buckets.clear();
+      return;
+    }
+    String prefix = dataType.toLowerCase() + "/";
+    buckets.keySet().removeIf(k -> k.startsWith(prefix));
+  }
+}
@@ -0,0 +1,58 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.Record;
+
+import java.util.List;
+
+/**
+ * Records inserted, updated or deleted since a changes token was issued
+ */
+public class ChangesPage {
+
+  private final List<Record> upserted;
+
+  private final List<String> deletedIds;
+
+  private final String nextToken;
+
+  private final boolean hasMore;
+
+  private final boolean tokenExpired;
+
+  /**
+   * Constructor
+   *
+   * @param upserted     records inserted or updated
+   * @param deletedIds   ids of the records deleted
+   * @param nextToken    token to get the following changes
+   * @param hasMore      true if there are more changes to be read with the next token
+   * @param tokenExpired true if the token is too old, the data must then be read again from scratch
+   */
+  public ChangesPage(List<Record> upserted, List<String> deletedIds, String nextToken, boolean hasMore, boolean tokenExpired) {
+    this.upserted = upserted;
+    this.deletedIds = deletedIds;
+    this.nextToken = nextToken;
+    this.hasMore = hasMore;
+    this.tokenExpired = tokenExpired;
+  }
+
+  public List<Record> getUpserted() {
+    return upserted;
+  }
+
+  public List<String> getDeletedIds() {
+    return deletedIds;
+  }
+
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
+  }
+
+  public boolean isTokenExpired() {
+    return tokenExpired;
+  }
+}
@@ -0,0 +1,96 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Which time slots (hours, days...) have any data, optionally separately for each source app.
+ * Each source takes one bit per slot, so memory depends on the length of the range and on the resolution,
+ * not on the number of records. Covered time is returned as a list of intervals of consecutive slots.
+ */
+public class CoverageMap {
+
+  /**
+   * Maximum number of slots, about 20 years of hours
+   */
+  static final int MAX_SLOTS = 200000;
+
+  private final TimeBuckets slots;
+
+  private final Map<String, BitSet> sources = new TreeMap<>();
+
+  /**
+   * Constructor
+   *
+   * @param slots the time slots
+   */
+  public CoverageMap(TimeBuckets slots) {
+    this.slots = slots;
+  }
+
+  /**
+   * Marks the slots overlapped by a time range as covered
+   *
+   * @param source the app the data comes from, or "" if sources are not distinguished
+   * @param start  start of the range, in ms
+   * @param end    end of the range, in ms, equal to start for an instant
+   */
+  public void mark(String source, long start, long end) {
+    int size = slots.size();
+    if (size == 0 || end < slots.getStart(0) || start >= slots.getEnd(size - 1)) return;
+    int first = start <= slots.getStart(0) ? 0 : slots.indexOf(start);
+    // the end of an interval is not part of it
+    long last = end > start ? end - 1 : end;
+    int lastSlot = last >= slots.getEnd(size - 1) ? size - 1 : slots.indexOf(last);
+    if (first < 0 || lastSlot < first) return;
+    BitSet bits = sources.get(source);
+    if (bits == null) {
+      bits = new BitSet(size);
+      sources.put(source, bits);
+    }
+    bits.set(first, lastSlot + 1);
+  }
+
+  /**
+   * @return the coverage of each source, by package name, or of all data under ""
+   */
+  public Map<String, BitSet> getSources() {
+    return sources;
+  }
+
+  /**
+   * Builds the coverage of a source as { coveredSlots, totalSlots, ratio, covered: [[start, end]...], gaps: [[start, end]...] }
+   *
+   * @param bits covered slots, null if none
+   */
+  public JSONObject toJSON(BitSet bits) throws JSONException {
+    if (bits == null) bits = new BitSet();
+    int size = slots.size();
+    JSONArray covered = new JSONArray();
+    JSONArray gaps = new JSONArray();
+    int i = 0;
+    while (i < size) {
+      boolean set = bits.get(i);
+      int next = set ? bits.nextClearBit(i) : bits.nextSetBit(i);
+      if (next < 0 || next > size) next = size;
+      JSONArray run = new JSONArray();
+      run.put(slots.getStart(i));
+      run.put(slots.getEnd(next - 1));
+      (set ? covered : gaps).put(run);
+      i = next;
+    }
+    int count = bits.get(0, size).cardinality();
+    JSONObject obj = new JSONObject();
+    obj.put("coveredSlots", count);
+    obj.put("totalSlots", size);
+    obj.put("ratio", size > 0 ? (double) count / size : 0);
+    obj.put("covered", covered);
+    obj.put("gaps", gaps);
+    return obj;
+  }
+}
@@ -0,0 +1,87 @@
+package org.apache.cordova.health;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open query cursors, by id. JS only sees the id, the state stays on the native side.
+ * Cursors expire when not used for a while and the least recently used ones are dropped when there are too many,
+ * in both cases the pages they read ahead are released.
+ */
+public class CursorRegistry {
+
+  static final int MAX_CURSORS = 64;
+
+  static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private static class Entry {
+    final QueryCursor cursor;
+    long lastUsed = System.nanoTime();
+
+    Entry(QueryCursor cursor) {
+      this.cursor = cursor;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> cursors = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Registers a cursor
+   *
+   * @return the id to be given to JS
+   */
+  public synchronized String open(QueryCursor cursor) {
+    evict();
+    String id = UUID.randomUUID().toString();
+    cursors.put(id, new Entry(cursor));
+    while (cursors.size() > MAX_CURSORS) {
+      Iterator<Entry> eldest = cursors.values().iterator();
+      eldest.next().cursor.closePrefetcher();
+      eldest.remove();
+    }
+    return id;
+  }
+
+  /**
+   * Takes a cursor out of the registry, so that it cannot be used by two requests at the same time
+   *
+   * @return the cursor, or null if unknown or expired
+   */
+  public synchronized QueryCursor take(String id) {
+    evict();
+    Entry entry = cursors.remove(id);
+    return entry != null ? entry.cursor : null;
+  }
+
+  /**
+   * Puts back a cursor taken with take(), under the same id
+   */
+  public synchronized void restore(String id, QueryCursor cursor) {
+    cursors.put(id, new Entry(cursor));
+  }
+
+  /**
+   * Closes a cursor that is no longer needed
+   */
+  public synchronized void close(String id) {
+    Entry entry = cursors.remove(id);
+    if (entry != null) {
+      entry.cursor.closePrefetcher();
+    }
+  }
+
+  private void evict() {
+    long now = System.nanoTime();
+    Iterator<Map.Entry<String, Entry>> it = cursors.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (now - entry.lastUsed > TTL_NANOS) {
+        entry.cursor.closePrefetcher();
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a series of values to about a target number of points for charts, while the values are read.
+ * The time range is split in buckets of equal duration. In "lttb" mode (Largest-Triangle-Three-Buckets)
+ * the point of each bucket forming the largest triangle with the point chosen in the previous bucket
+ * and the average of the next bucket is kept, together with the first and last points.
+ * In "minmax" mode the min and the max of each bucket are kept, so that peaks are never lost.
+ * Only the values of two buckets are held in memory.
+ */
+public class Downsampler {
+
+  public static final String LTTB = "lttb";
+
+  public static final String MINMAX = "minmax";
+
+  private static class Bucket {
+    int index = -1;
+    long[] times = new long[64];
+    double[] values = new double[64];
+    int size;
+    double sumTime;
+    double sumValue;
+
+    void add(long time, double value) {
+      if (size == times.length) {
+        times = Arrays.copyOf(times, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      times[size] = time;
+      values[size] = value;
+      size++;
+      sumTime += time;
+      sumValue += value;
+    }
+
+    void reset(int index) {
+      this.index = index;
+      size = 0;
+      sumTime = 0;
+      sumValue = 0;
+    }
+  }
+
+  private final long start;
+
+  private final long end;
+
+  private final int bucketCount;
+
+  private final boolean minmax;
+
+  /**
+   * Points kept
+   */
+  private final Bucket points = new Bucket();
+
+  private String unit;
+
+  /**
+   * Bucket waiting for the average of the next one, lttb only
+   */
+  private Bucket pending = new Bucket();
+
+  private Bucket current = new Bucket();
+
+  private boolean hasFirst;
+
+  private long lastTime;
+
+  private double lastValue;
+
+  private long selectedTime;
+
+  private double selectedValue;
+
+  /**
+   * Constructor
+   *
+   * @param start  start of the time range, in ms
+   * @param end    end of the time range, in ms
+   * @param target maximum number of points returned
+   * @param mode   LTTB or MINMAX
+   * @throws IllegalArgumentException if the mode is unknown or the target too small
+   */
+  public Downsampler(long start, long end, int target, String mode) {
+    if (!LTTB.equals(mode) && !MINMAX.equals(mode)) {
+      throw new IllegalArgumentException("Unknown downsample mode " + mode);
+    }
+    this.minmax = MINMAX.equals(mode);
+    if (target < (minmax ? 2 : 3)) {
+      throw new IllegalArgumentException("Downsample needs at least " + (minmax ? 2 : 3) + " points");
+    }
+    this.start = start;
+    this.end = Math.max(end, start + 1);
+    // first and last points are added to lttb buckets, minmax buckets give 2 points each
+    this.bucketCount = minmax ? target / 2 : target - 2;
+  }
+
+  public void setUnit(String unit) {
+    if (this.unit == null) this.unit = unit;
+  }
+
+  /**
+   * Adds a value, values should come in ascending order of time,
+   * a value older than the current bucket is counted in the current bucket
+   */
+  public void add(long time, double value) {
+    int index = (int) Math.min(bucketCount - 1, Math.max(0, (time - start) * bucketCount / (end - start)));
+    if (!hasFirst) {
+      hasFirst = true;
+      if (!minmax) {
+        emit(time, value);
+        selectedTime = time;
+        selectedValue = value;
+      }
+    }
+    if (current.index < 0) {
+      current.reset(index);
+    } else if (index > current.index) {
+      closeCurrent();
+      current.reset(index);
+    }
+    current.add(time, value);
+    lastTime = time;
+    lastValue = value;
+  }
+
+  private void closeCurrent() {
+    if (minmax) {
+      emitMinMax(current);
+      return;
+    }
+    if (pending.index >= 0) {
+      select(pending, current.sumTime / current.size, current.sumValue / current.size);
+    }
+    Bucket swap = pending;
+    pending = current;
+    current = swap;
+  }
+
+  /**
+   * Keeps the point of the bucket forming the largest triangle with the last selected point and the next average
+   */
+  private void select(Bucket bucket, double nextTime, double nextValue) {
+    int best = -1;
+    double bestArea = -1;
+    for (int i = 0; i < bucket.size; i++) {
+      double area = Math.abs((selectedTime - nextTime) * (bucket.values[i] - selectedValue)
+        - (selectedTime - bucket.times[i]) * (nextValue - selectedValue));
+      if (area > bestArea) {
+        bestArea = area;
+        best = i;
+      }
+    }
+    if (bucket.times[best] == selectedTime && bucket.values[best] == selectedValue) return;
+    selectedTime = bucket.times[best];
+    selectedValue = bucket.values[best];
+    emit(selectedTime, selectedValue);
+  }
+
+  private void emitMinMax(Bucket bucket) {
+    int min = 0;
+    int max = 0;
+    for (int i = 1; i < bucket.size; i++) {
+      if (bucket.values[i] < bucket.values[min]) min = i;
+      if (bucket.values[i] > bucket.values[max]) max = i;
+    }
+    int first = Math.min(min, max);
+    int second = Math.max(min, max);
+    emit(bucket.times[first], bucket.values[first]);
+    if (second != first) {
+      emit(bucket.times[second], bucket.values[second]);
+    }
+  }
+
+  private void emit(long time, double value) {
+    points.add(time, value);
+  }
+
+  /**
+   * @return the points kept, in ascending order of time
+   */
+  public JSONArray finish() throws JSONException {
+    if (current.index >= 0) {
+      if (minmax) {
+        emitMinMax(current);
+      } else {
+        if (pending.index >= 0) {
+          select(pending, current.sumTime / current.size, current.sumValue / current.size);
+        }
+        select(current, lastTime, lastValue);
+        if (selectedTime != lastTime || selectedValue != lastValue) {
+          emit(lastTime, lastValue);
+        }
+      }
+      current.reset(-1);
+      pending.reset(-1);
+    }
+    JSONArray arr = new JSONArray();
+    for (int i = 0; i < points.size; i++) {
+      JSONObject point = new JSONObject();
+      point.put("startDate", points.times[i]);
+      point.put("endDate", points.times[i]);
+      point.put("value", points.values[i]);
+      if (unit != null) {
+        point.put("unit", unit);
+      }
+      arr.put(point);
+    }
+    return arr;
+  }
+}
@@ -0,0 +1,103 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes records to a file as they are read, one line each, so that memory does not depend on the number of records.
+ * Lines are either JSON objects as returned by query() (NDJSON) or comma separated values with a header line.
+ */
+public class ExportWriter implements Closeable {
+
+  public static final String NDJSON = "ndjson";
+
+  public static final String CSV = "csv";
+
+  public static final List<String> FORMATS = Arrays.asList(NDJSON, CSV);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String format;
+
+  private final List<String> fields;
+
+  private final Writer out;
+
+  private long rows;
+
+  /**
+   * Constructor, creates the file
+   *
+   * @param file   the file, replaced if it exists
+   * @param format NDJSON or CSV
+   * @param gzip   true to compress the file
+   * @param fields fields to be written, null for all
+   */
+  public ExportWriter(File file, String format, boolean gzip, List<String> fields) throws IOException {
+    if (!FORMATS.contains(format)) {
+      throw new IllegalArgumentException("Format must be one of " + FORMATS);
+    }
+    this.format = format;
+    this.fields = fields != null ? fields : RecordRow.FIELDS;
+    OutputStream stream = new FileOutputStream(file);
+    if (gzip) {
+      stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+    }
+    this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    if (CSV.equals(format)) {
+      out.write(String.join(",", this.fields));
+      out.write('\n');
+    }
+  }
+
+  /**
+   * Writes a record
+   */
+  public void write(RecordRow row) throws IOException, JSONException {
+    if (NDJSON.equals(format)) {
+      out.write(row.toJSON(fields).toString());
+    } else {
+      for (int i = 0; i < fields.size(); i++) {
+        if (i > 0) out.write(',');
+        Object val = row.get(fields.get(i));
+        if (val != null) out.write(csvValue(val.toString()));
+      }
+    }
+    out.write('\n');
+    rows++;
+  }
+
+  /**
+   * @return the number of records written
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Quotes a value if it contains a separator, a quote or a line break
+   */
+  private static String csvValue(String val) {
+    if (val.indexOf(',') < 0 && val.indexOf('"') < 0 && val.indexOf('\n') < 0 && val.indexOf('\r') < 0) {
+      return val;
+    }
+    return '"' + val.replace("\"", "\"\"") + '"';
+  }
+}
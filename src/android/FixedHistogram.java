@@ -0,0 +1,71 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counts values in bins of equal width between a min and a max.
+ * Values out of range are counted separately.
+ */
+public class FixedHistogram {
+
+  static final int MAX_BINS = 1000;
+
+  private final double min;
+
+  private final double max;
+
+  private final long[] counts;
+
+  private long underflow;
+
+  private long overflow;
+
+  /**
+   * Constructor
+   *
+   * @param min  lower bound of the first bin
+   * @param max  upper bound of the last bin
+   * @param bins number of bins
+   * @throws IllegalArgumentException if the range is empty or the number of bins is not between 1 and MAX_BINS
+   */
+  public FixedHistogram(double min, double max, int bins) {
+    if (!(max > min) || bins < 1) {
+      throw new IllegalArgumentException("Histogram needs max greater than min and at least one bin");
+    }
+    if (bins > MAX_BINS) {
+      throw new IllegalArgumentException("Histogram can have at most " + MAX_BINS + " bins");
+    }
+    this.min = min;
+    this.max = max;
+    this.counts = new long[bins];
+  }
+
+  public void add(double value) {
+    if (value < min) {
+      underflow++;
+    } else if (value > max) {
+      overflow++;
+    } else {
+      // the max falls in the last bin
+      int bin = (int) ((value - min) / (max - min) * counts.length);
+      counts[Math.min(bin, counts.length - 1)]++;
+    }
+  }
+
+  public JSONObject toJSON() throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("min", min);
+    obj.put("max", max);
+    obj.put("binWidth", (max - min) / counts.length);
+    JSONArray arr = new JSONArray();
+    for (long c : counts) {
+      arr.put(c);
+    }
+    obj.put("counts", arr);
+    obj.put("underflow", underflow);
+    obj.put("overflow", overflow);
+    return obj;
+  }
+}
@@ -0,0 +1,201 @@
+package org.apache.cordova.health;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses a block of samples (time, duration, value) as in Facebook's Gorilla time series database.
+ * Times and durations are stored as the difference between consecutive deltas (delta-of-delta),
+ * which is 0 and takes 1 bit for regular series. Values are XORed with the previous one and only the
+ * bits that changed are stored, a repeated value takes 1 bit. A block of one day of per-minute
+ * heart rate samples takes less than 2 bytes per sample instead of 24.
+ */
+public class GorillaCodec {
+
+  /**
+   * Receives decoded samples
+   */
+  public interface SampleConsumer {
+    void accept(long time, long duration, double value);
+  }
+
+  /**
+   * Encodes samples, sorted by time
+   *
+   * @return the block: the number of samples followed by the bits
+   */
+  public static byte[] encode(long[] times, long[] durations, double[] values, int count) {
+    BitWriter out = new BitWriter(16 + count * 4);
+    out.write(count, 32);
+    DeltaEncoder timeEncoder = new DeltaEncoder();
+    DeltaEncoder durationEncoder = new DeltaEncoder();
+    long prevBits = 0;
+    int prevLeading = -1;
+    int prevTrailing = 0;
+    for (int i = 0; i < count; i++) {
+      timeEncoder.write(out, times[i]);
+      durationEncoder.write(out, durations[i]);
+
+      long bits = Double.doubleToRawLongBits(values[i]);
+      long xor = bits ^ prevBits;
+      prevBits = bits;
+      if (xor == 0) {
+        out.write(0, 1);
+        continue;
+      }
+      out.write(1, 1);
+      int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+      int trailing = Long.numberOfTrailingZeros(xor);
+      if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+        // the changed bits fit in the window of the previous value
+        out.write(0, 1);
+        out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+      } else {
+        int meaningful = 64 - leading - trailing;
+        out.write(1, 1);
+        out.write(leading, 5);
+        // 64 does not fit in 6 bits, it is stored as 0 since there is always at least one bit
+        out.write(meaningful & 63, 6);
+        out.write(xor >>> trailing, meaningful);
+        prevLeading = leading;
+        prevTrailing = trailing;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a block
+   *
+   * @param block    the block, from its position
+   * @param consumer receives the samples in the order they were encoded
+   */
+  public static void decode(ByteBuffer block, SampleConsumer consumer) {
+    BitReader in = new BitReader(block);
+    int count = (int) in.read(32);
+    DeltaDecoder timeDecoder = new DeltaDecoder();
+    DeltaDecoder durationDecoder = new DeltaDecoder();
+    long bits = 0;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 0; i < count; i++) {
+      long time = timeDecoder.read(in);
+      long duration = durationDecoder.read(in);
+      if (in.read(1) == 1) {
+        if (in.read(1) == 1) {
+          leading = (int) in.read(5);
+          int meaningful = (int) in.read(6);
+          if (meaningful == 0) meaningful = 64;
+          trailing = 64 - leading - meaningful;
+        }
+        bits ^= in.read(64 - leading - trailing) << trailing;
+      }
+      consumer.accept(time, duration, Double.longBitsToDouble(bits));
+    }
+  }
+
+  /**
+   * Buckets of delta-of-delta: prefix bits, prefix length, number of bits of the value
+   */
+  private static final int[][] BUCKETS = {{0b10, 2, 7}, {0b110, 3, 9}, {0b1110, 4, 12}, {0b11110, 5, 32}};
+
+  private static class DeltaEncoder {
+    long prev;
+    long prevDelta;
+
+    void write(BitWriter out, long value) {
+      long delta = value - prev;
+      long dod = delta - prevDelta;
+      prev = value;
+      prevDelta = delta;
+      if (dod == 0) {
+        out.write(0, 1);
+        return;
+      }
+      for (int[] bucket : BUCKETS) {
+        long half = 1L << (bucket[2] - 1);
+        if (dod >= -half && dod < half) {
+          out.write(bucket[0], bucket[1]);
+          out.write(dod, bucket[2]);
+          return;
+        }
+      }
+      out.write(0b11111, 5);
+      out.write(dod, 64);
+    }
+  }
+
+  private static class DeltaDecoder {
+    long prev;
+    long prevDelta;
+
+    long read(BitReader in) {
+      int ones = 0;
+      while (ones < 5 && in.read(1) == 1) {
+        ones++;
+      }
+      long dod;
+      if (ones == 0) {
+        dod = 0;
+      } else if (ones == 5) {
+        dod = in.read(64);
+      } else {
+        int size = BUCKETS[ones - 1][2];
+        // sign extension
+        dod = (in.read(size) << (64 - size)) >> (64 - size);
+      }
+      prevDelta += dod;
+      prev += prevDelta;
+      return prev;
+    }
+  }
+
+  private static class BitWriter {
+    byte[] buf;
+    long bitPos;
+
+    BitWriter(int capacity) {
+      buf = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Writes the lowest bits of a value, most significant first
+     */
+    void write(long value, int bits) {
+      if (bitPos + bits > (long) buf.length * 8) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, (int) ((bitPos + bits) / 8) + 16));
+      }
+      for (int i = bits - 1; i >= 0; i--) {
+        if (((value >>> i) & 1) != 0) {
+          buf[(int) (bitPos >>> 3)] |= (byte) (0x80 >>> (bitPos & 7));
+        }
+        bitPos++;
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buf, (int) ((bitPos + 7) >>> 3));
+    }
+  }
+
+  private static class BitReader {
+    final ByteBuffer buf;
+    final int base;
+    long bitPos;
+
+    BitReader(ByteBuffer buf) {
+      this.buf = buf;
+      this.base = buf.position();
+    }
+
+    long read(int bits) {
+      long value = 0;
+      for (int i = 0; i < bits; i++) {
+        int b = buf.get(base + (int) (bitPos >>> 3));
+        value = (value << 1) | ((b >>> (7 - (bitPos & 7))) & 1);
+        bitPos++;
+      }
+      return value;
+    }
+  }
+}
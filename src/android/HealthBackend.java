@@ -0,0 +1,91 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.aggregate.AggregateMetric;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.util.List;
+import java.util.Set;
+
+import kotlin.reflect.KClass;
+
+/**
+ * Access to the health data store used by the plugin.
+ * The default implementation talks to Health Connect, but the plugin can be pointed to another one,
+ * for example the in-memory store used for load testing.
+ * Calls rejected because the app exceeded its quota throw a RateLimitException.
+ */
+public interface HealthBackend {
+
+  /**
+   * @return the permissions currently granted to the app
+   */
+  Set<String> getGrantedPermissions() throws InterruptedException;
+
+  /**
+   * Reads a page of records
+   *
+   * @param dataType    type of record
+   * @param start       start of the time range
+   * @param end         end of the time range
+   * @param dataOrigins apps that wrote the data, empty for any
+   * @param ascending   if true records are sorted from the oldest
+   * @param pageSize    maximum number of records in the page
+   * @param pageToken   token of the page to read, null for the first one
+   * @return the page
+   */
+  RecordPage readRecords(KClass<? extends Record> dataType, Instant start, Instant end, Set<DataOrigin> dataOrigins,
+                         boolean ascending, int pageSize, String pageToken) throws InterruptedException;
+
+  /**
+   * Aggregates records over a time range
+   */
+  AggregateBucket aggregate(Set<AggregateMetric<?>> metrics, Instant start, Instant end,
+                            Set<DataOrigin> dataOrigins) throws InterruptedException;
+
+  /**
+   * Aggregates records in buckets of calendar periods (days, weeks, months...) in local time
+   */
+  List<AggregateBucket> aggregateGroupByPeriod(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                               Period period, Set<DataOrigin> dataOrigins) throws InterruptedException;
+
+  /**
+   * Aggregates records in buckets of fixed duration
+   */
+  List<AggregateBucket> aggregateGroupByDuration(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                                 Duration duration, Set<DataOrigin> dataOrigins) throws InterruptedException;
+
+  /**
+   * Inserts records
+   *
+   * @return the ids of the inserted records, in the same order
+   */
+  List<String> insertRecords(List<? extends Record> records) throws InterruptedException;
+
+  /**
+   * Deletes records by id or client id
+   */
+  void deleteRecords(KClass<? extends Record> dataType, List<String> ids, List<String> clientIds) throws InterruptedException;
+
+  /**
+   * Deletes all records of a type within a time range
+   */
+  void deleteRecords(KClass<? extends Record> dataType, Instant start, Instant end) throws InterruptedException;
+
+  /**
+   * Gets a token to be notified of the changes made from now on to records of some types
+   */
+  String getChangesToken(Set<KClass<? extends Record>> dataTypes) throws InterruptedException;
+
+  /**
+   * Gets the changes made since a token was issued
+   *
+   * @param token token from getChangesToken() or from the previous page of changes
+   * @return the changes
+   */
+  ChangesPage getChanges(String token) throws InterruptedException;
+}
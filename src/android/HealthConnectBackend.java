@@ -0,0 +1,223 @@
+package org.apache.cordova.health;
+
+import android.health.connect.HealthConnectException;
+import android.os.Build;
+
+import androidx.health.connect.client.HealthConnectClient;
+import androidx.health.connect.client.aggregate.AggregateMetric;
+import androidx.health.connect.client.aggregate.AggregationResult;
+import androidx.health.connect.client.aggregate.AggregationResultGroupedByDuration;
+import androidx.health.connect.client.aggregate.AggregationResultGroupedByPeriod;
+import androidx.health.connect.client.changes.Change;
+import androidx.health.connect.client.changes.DeletionChange;
+import androidx.health.connect.client.changes.UpsertionChange;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.request.AggregateGroupByDurationRequest;
+import androidx.health.connect.client.request.AggregateGroupByPeriodRequest;
+import androidx.health.connect.client.request.AggregateRequest;
+import androidx.health.connect.client.request.ChangesTokenRequest;
+import androidx.health.connect.client.request.ReadRecordsRequest;
+import androidx.health.connect.client.response.ChangesResponse;
+import androidx.health.connect.client.response.InsertRecordsResponse;
+import androidx.health.connect.client.response.ReadRecordsResponse;
+import androidx.health.connect.client.time.TimeRangeFilter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import kotlin.coroutines.Continuation;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.jvm.functions.Function2;
+import kotlin.reflect.KClass;
+import kotlinx.coroutines.BuildersKt;
+import kotlinx.coroutines.CoroutineScope;
+
+/**
+ * Backend that uses the Health Connect client, calls rejected because the quota is exceeded throw a RateLimitException
+ */
+public class HealthConnectBackend implements HealthBackend {
+
+  private final HealthConnectClient healthConnectClient;
+
+  public HealthConnectBackend(HealthConnectClient healthConnectClient) {
+    this.healthConnectClient = healthConnectClient;
+  }
+
+  @Override
+  public Set<String> getGrantedPermissions() throws InterruptedException {
+    return call(
+      (s, c) -> healthConnectClient.getPermissionController().getGrantedPermissions(c)
+    );
+  }
+
+  @Override
+  public RecordPage readRecords(KClass<? extends Record> dataType, Instant start, Instant end, Set<DataOrigin> dataOrigins,
+                                boolean ascending, int pageSize, String pageToken) throws InterruptedException {
+    return read(dataType, TimeRangeFilter.between(start, end), dataOrigins, ascending, pageSize, pageToken);
+  }
+
+  private <T extends Record> RecordPage read(KClass<T> dataType, TimeRangeFilter timeRange, Set<DataOrigin> dataOrigins,
+                                             boolean ascending, int pageSize, String pageToken) throws InterruptedException {
+    ReadRecordsRequest<T> request = new ReadRecordsRequest<>(dataType, timeRange, dataOrigins, ascending, pageSize, pageToken);
+    ReadRecordsResponse<T> response = call(
+      (s, c) -> healthConnectClient.readRecords(request, c)
+    );
+    return new RecordPage(response.getRecords(), response.getPageToken());
+  }
+
+  @Override
+  public AggregateBucket aggregate(Set<AggregateMetric<?>> metrics, Instant start, Instant end,
+                                   Set<DataOrigin> dataOrigins) throws InterruptedException {
+    AggregateRequest request = new AggregateRequest(metrics, TimeRangeFilter.between(start, end), dataOrigins);
+    AggregationResult response = call(
+      (s, c) -> healthConnectClient.aggregate(request, c)
+    );
+    return toBucket(metrics, start, end, response);
+  }
+
+  @Override
+  public List<AggregateBucket> aggregateGroupByPeriod(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                                      Period period, Set<DataOrigin> dataOrigins) throws InterruptedException {
+    AggregateGroupByPeriodRequest request = new AggregateGroupByPeriodRequest(metrics, TimeRangeFilter.between(start, end), period, dataOrigins);
+    List<AggregationResultGroupedByPeriod> response = call(
+      (s, c) -> healthConnectClient.aggregateGroupByPeriod(request, c)
+    );
+    List<AggregateBucket> buckets = new ArrayList<>(response.size());
+    for (AggregationResultGroupedByPeriod bucket : response) {
+      Instant stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant();
+      Instant etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant();
+      buckets.add(toBucket(metrics, stbkt, etbkt, bucket.getResult()));
+    }
+    return buckets;
+  }
+
+  @Override
+  public List<AggregateBucket> aggregateGroupByDuration(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                                        Duration duration, Set<DataOrigin> dataOrigins) throws InterruptedException {
+    AggregateGroupByDurationRequest request = new AggregateGroupByDurationRequest(metrics, TimeRangeFilter.between(start, end), duration, dataOrigins);
+    List<AggregationResultGroupedByDuration> response = call(
+      (s, c) -> healthConnectClient.aggregateGroupByDuration(request, c)
+    );
+    List<AggregateBucket> buckets = new ArrayList<>(response.size());
+    for (AggregationResultGroupedByDuration bucket : response) {
+      buckets.add(toBucket(metrics, bucket.getStartTime(), bucket.getEndTime(), bucket.getResult()));
+    }
+    return buckets;
+  }
+
+  @Override
+  public List<String> insertRecords(List<? extends Record> records) throws InterruptedException {
+    InsertRecordsResponse response = call(
+      (s, c) -> healthConnectClient.insertRecords(records, c)
+    );
+    return response.getRecordIdsList();
+  }
+
+  @Override
+  public void deleteRecords(KClass<? extends Record> dataType, List<String> ids, List<String> clientIds) throws InterruptedException {
+    call(
+      (s, c) -> healthConnectClient.deleteRecords(dataType, ids, clientIds, c)
+    );
+  }
+
+  @Override
+  public void deleteRecords(KClass<? extends Record> dataType, Instant start, Instant end) throws InterruptedException {
+    TimeRangeFilter timeRange = TimeRangeFilter.between(start, end);
+    call(
+      (s, c) -> healthConnectClient.deleteRecords(dataType, timeRange, c)
+    );
+  }
+
+  @Override
+  public String getChangesToken(Set<KClass<? extends Record>> dataTypes) throws InterruptedException {
+    ChangesTokenRequest request = new ChangesTokenRequest(dataTypes, new HashSet<>());
+    return call(
+      (s, c) -> healthConnectClient.getChangesToken(request, c)
+    );
+  }
+
+  @Override
+  public ChangesPage getChanges(String token) throws InterruptedException {
+    ChangesResponse response = call(
+      (s, c) -> healthConnectClient.getChanges(token, c)
+    );
+    List<Record> upserted = new ArrayList<>();
+    List<String> deleted = new ArrayList<>();
+    for (Change change : response.getChanges()) {
+      if (change instanceof UpsertionChange) {
+        upserted.add(((UpsertionChange) change).getRecord());
+      } else if (change instanceof DeletionChange) {
+        deleted.add(((DeletionChange) change).getRecordId());
+      }
+    }
+    return new ChangesPage(upserted, deleted, response.getNextChangesToken(), response.getHasMore(), response.getChangesTokenExpired());
+  }
+
+  /**
+   * Runs a call of the client, blocking the thread until it is done
+   */
+  private static <T> T call(Function2<? super CoroutineScope, ? super Continuation<? super T>, ?> block) throws InterruptedException {
+    try {
+      // see https://kt.academy/article/cc-other-languages
+      return BuildersKt.runBlocking(EmptyCoroutineContext.INSTANCE, block);
+    } catch (Exception ex) {
+      // Kotlin can also throw checked exceptions, such as RemoteException, they are thrown again as they are
+      if (!(ex instanceof InterruptedException) && isRateLimit(ex)) throw new RateLimitException(ex);
+      throw ex;
+    }
+  }
+
+  /**
+   * Tells whether the client has rejected a call because the quota is exceeded. From Android 14 the platform reports it
+   * with HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED, but the client converts platform exceptions to an
+   * IllegalStateException that only keeps the message, as it does with the errors of the Health Connect app before
+   * Android 14. The error code is used when the platform exception is still there, the message otherwise.
+   */
+  static boolean isRateLimit(Throwable ex) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+      for (Throwable t = ex; t != null; t = t.getCause()) {
+        if (isPlatformRateLimit(t)) return true;
+      }
+    }
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      String message = t.getMessage();
+      if (message != null) {
+        // e.g. "Rate limited request quota has been exceeded. Please wait until quota has replenished before making further requests."
+        message = message.toLowerCase(Locale.ROOT);
+        if (message.contains("rate limit") || message.contains("quota")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Only called from Android 14, where the platform exception exists
+   */
+  private static boolean isPlatformRateLimit(Throwable t) {
+    return t instanceof HealthConnectException
+      && ((HealthConnectException) t).getErrorCode() == HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED;
+  }
+
+  private static AggregateBucket toBucket(Set<AggregateMetric<?>> metrics, Instant start, Instant end, AggregationResult result) {
+    AggregateBucket bucket = new AggregateBucket(start, end);
+    for (AggregateMetric<?> metric : metrics) {
+      copyMetric(bucket, metric, result);
+    }
+    return bucket;
+  }
+
+  private static <T> void copyMetric(AggregateBucket bucket, AggregateMetric<T> metric, AggregationResult result) {
+    bucket.put(metric, result.get(metric));
+  }
+}
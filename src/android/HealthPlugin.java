@@ -14,16 +14,11 @@ import androidx.activity.result.contract.ActivityResultContract;
 import androidx.health.connect.client.HealthConnectClient;
 import androidx.health.connect.client.PermissionController;
 import androidx.health.connect.client.aggregate.AggregateMetric;
-import androidx.health.connect.client.aggregate.AggregationResult;
-import androidx.health.connect.client.aggregate.AggregationResultGroupedByDuration;
-import androidx.health.connect.client.aggregate.AggregationResultGroupedByPeriod;
 import androidx.health.connect.client.permission.HealthPermission;
 import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
 import androidx.health.connect.client.records.BasalMetabolicRateRecord;
 import androidx.health.connect.client.records.BodyFatRecord;
 import androidx.health.connect.client.records.DistanceRecord;
-import androidx.health.connect.client.records.ExerciseLap;
-import androidx.health.connect.client.records.ExerciseSegment;
 import androidx.health.connect.client.records.ExerciseSessionRecord;
 import androidx.health.connect.client.records.FloorsClimbedRecord;
 import androidx.health.connect.client.records.HeartRateRecord;
@@ -34,19 +29,6 @@ import androidx.health.connect.client.records.SleepStageRecord;
 import androidx.health.connect.client.records.StepsRecord;
 import androidx.health.connect.client.records.WeightRecord;
 import androidx.health.connect.client.records.metadata.DataOrigin;
-import androidx.health.connect.client.records.metadata.Device;
-import androidx.health.connect.client.records.metadata.Metadata;
-import androidx.health.connect.client.request.AggregateGroupByDurationRequest;
-import androidx.health.connect.client.request.AggregateGroupByPeriodRequest;
-import androidx.health.connect.client.request.AggregateRequest;
-import androidx.health.connect.client.request.ReadRecordsRequest;
-import androidx.health.connect.client.response.InsertRecordsResponse;
-import androidx.health.connect.client.response.ReadRecordsResponse;
-import androidx.health.connect.client.time.TimeRangeFilter;
-import androidx.health.connect.client.units.Energy;
-import androidx.health.connect.client.units.Mass;
-import androidx.health.connect.client.units.Percentage;
-import androidx.health.connect.client.units.Power;
 import androidx.health.platform.client.permission.Permission;
 
 import org.apache.cordova.CallbackContext;
@@ -59,6 +41,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.DayOfWeek;
 import java.time.Duration;
 import java.time.Instant;
@@ -69,14 +57,28 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
 import java.time.temporal.TemporalUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
-import kotlin.coroutines.EmptyCoroutineContext;
 import kotlin.reflect.KClass;
-import kotlinx.coroutines.BuildersKt;
 
 
 public class HealthPlugin extends CordovaPlugin {
@@ -91,21 +93,128 @@ public class HealthPlugin extends CordovaPlugin {
    */
   private final int PERMISSIONS_INTENT = 878;
 
+  /**
+   * Largest page that can be read from Health Connect at once
+   */
+  static final int MAX_PAGE_SIZE = 5000;
+
+  /**
+   * Maximum number of records inserted, or deleted by id, in one call
+   */
+  private static final int MAX_WRITE_BATCH = 1000;
+
+  /**
+   * Time ranges deleted at the same time by a bulk delete
+   */
+  private static final int MAX_CONCURRENT_DELETES = 4;
+
+  /**
+   * Most pages that a query can read ahead
+   */
+  static final int MAX_PREFETCH_DEPTH = 8;
+
+  /**
+   * Most records held in memory by all pages read ahead
+   */
+  static final int MAX_PREFETCHED_RECORDS = 20000;
+
+  /**
+   * Records of pages that queries are waiting for, read once MAX_PREFETCHED_RECORDS is used by pages read ahead
+   */
+  static final int MAX_WAITED_RECORDS = 2 * MAX_PAGE_SIZE;
+
+  /**
+   * Buckets of a stats() request
+   */
+  static final int MAX_STATS_BUCKETS = 10000;
+
+  /**
+   * Buckets of a stats() request with percentiles or a histogram, each can take a few KB
+   */
+  static final int MAX_SKETCHED_BUCKETS = 1000;
+
   /**
    * Callback context, reference needed when used in functions initialized before the plugin is called
    */
   private CallbackContext callbackContext;
 
   /**
-   * API client
+   * Access to the health data, Health Connect unless replaced with setBackend()
    */
-  private HealthConnectClient healthConnectClient;
+  private HealthBackend backend;
 
   /**
    * Used to get permissions
    */
   ActivityResultLauncher permissionsLauncher;
 
+  /**
+   * Latencies, sizes and errors by action and data type
+   */
+  private final PluginMetrics runtimeMetrics = new PluginMetrics();
+
+  /**
+   * Keeps calls to Health Connect within the quota of the app, the rates are a conservative estimate
+   * of what Health Connect allows to foreground apps
+   */
+  private final RequestScheduler scheduler = new RequestScheduler(10, 40, 5, 20);
+
+  /**
+   * Used to periodically push metrics to JS
+   */
+  private ScheduledExecutorService metricsPusher;
+
+  private ScheduledFuture<?> metricsPush;
+
+  private CallbackContext metricsPushCallback;
+
+  /**
+   * Interrupts requests when their deadline expires
+   */
+  private ScheduledExecutorService deadlineTimer;
+
+  /**
+   * Running requests that can be cancelled, by handle
+   */
+  private final ConcurrentHashMap<String, RequestContext> inflight = new ConcurrentHashMap<>();
+
+  /**
+   * Queries that can be continued with queryNext()
+   */
+  private final CursorRegistry cursors = new CursorRegistry();
+
+  private final PagePrefetcher.Budget prefetchBudget = new PagePrefetcher.Budget(MAX_PREFETCHED_RECORDS, MAX_WAITED_RECORDS);
+
+  /**
+   * Aggregated buckets that are over, reused by queryAggregated()
+   */
+  private final BucketCache bucketCache = new BucketCache();
+
+  /**
+   * Activity and sleep sessions, loaded by the first overlaps() or at()
+   */
+  private final SessionIndex sessionIndex = new SessionIndex();
+
+  /**
+   * Held while the session index is loaded or updated
+   */
+  private final ReentrantLock sessionIndexLock = new ReentrantLock();
+
+  /**
+   * How long the session index is used before checking for changes
+   */
+  private static final long SESSION_INDEX_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  /**
+   * Numeric series stored on device by query() with localCache, by data type and sources
+   */
+  private final Map<String, SeriesStore> seriesStores = new ConcurrentHashMap<>();
+
+  /**
+   * Days are only stored once they ended since this long, so that late synced data is included
+   */
+  private static final long SERIES_SETTLE_MS = SeriesStore.DAY_MS;
+
   /**
    * Constructor
    */
@@ -181,7 +290,7 @@ public class HealthPlugin extends CordovaPlugin {
       cordova.getThreadPool().execute(() -> {
         try {
           connectAPI();
-          checkAuthorization(args, false);
+          checkAuthorization(args, false, callbackContext);
         } catch (Exception ex) {
           callbackContext.error(ex.getMessage());
         }
@@ -191,52 +300,112 @@ public class HealthPlugin extends CordovaPlugin {
       cordova.getThreadPool().execute(() -> {
         try {
           connectAPI();
-          checkAuthorization(args, true);
+          checkAuthorization(args, true, callbackContext);
         } catch (Exception ex) {
           callbackContext.error(ex.getMessage());
         }
       });
       return true;
     } else if ("query".equals(action)) {
-      cordova.getThreadPool().execute(() -> {
-        try {
-          connectAPI();
-          query(args);
-        } catch (Exception ex) {
-          callbackContext.error(ex.getMessage());
-        }
-      });
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> query(args, req));
+      return true;
+    } else if ("stats".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> stats(args, req));
+      return true;
+    } else if ("analyzeSessions".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> analyzeSessions(args, req));
       return true;
+    } else if ("coverage".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> coverage(args, req));
+      return true;
+    } else if ("overlaps".equals(action) || "at".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> overlaps(action, args, req));
+      return true;
+    } else if ("exportToFile".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> exportToFile(args, req));
+      return true;
+    } else if ("queryNext".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> queryNext(args, req));
+      return true;
+    } else if ("grantCredit".equals(action)) {
+      RequestContext req = inflight.get(args.optString(0));
+      if (req != null) {
+        req.grantCredit(args.optInt(1, 1));
+      }
+      callbackContext.success();
+    } else if ("closeCursor".equals(action)) {
+      cursors.close(args.optString(0));
+      callbackContext.success();
     } else if ("queryAggregated".equals(action)) {
-      cordova.getThreadPool().execute(() -> {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> queryAggregated(args, req));
+      return true;
+    } else if ("store".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> {
         try {
-          connectAPI();
-          queryAggregated(args);
-        } catch (Exception ex) {
-          callbackContext.error(ex.getMessage());
+          store(args, req);
+        } finally {
+          // aggregates that include the new data must be read again
+          invalidateCaches(args.optJSONObject(0) != null ? args.optJSONObject(0).optString("dataType", null) : null);
         }
       });
       return true;
-    } else if ("store".equals(action)) {
-      cordova.getThreadPool().execute(() -> {
+    } else if ("delete".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      runInBackground(req, () -> {
         try {
-          connectAPI();
-          store(args);
-        } catch (Exception ex) {
-          callbackContext.error(ex.getMessage());
+          delete(args, req);
+        } finally {
+          invalidateCaches(args.optJSONObject(0) != null ? args.optJSONObject(0).optString("dataType", null) : null);
         }
       });
       return true;
-    } else if ("delete".equals(action)) {
-      cordova.getThreadPool().execute(() -> {
+    } else if ("importFromFile".equals(action)) {
+      RequestContext req = newRequest(action, args, callbackContext);
+      Set<String> importedTypes = new HashSet<>();
+      runInBackground(req, () -> {
         try {
-          connectAPI();
-          delete(args);
-        } catch (Exception ex) {
-          callbackContext.error(ex.getMessage());
+          importFromFile(args, req, importedTypes);
+        } finally {
+          // once for the whole file, only for the types found in it
+          for (String type : importedTypes) {
+            invalidateRecordType(type);
+          }
         }
       });
       return true;
+    } else if ("cancel".equals(action)) {
+      String handle = args.optString(0, null);
+      RequestContext req = handle != null ? inflight.get(handle) : null;
+      boolean cancelled = req != null && req.cancel();
+      callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, cancelled));
+    } else if ("getMetrics".equals(action)) {
+      JSONObject opts = args.optJSONObject(0);
+      boolean reset = opts != null && opts.optBoolean("reset", false);
+      long pushInterval = opts != null ? opts.optLong("pushInterval", 0) : 0;
+      if (pushInterval > 0) {
+        startMetricsPush(pushInterval, reset, callbackContext);
+      } else {
+        try {
+          callbackContext.success(metricsSnapshot());
+          if (reset) {
+            resetMetrics();
+          }
+        } catch (JSONException ex) {
+          callbackContext.error("Cannot serialize metrics " + ex.getMessage());
+        }
+      }
+    } else if ("stopMetricsPush".equals(action)) {
+      stopMetricsPush();
+      callbackContext.success();
     } else {
       // Unsupported action
       return false;
@@ -244,15 +413,177 @@ public class HealthPlugin extends CordovaPlugin {
     return true;
   }
 
+  @Override
+  public void onDestroy() {
+    stopMetricsPush();
+    if (deadlineTimer != null) {
+      deadlineTimer.shutdownNow();
+    }
+    if (metricsPusher != null) {
+      metricsPusher.shutdownNow();
+    }
+    super.onDestroy();
+  }
+
+  /**
+   * Creates the context of a request, used to collect metrics, to schedule its calls, to cancel it and to enforce its deadline
+   */
+  private RequestContext newRequest(String action, JSONArray args, CallbackContext callbackContext) {
+    JSONObject opts = args.optJSONObject(0);
+    String dataType = opts != null ? opts.optString("dataType", "").toLowerCase() : "";
+    if (!dataType.isEmpty() && dataTypeNameToClass(dataType) == null) {
+      // metrics are kept for the life of the app, they cannot have a key per arbitrary string
+      dataType = "other";
+    }
+    String handle = opts != null && opts.has("handle") ? opts.optString("handle") : null;
+    RequestContext req = new RequestContext(callbackContext, webView, runtimeMetrics.get(action, dataType), handle);
+    // background imports and backfills should not take the quota of what the user is looking at
+    String priority = opts != null ? opts.optString("priority", "importFromFile".equals(action) ? "bulk" : "") : "";
+    boolean bulk = "bulk".equals(priority);
+    req.setScheduler(scheduler, bulk ? RequestScheduler.Lane.BULK : RequestScheduler.Lane.INTERACTIVE);
+    long timeoutMs = opts != null ? opts.optLong("timeoutMs", 0) : 0;
+    if (timeoutMs > 0) {
+      synchronized (this) {
+        if (deadlineTimer == null) {
+          deadlineTimer = Executors.newSingleThreadScheduledExecutor();
+        }
+      }
+      req.setTimeout(timeoutMs, deadlineTimer);
+    }
+    return req;
+  }
+
+  /**
+   * Receives the records read by a query
+   */
+  private interface RowSink {
+    void accept(RecordRow row) throws JSONException;
+  }
+
+  /**
+   * Work done by a request
+   */
+  private interface RequestTask {
+    void run() throws Exception;
+  }
+
+  /**
+   * Runs a request in the background, requests with a handle can be cancelled while they run
+   */
+  private void runInBackground(RequestContext req, RequestTask task) {
+    if (req.getHandle() != null) {
+      inflight.put(req.getHandle(), req);
+    }
+    cordova.getThreadPool().execute(() -> {
+      req.bindWorker();
+      try {
+        req.checkCancelled();
+        connectAPI();
+        task.run();
+      } catch (CancellationException ex) {
+        Log.d(TAG, "Request cancelled " + req.getHandle());
+      } catch (Exception ex) {
+        req.error(ex.getMessage());
+      } finally {
+        req.unbindWorker();
+        if (req.getHandle() != null) {
+          inflight.remove(req.getHandle(), req);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return metrics of all actions and of the scheduler
+   */
+  private JSONObject metricsSnapshot() throws JSONException {
+    JSONObject obj = runtimeMetrics.toJSON();
+    obj.put("scheduler", scheduler.toJSON());
+    return obj;
+  }
+
+  private void resetMetrics() {
+    runtimeMetrics.reset();
+    scheduler.reset();
+  }
+
+  /**
+   * Starts sending metrics to JS periodically, replaces any previous push, whose callback receives a last snapshot
+   *
+   * @param interval        time between pushes, in ms
+   * @param reset           if true metrics are reset after each push
+   * @param callbackContext callback that receives the metrics
+   */
+  private synchronized void startMetricsPush(long interval, boolean reset, CallbackContext callbackContext) {
+    stopMetricsPush();
+    if (metricsPusher == null) {
+      metricsPusher = Executors.newSingleThreadScheduledExecutor();
+    }
+    metricsPush = metricsPusher.scheduleAtFixedRate(() -> {
+      try {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, metricsSnapshot());
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        if (reset) {
+          resetMetrics();
+        }
+      } catch (JSONException ex) {
+        LOG.e(TAG, "Cannot serialize metrics " + ex.getMessage());
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+
+    metricsPushCallback = callbackContext;
+
+    PluginResult pending = new PluginResult(PluginResult.Status.NO_RESULT);
+    pending.setKeepCallback(true);
+    callbackContext.sendPluginResult(pending);
+  }
+
+  /**
+   * Stops sending metrics, the callback receives a last snapshot so that JS releases it
+   */
+  private synchronized void stopMetricsPush() {
+    if (metricsPush != null) {
+      metricsPush.cancel(false);
+      metricsPush = null;
+    }
+    if (metricsPushCallback != null) {
+      try {
+        metricsPushCallback.success(metricsSnapshot());
+      } catch (JSONException ex) {
+        metricsPushCallback.error("Cannot serialize metrics " + ex.getMessage());
+      }
+      metricsPushCallback = null;
+    }
+  }
+
   /**
    * Connects to the HealthConnect API
    */
   private void connectAPI() {
-    if (healthConnectClient == null) {
-      healthConnectClient = HealthConnectClient.getOrCreate(cordova.getContext());
+    if (backend == null) {
+      backend = new HealthConnectBackend(HealthConnectClient.getOrCreate(cordova.getContext()));
     }
   }
 
+  /**
+   * Replaces the source of health data, used to run the plugin against an in-memory store
+   * when load testing without a device
+   *
+   * @param backend the new backend
+   */
+  public void setBackend(HealthBackend backend) {
+    this.backend = backend;
+  }
+
+
+  /**
+   * @return a name shared by all the aliases of a data type, null if the data type is not supported
+   */
+  private String canonicalDataType(String name) {
+    KClass<? extends androidx.health.connect.client.records.Record> dt = dataTypeNameToClass(name);
+    return dt != null ? kotlin.jvm.JvmClassMappingKt.getJavaClass(dt).getSimpleName() : null;
+  }
 
   // DATA_TYPE add here when supporting new ones
   private KClass<? extends androidx.health.connect.client.records.Record> dataTypeNameToClass(String name) {
@@ -296,19 +627,16 @@ public class HealthPlugin extends CordovaPlugin {
   /**
    * Checks if permissions have been granted, if request is true, permissions are also requested
    *
-   * @param args    json array coming from the plugin
-   * @param request if true also requests permissions
+   * @param args            json array coming from the plugin
+   * @param request         if true also requests permissions
+   * @param callbackContext the callback context of the request
    */
-  private void checkAuthorization(final JSONArray args, boolean request) {
+  private void checkAuthorization(final JSONArray args, boolean request, final CallbackContext callbackContext) {
     try {
       Log.d(TAG, "checking authorization");
       JSONObject readWriteObj = args.getJSONObject(0);
 
-      // see https://kt.academy/article/cc-other-languages
-      Set<String> grantedPermissions = BuildersKt.runBlocking(
-        EmptyCoroutineContext.INSTANCE,
-        (s, c) -> healthConnectClient.getPermissionController().getGrantedPermissions(c)
-      );
+      Set<String> grantedPermissions = backend.getGrantedPermissions();
 
       Set<String> permissionsToRequest = new HashSet<>();
 
@@ -367,9 +695,13 @@ public class HealthPlugin extends CordovaPlugin {
     }
   }
 
-  private void query(final JSONArray args) {
+  private void query(final JSONArray args, final RequestContext callbackContext) {
 
     try {
+      long parseStart = System.nanoTime();
+      if (args.getJSONObject(0).optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
       if (!args.getJSONObject(0).has("startDate")) {
         callbackContext.error("Missing argument startDate");
         return;
@@ -394,195 +726,122 @@ public class HealthPlugin extends CordovaPlugin {
         return;
       }
 
-      int limit = 1000;
-      if (args.getJSONObject(0).has("limit")) {
-        limit = args.getJSONObject(0).getInt("limit");
-      }
-      boolean ascending = false;
-      if (args.getJSONObject(0).has("ascending")) {
-        ascending = args.getJSONObject(0).getBoolean("ascending");
-      }
+      final int limit = args.getJSONObject(0).has("limit") ? args.getJSONObject(0).getInt("limit") : 1000;
+      final boolean ascending = args.getJSONObject(0).has("ascending") && args.getJSONObject(0).getBoolean("ascending");
 
-      if (this.healthConnectClient == null) {
+      if (this.backend == null) {
         callbackContext.error("You must call requestAuthorization() before query()");
         return;
       }
 
-      TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
-      HashSet<DataOrigin> dor = new HashSet<>();
-
-      ReadRecordsRequest request = new ReadRecordsRequest(dt, timeRange, dor, ascending, limit, null);
-      // see https://kt.academy/article/cc-other-languages
-      ReadRecordsResponse response = BuildersKt.runBlocking(
-        EmptyCoroutineContext.INSTANCE,
-        (s, c) -> healthConnectClient.readRecords(request, c)
-      );
-
-      Log.d(TAG, "Data query successful");
-      JSONArray resultset = new JSONArray();
-
-      for (Object datapointObj : response.getRecords()) {
-        if (datapointObj instanceof androidx.health.connect.client.records.Record) {
-          androidx.health.connect.client.records.Record datapoint = (androidx.health.connect.client.records.Record) datapointObj;
-          JSONObject obj = new JSONObject();
-
-          String id = datapoint.getMetadata().getId();
-          if (id != null) {
-            obj.put("id", id);
-          }
-
-          Device dev = datapoint.getMetadata().getDevice();
-          if (dev != null) {
-            String device = "";
-            String manufacturer = dev.getManufacturer();
-            String model = dev.getModel();
-            if (manufacturer != null || model != null) {
-              obj.put("sourceDevice", manufacturer + " " + model);
-            }
-          }
-
-          DataOrigin origin = datapoint.getMetadata().getDataOrigin();
-          if (origin != null) {
-            obj.put("sourceBundleId", origin.getPackageName());
-          }
-
-          int methodInt = datapoint.getMetadata().getRecordingMethod();
-          String method = "unknown";
-          switch (methodInt) {
-            case 1:
-              method = "actively_recorded";
-              break;
-            case 2:
-              method = "automatically_recorded";
-              break;
-            case 3:
-              method = "manual_entry";
-              break;
-          }
-          obj.put("entryMethod", method);
-
-          // DATA_TYPES here we need to add support for each different data type
-          if (datapoint instanceof StepsRecord) {
-            StepsRecord stepsDP = (StepsRecord) datapoint;
-            obj.put("startDate", stepsDP.getStartTime().toEpochMilli());
-            obj.put("endDate", stepsDP.getEndTime().toEpochMilli());
-
-            long steps = stepsDP.getCount();
-            obj.put("value", steps);
-            obj.put("unit", "count");
-          } else if (datapoint instanceof WeightRecord) {
-            WeightRecord weightDP = (WeightRecord) datapoint;
-            obj.put("startDate", weightDP.getTime().toEpochMilli());
-            obj.put("endDate", weightDP.getTime().toEpochMilli());
-
-            double kgs = weightDP.getWeight().getKilograms();
-            obj.put("value", kgs);
-            obj.put("unit", "kg");
-          } else if (datapoint instanceof DistanceRecord) {
-            DistanceRecord distanceDP = (DistanceRecord) datapoint;
-            obj.put("startDate", distanceDP.getStartTime().toEpochMilli());
-            obj.put("endDate", distanceDP.getEndTime().toEpochMilli());
-
-            double m = distanceDP.getDistance().getMeters();
-            obj.put("value", m);
-            obj.put("unit", "m");
-          } else if (datapoint instanceof FloorsClimbedRecord) {
-            FloorsClimbedRecord climbedDP = (FloorsClimbedRecord) datapoint;
-            obj.put("startDate", climbedDP.getStartTime().toEpochMilli());
-            obj.put("endDate", climbedDP.getEndTime().toEpochMilli());
-
-            double floors = climbedDP.getFloors();
-            obj.put("value", floors);
-            obj.put("unit", "count");
-          } else if (datapoint instanceof BodyFatRecord) {
-            BodyFatRecord bodyFatDP = (BodyFatRecord) datapoint;
-            obj.put("startDate", bodyFatDP.getTime().toEpochMilli());
-            obj.put("endDate", bodyFatDP.getTime().toEpochMilli());
-
-            double perc = bodyFatDP.getPercentage().getValue();
-            obj.put("value", perc);
-            obj.put("unit", "%");
-          } else if (datapoint instanceof ExerciseSessionRecord) {
-            ExerciseSessionRecord activityDP = (ExerciseSessionRecord) datapoint;
-            obj.put("startDate", activityDP.getStartTime().toEpochMilli());
-            obj.put("endDate", activityDP.getEndTime().toEpochMilli());
-
-            int exType = activityDP.getExerciseType();
-            String activityStr = ActivityMapper.activityFromExerciseType(exType);
-
-            obj.put("value", activityStr);
-            obj.put("unit", "activityType");
-          } else if (datapoint instanceof ActiveCaloriesBurnedRecord) {
-            ActiveCaloriesBurnedRecord caloriesDP = (ActiveCaloriesBurnedRecord) datapoint;
-            obj.put("startDate", caloriesDP.getStartTime().toEpochMilli());
-            obj.put("endDate", caloriesDP.getEndTime().toEpochMilli());
-
-            double kcals = caloriesDP.getEnergy().getKilocalories();
-
-            obj.put("value", kcals);
-            obj.put("unit", "kcal");
-          } else if (datapoint instanceof BasalMetabolicRateRecord) {
-            BasalMetabolicRateRecord basalRateDP = (BasalMetabolicRateRecord) datapoint;
-            obj.put("startDate", basalRateDP.getTime().toEpochMilli());
-            obj.put("endDate", basalRateDP.getTime().toEpochMilli());
-
-            Power pow = basalRateDP.getBasalMetabolicRate();
-            if (pow != null) {
-              obj.put("value", pow.getKilocaloriesPerDay());
-              obj.put("unit", "kcal/day");
-            }
-          } else if (datapoint instanceof HeartRateRecord) {
-            HeartRateRecord heartDP = (HeartRateRecord) datapoint;
-
-            for (HeartRateRecord.Sample sample : heartDP.getSamples()) {
-              obj.put("startDate", sample.getTime().toEpochMilli());
-              obj.put("endDate", sample.getTime().toEpochMilli());
-              obj.put("unit", "count/min");
-              obj.put("value", sample.getBeatsPerMinute());
-            }
-
-          } else if (datapoint instanceof OxygenSaturationRecord) {
-            OxygenSaturationRecord oxygenSaturationDP = (OxygenSaturationRecord) datapoint;
-            obj.put("startDate", oxygenSaturationDP.getTime().toEpochMilli());
-            obj.put("endDate", oxygenSaturationDP.getTime().toEpochMilli());
-
-            Percentage perc = oxygenSaturationDP.getPercentage();
-            obj.put("value", perc);
-            obj.put("unit", "percentage");
-          } else if (datapoint instanceof SleepSessionRecord) {
-            SleepSessionRecord sleepDP = (SleepSessionRecord) datapoint;
-
-            for (SleepSessionRecord.Stage stage : sleepDP.getStages()) {
-              String sleep_stage = switch (stage.getStage()) {
-                case SleepSessionRecord.STAGE_TYPE_UNKNOWN -> "unknown";
-                case SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED -> "sleep.inBed";
-                case SleepSessionRecord.STAGE_TYPE_AWAKE,
-                  SleepSessionRecord.STAGE_TYPE_OUT_OF_BED -> "sleep.awake";
-                case SleepSessionRecord.STAGE_TYPE_SLEEPING -> "sleep";
-                case SleepSessionRecord.STAGE_TYPE_LIGHT -> "sleep.light";
-                case SleepSessionRecord.STAGE_TYPE_DEEP -> "sleep.deep";
-                case SleepSessionRecord.STAGE_TYPE_REM -> "sleep.rem";
-                default -> "";
-              };
-
-              obj.put("startDate", stage.getStartTime().toEpochMilli());
-              obj.put("endDate", stage.getEndTime().toEpochMilli());
-              obj.put("value", sleep_stage);
-              obj.put("unit", "sleepType");
-            }
-          } else {
-            callbackContext.error("Sample received of unknown type " + datatype.toString());
+      HashSet<DataOrigin> dor = dataOrigins(args.getJSONObject(0));
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      QueryCursor cursor = new QueryCursor(datatype, dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor, ascending, limit);
+      cursor.prefetch = Math.max(0, Math.min(args.getJSONObject(0).optInt("prefetch", 0), MAX_PREFETCH_DEPTH));
+      cursor.lane = callbackContext.getLane();
+      JSONArray fields = args.getJSONObject(0).optJSONArray("fields");
+      if (fields != null) {
+        cursor.fields = new ArrayList<>();
+        for (int i = 0; i < fields.length(); i++) {
+          String field = fields.getString(i);
+          if (!RecordRow.FIELDS.contains(field)) {
+            callbackContext.error("Unknown field " + field);
             return;
           }
-
-          // add to array
-          resultset.put(obj);
-        } else {
-          Log.e(TAG, "Unrecognized type for record " + datapointObj.getClass());
+          cursor.fields.add(field);
+        }
+      }
+      JSONObject filter = args.getJSONObject(0).optJSONObject("filter");
+      if (filter != null) {
+        try {
+          cursor.filter = new RecordFilter(filter);
+        } catch (IllegalArgumentException ex) {
+          callbackContext.error(ex.getMessage());
+          return;
+        }
+      }
+      JSONObject topN = args.getJSONObject(0).optJSONObject("topN");
+      // each of these changes what is returned, so they cannot be combined
+      List<String> modes = new ArrayList<>();
+      if (topN != null) modes.add("topN");
+      if (args.getJSONObject(0).has("downsample")) modes.add("downsample");
+      if (args.getJSONObject(0).has("dedup")) modes.add("dedup");
+      if (args.getJSONObject(0).optBoolean("localCache", false)) modes.add("localCache");
+      if (args.getJSONObject(0).optBoolean("stream", false)) modes.add("stream");
+      if (modes.size() > 1) {
+        callbackContext.error("Options " + String.join(", ", modes) + " cannot be used together");
+        return;
+      }
+      if (topN != null) {
+        String key = topN.optString("key", "value");
+        int n = topN.optInt("n", 10);
+        if (!TopSelector.KEYS.contains(key) || n < 1 || n > MAX_PAGE_SIZE) {
+          callbackContext.error("topN needs a key among " + TopSelector.KEYS + " and n between 1 and " + MAX_PAGE_SIZE);
+          return;
+        }
+        // all records are scanned, in pages as big as possible, the next one read while the current one is ranked
+        cursor.limit = MAX_PAGE_SIZE;
+        cursor.prefetch = Math.max(1, cursor.prefetch);
+        selectTop(cursor, new TopSelector(key, n, !"asc".equals(topN.optString("order", "desc"))), callbackContext);
+      } else if (args.getJSONObject(0).has("downsample")) {
+        if (datatype.equalsIgnoreCase("activity") || datatype.equalsIgnoreCase("sleep")) {
+          callbackContext.error("Datatype " + datatype + " has no numeric values");
+          return;
+        }
+        Object ds = args.getJSONObject(0).get("downsample");
+        JSONObject dsOpts = ds instanceof JSONObject ? (JSONObject) ds : new JSONObject().put("points", ds);
+        Downsampler downsampler;
+        try {
+          downsampler = new Downsampler(st, et, dsOpts.optInt("points", 400), dsOpts.optString("mode", Downsampler.LTTB));
+        } catch (IllegalArgumentException ex) {
+          callbackContext.error(ex.getMessage());
+          return;
+        }
+        // all records are scanned in time order, in pages as big as possible, the next one read while the current one is reduced
+        QueryCursor scan = new QueryCursor(datatype, dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor, true, MAX_PAGE_SIZE);
+        scan.prefetch = Math.max(1, cursor.prefetch);
+        scan.lane = cursor.lane;
+        scan.filter = cursor.filter;
+        downsample(scan, downsampler, callbackContext);
+      } else if (args.getJSONObject(0).has("dedup")) {
+        if (!datatype.equalsIgnoreCase("steps") && !datatype.equalsIgnoreCase("distance")
+          && !datatype.equalsIgnoreCase("calories.active") && !datatype.equalsIgnoreCase("stairs")) {
+          callbackContext.error("Datatype " + datatype + " cannot be deduplicated");
+          return;
+        }
+        Object dedup = args.getJSONObject(0).get("dedup");
+        JSONArray priority = dedup instanceof JSONObject ? ((JSONObject) dedup).optJSONArray("priority") : args.getJSONObject(0).optJSONArray("dedup");
+        List<String> sources = new ArrayList<>();
+        if (priority != null) {
+          for (int i = 0; i < priority.length(); i++) {
+            sources.add(priority.getString(i));
+          }
+        }
+        // all records are scanned, in pages as big as possible, the next one read while the current one is collected,
+        // the limit applies to the records returned
+        int maxResults = cursor.limit;
+        cursor.limit = MAX_PAGE_SIZE;
+        cursor.prefetch = Math.max(1, cursor.prefetch);
+        dedup(cursor, new OverlapResolver(sources), maxResults, callbackContext);
+      } else if (args.getJSONObject(0).optBoolean("localCache", false)) {
+        if (datatype.equalsIgnoreCase("activity") || datatype.equalsIgnoreCase("sleep")) {
+          callbackContext.error("Datatype " + datatype + " has no numeric values");
+          return;
+        }
+        if (cursor.filter != null) {
+          callbackContext.error("localCache cannot be used with a filter");
+          return;
         }
+        queryLocalCache(cursor, callbackContext);
+      } else if (args.getJSONObject(0).optBoolean("stream", false)) {
+        // keep reading while JS processes the pages it has credit for
+        cursor.prefetch = Math.max(1, cursor.prefetch);
+        callbackContext.grantCredit(args.getJSONObject(0).optInt("credit", 2));
+        streamQuery(cursor, callbackContext);
+      } else {
+        readNext(cursor, null, callbackContext);
       }
-      // done:
-      callbackContext.success(resultset);
     } catch (JSONException ex) {
       callbackContext.error("Could not parse query object");
     } catch (InterruptedException ex2) {
@@ -590,48 +849,1280 @@ public class HealthPlugin extends CordovaPlugin {
     }
   }
 
-  private void queryAggregated(final JSONArray args) {
+  /**
+   * Computes count, mean, variance, standard deviation, min and max of the values of a data type,
+   * and optionally percentiles and a histogram, reading all records natively, optionally by time bucket
+   *
+   * @param args            the query
+   * @param callbackContext the callback context
+   */
+  private void stats(final JSONArray args, final RequestContext callbackContext) {
     try {
-      if (!args.getJSONObject(0).has("startDate")) {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("startDate")) {
         callbackContext.error("Missing argument startDate");
         return;
       }
-      long st = args.getJSONObject(0).getLong("startDate");
+      long st = opts.getLong("startDate");
 
-      if (!args.getJSONObject(0).has("endDate")) {
+      if (!opts.has("endDate")) {
         callbackContext.error("Missing argument endDate");
         return;
       }
-      long et = args.getJSONObject(0).getLong("endDate");
+      long et = opts.getLong("endDate");
 
-      if (!args.getJSONObject(0).has("dataType")) {
+      if (!opts.has("dataType")) {
         callbackContext.error("Missing argument dataType");
         return;
       }
-      String datatype = args.getJSONObject(0).getString("dataType");
+      String datatype = opts.getString("dataType");
       KClass<? extends Record> dt = dataTypeNameToClass(datatype);
       if (dt == null) {
         callbackContext.error("Datatype " + datatype + " not supported");
         return;
       }
+      if (datatype.equalsIgnoreCase("activity") || datatype.equalsIgnoreCase("sleep")) {
+        callbackContext.error("Datatype " + datatype + " has no numeric values");
+        return;
+      }
 
-      boolean hasbucket = args.getJSONObject(0).has("bucket");
+      JSONObject histogram = opts.optJSONObject("histogram");
+      JSONArray percentiles = opts.optJSONArray("percentiles");
+      long maxBuckets = TimeBuckets.maxCount(st, et, opts.has("bucket") ? opts.getString("bucket") : null);
+      if (maxBuckets > MAX_STATS_BUCKETS || (histogram != null || percentiles != null) && maxBuckets > MAX_SKETCHED_BUCKETS) {
+        callbackContext.error("Too many buckets, use a larger bucket or a shorter time range");
+        return;
+      }
 
-      HashSet<DataOrigin> dor = new HashSet<>();
+      TimeBuckets buckets;
+      RecordFilter filter = null;
+      try {
+        buckets = new TimeBuckets(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), opts.has("bucket") ? opts.getString("bucket") : null);
+        if (opts.optJSONObject("filter") != null) {
+          filter = new RecordFilter(opts.getJSONObject("filter"));
+        }
+        if (histogram != null) {
+          // validates the parameters
+          new FixedHistogram(histogram.getDouble("min"), histogram.getDouble("max"), histogram.optInt("bins", 10));
+        }
+      } catch (IllegalArgumentException ex) {
+        callbackContext.error(ex.getMessage());
+        return;
+      }
+      if (percentiles != null) {
+        for (int i = 0; i < percentiles.length(); i++) {
+          double p = percentiles.getDouble(i);
+          if (p < 0 || p > 100) {
+            callbackContext.error("Percentiles must be between 0 and 100");
+            return;
+          }
+        }
+      }
 
-      if (hasbucket) {
-        String bucketType = args.getJSONObject(0).getString("bucket");
-        ZonedDateTime stZDT = ZonedDateTime.ofInstant(Instant.ofEpochMilli(st), ZoneId.systemDefault());
-        ZonedDateTime etZDT = ZonedDateTime.ofInstant(Instant.ofEpochMilli(et), ZoneId.systemDefault());
-        // reset unused fields
-        // int year, Month month, int dayOfMonth, int hour, int minute, int second
-        LocalDateTime stLDT;
-        LocalDateTime etLDT = LocalDateTime.from(etZDT);
-        if (bucketType.equalsIgnoreCase("hour")) {
-          stLDT = LocalDateTime.of(stZDT.getYear(), stZDT.getMonth(), stZDT.getDayOfMonth(), stZDT.getHour(), 0, 0, 0);
-          // etLDT = LocalDateTime.of(etZDT.getYear(), etZDT.getMonth(), etZDT.getDayOfMonth(), etZDT.getHour(), 0, 0, 0);
-        } else if (bucketType.equalsIgnoreCase("day")) {
-          stLDT = LocalDateTime.of(stZDT.getYear(), stZDT.getMonth(), stZDT.getDayOfMonth(), 0, 0, 0, 0);
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before stats()");
+        return;
+      }
+
+      // all pages are read, as big as possible, the next one while the current one is processed
+      QueryCursor cursor = new QueryCursor(datatype, dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et),
+        dataOrigins(opts), true, MAX_PAGE_SIZE);
+      cursor.prefetch = 1;
+      cursor.lane = callbackContext.getLane();
+      cursor.filter = filter;
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      RunningStats[] accumulators = new RunningStats[buckets.size()];
+      // sketches and histograms have a bounded size, whatever the number of samples, and are created by the first sample
+      KllSketch[] sketches = percentiles != null ? new KllSketch[buckets.size()] : null;
+      FixedHistogram[] histograms = histogram != null ? new FixedHistogram[buckets.size()] : null;
+      double histMin = histogram != null ? histogram.getDouble("min") : 0;
+      double histMax = histogram != null ? histogram.getDouble("max") : 0;
+      int bins = histogram != null ? histogram.optInt("bins", 10) : 0;
+      for (int i = 0; i < accumulators.length; i++) {
+        accumulators[i] = new RunningStats();
+      }
+      String[] unit = new String[1];
+      boolean partial;
+      do {
+        try {
+          partial = !readPage(cursor, callbackContext, row -> {
+            if (unit[0] == null) unit[0] = (String) row.get("unit");
+            row.forEachSample((time, value) -> {
+              int b = buckets.indexOf(time);
+              if (b < 0) return;
+              accumulators[b].add(value);
+              if (sketches != null) {
+                if (sketches[b] == null) sketches[b] = new KllSketch();
+                sketches[b].add(value);
+              }
+              if (histograms != null) {
+                if (histograms[b] == null) histograms[b] = new FixedHistogram(histMin, histMax, bins);
+                histograms[b].add(value);
+              }
+            });
+          });
+        } catch (InterruptedException ex) {
+          if (!callbackContext.isExpired()) throw ex;
+          partial = true;
+        }
+      } while (!partial && cursor.hasMore());
+      cursor.closePrefetcher();
+
+      long serStart = System.nanoTime();
+      JSONArray retBucketsArr = new JSONArray();
+      for (int i = 0; i < accumulators.length; i++) {
+        JSONObject retObject = new JSONObject();
+        retObject.put("startDate", buckets.getStart(i));
+        retObject.put("endDate", buckets.getEnd(i));
+        accumulators[i].toJSON(retObject);
+        if (sketches != null && sketches[i] != null) {
+          JSONObject pct = new JSONObject();
+          for (int j = 0; j < percentiles.length(); j++) {
+            double p = percentiles.getDouble(j);
+            pct.put("p" + (p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p)), sketches[i].quantile(p / 100));
+          }
+          retObject.put("percentiles", pct);
+        }
+        if (histograms != null) {
+          retObject.put("histogram", (histograms[i] != null ? histograms[i] : new FixedHistogram(histMin, histMax, bins)).toJSON());
+        }
+        if (unit[0] != null) {
+          retObject.put("unit", unit[0]);
+        }
+        retBucketsArr.put(retObject);
+      }
+      if (partial) {
+        Log.d(TAG, "Deadline expired, returning stats of " + callbackContext.getRecords() + " records");
+        callbackContext.putExtra("partial", true);
+      }
+      if (opts.has("bucket")) {
+        callbackContext.sendResult(retBucketsArr, serStart);
+      } else {
+        callbackContext.sendResult(retBucketsArr.getJSONObject(0), serStart);
+      }
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object or write response object");
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Computes the time in heart rate zones, average, max and drift of each exercise session in a time range.
+   * Heart rate pages are read in the background while sessions are read, and the samples are
+   * then swept through the sessions, so that only the summaries are sent to JS
+   *
+   * @param args            the time range and the zones
+   * @param callbackContext the callback context
+   */
+  private void analyzeSessions(final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("startDate")) {
+        callbackContext.error("Missing argument startDate");
+        return;
+      }
+      long st = opts.getLong("startDate");
+
+      if (!opts.has("endDate")) {
+        callbackContext.error("Missing argument endDate");
+        return;
+      }
+      long et = opts.getLong("endDate");
+
+      double[] zoneBounds;
+      JSONArray zones = opts.optJSONArray("zones");
+      if (zones != null) {
+        zoneBounds = new double[zones.length()];
+        for (int i = 0; i < zoneBounds.length; i++) {
+          zoneBounds[i] = zones.getDouble(i);
+          if (i > 0 && zoneBounds[i] <= zoneBounds[i - 1]) {
+            callbackContext.error("Zones must be in ascending order");
+            return;
+          }
+        }
+      } else {
+        // the usual five zones, at 50, 60, 70, 80 and 90% of the max heart rate
+        double maxHeartRate = opts.optDouble("maxHeartRate", 190);
+        zoneBounds = new double[]{0.5 * maxHeartRate, 0.6 * maxHeartRate, 0.7 * maxHeartRate, 0.8 * maxHeartRate, 0.9 * maxHeartRate};
+      }
+      // when the sensor loses contact the time is not counted in any zone
+      long maxGap = opts.optLong("maxGap", 5 * 60 * 1000);
+
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before analyzeSessions()");
+        return;
+      }
+
+      HashSet<DataOrigin> dor = dataOrigins(opts);
+      QueryCursor sessionCursor = new QueryCursor("activity", dataTypeNameToClass("activity"),
+        Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor, true, MAX_PAGE_SIZE);
+      sessionCursor.lane = callbackContext.getLane();
+      QueryCursor hrCursor = new QueryCursor("heart_rate", dataTypeNameToClass("heart_rate"),
+        Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor, true, MAX_PAGE_SIZE);
+      hrCursor.prefetch = 1;
+      hrCursor.lane = callbackContext.getLane();
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      // the first heart rate page is read while the sessions are read
+      startPrefetcher(hrCursor);
+      SessionAnalyzer analyzer;
+      boolean partial = false;
+      try {
+        List<ExerciseSessionRecord> sessions = new ArrayList<>();
+        do {
+          try {
+            partial = !readPage(sessionCursor, callbackContext, row -> sessions.add((ExerciseSessionRecord) row.getRecord()));
+          } catch (InterruptedException ex) {
+            if (!callbackContext.isExpired()) throw ex;
+            partial = true;
+          }
+        } while (!partial && sessionCursor.hasMore());
+        analyzer = new SessionAnalyzer(sessions, zoneBounds, maxGap);
+
+        long lastSession = analyzer.getEnd();
+        long[] lastSample = {Long.MIN_VALUE};
+        while (!partial && !sessions.isEmpty() && hrCursor.hasMore() && lastSample[0] <= lastSession) {
+          try {
+            partial = !readPage(hrCursor, callbackContext, row -> row.forEachSample((time, value) -> {
+              analyzer.addSample(time, value);
+              lastSample[0] = Math.max(lastSample[0], time);
+            }));
+          } catch (InterruptedException ex) {
+            if (!callbackContext.isExpired()) throw ex;
+            partial = true;
+          }
+        }
+      } finally {
+        hrCursor.closePrefetcher();
+      }
+
+      long serStart = System.nanoTime();
+      JSONArray resultset = analyzer.toJSON();
+      if (partial) {
+        Log.d(TAG, "Deadline expired, returning sessions analyzed from " + callbackContext.getRecords() + " records");
+        callbackContext.putExtra("partial", true);
+      }
+      callbackContext.sendResult(resultset, serStart);
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object or write response object");
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Finds which hours (or days...) of a time range have any data of a type, optionally for each source app.
+   * Types that can be aggregated are counted with a single aggregation call, the others are read page by page,
+   * only the time of each record is used
+   *
+   * @param args            the time range, data type and resolution
+   * @param callbackContext the callback context
+   */
+  private void coverage(final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("startDate")) {
+        callbackContext.error("Missing argument startDate");
+        return;
+      }
+      long st = opts.getLong("startDate");
+
+      if (!opts.has("endDate")) {
+        callbackContext.error("Missing argument endDate");
+        return;
+      }
+      long et = opts.getLong("endDate");
+
+      if (!opts.has("dataType")) {
+        callbackContext.error("Missing argument dataType");
+        return;
+      }
+      String datatype = opts.getString("dataType");
+      KClass<? extends Record> dt = dataTypeNameToClass(datatype);
+      if (dt == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
+      }
+
+      String resolution = opts.optString("resolution", "hour").toLowerCase();
+      if (resolution.equals("hour") && et - st > CoverageMap.MAX_SLOTS * 3600000L) {
+        callbackContext.error("Time range too long for hourly coverage, use a larger resolution");
+        return;
+      }
+      TimeBuckets slots;
+      try {
+        slots = new TimeBuckets(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), resolution);
+      } catch (IllegalArgumentException ex) {
+        callbackContext.error(ex.getMessage());
+        return;
+      }
+      boolean bySource = opts.optBoolean("bySource", false);
+
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before coverage()");
+        return;
+      }
+
+      HashSet<DataOrigin> dor = dataOrigins(opts);
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+      CoverageMap map = new CoverageMap(slots);
+      Set<AggregateMetric<?>> metrics = aggregateMetrics(datatype);
+      boolean partial = false;
+      if (metrics != null && !bySource && slots.size() > 0) {
+        // a bucket has a value only if there is data in it
+        LocalDateTime from = LocalDateTime.ofInstant(Instant.ofEpochMilli(slots.getStart(0)), ZoneId.systemDefault());
+        LocalDateTime to = LocalDateTime.ofInstant(Instant.ofEpochMilli(et), ZoneId.systemDefault());
+        List<AggregateBucket> response;
+        if (resolution.equals("hour")) {
+          response = callbackContext.ipc("aggregateGroupByDuration",
+            () -> backend.aggregateGroupByDuration(metrics, from, to, Duration.ofHours(1), dor));
+        } else {
+          Period period = TimeBuckets.period(resolution);
+          response = callbackContext.ipc("aggregateGroupByPeriod",
+            () -> backend.aggregateGroupByPeriod(metrics, from, to, period, dor));
+        }
+        callbackContext.addRecords(response.size());
+        for (AggregateBucket bucket : response) {
+          for (AggregateMetric<?> metric : metrics) {
+            if (bucket.get(metric) != null) {
+              map.mark("", bucket.getStartTime().toEpochMilli(), bucket.getStartTime().toEpochMilli());
+              break;
+            }
+          }
+        }
+      } else {
+        QueryCursor cursor = new QueryCursor(datatype, dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor, true, MAX_PAGE_SIZE);
+        cursor.prefetch = 1;
+        cursor.lane = callbackContext.getLane();
+        do {
+          try {
+            partial = !readPage(cursor, callbackContext, row -> {
+              Record record = row.getRecord();
+              String source = bySource ? String.valueOf(row.get("sourceBundleId")) : "";
+              if (record instanceof HeartRateRecord) {
+                // a series can span a whole day with samples in a few hours only
+                row.forEachSample((time, value) -> map.mark(source, time, time));
+              } else {
+                map.mark(source, RecordUtils.startTime(record).toEpochMilli(), RecordUtils.endTime(record).toEpochMilli());
+              }
+            });
+          } catch (InterruptedException ex) {
+            if (!callbackContext.isExpired()) throw ex;
+            partial = true;
+          }
+        } while (!partial && cursor.hasMore());
+        cursor.closePrefetcher();
+      }
+
+      long serStart = System.nanoTime();
+      if (partial) {
+        Log.d(TAG, "Deadline expired, returning coverage of " + callbackContext.getRecords() + " records");
+        callbackContext.putExtra("partial", true);
+      }
+      if (bySource) {
+        JSONArray retSources = new JSONArray();
+        for (Map.Entry<String, BitSet> entry : map.getSources().entrySet()) {
+          JSONObject retObject = map.toJSON(entry.getValue());
+          retObject.put("source", entry.getKey());
+          retSources.put(retObject);
+        }
+        callbackContext.sendResult(retSources, serStart);
+      } else {
+        callbackContext.sendResult(map.toJSON(map.getSources().get("")), serStart);
+      }
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object or write response object");
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Writes all the records of a query to a file in the app storage, page by page, instead of returning them
+   *
+   * @param args            the query, with the format of the file
+   * @param callbackContext the callback context
+   */
+  private void exportToFile(final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("startDate")) {
+        callbackContext.error("Missing argument startDate");
+        return;
+      }
+      long st = opts.getLong("startDate");
+
+      if (!opts.has("endDate")) {
+        callbackContext.error("Missing argument endDate");
+        return;
+      }
+      long et = opts.getLong("endDate");
+
+      if (!opts.has("dataType")) {
+        callbackContext.error("Missing argument dataType");
+        return;
+      }
+      String datatype = opts.getString("dataType");
+      KClass<? extends Record> dt = dataTypeNameToClass(datatype);
+      if (dt == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
+      }
+
+      String format = opts.optString("format", ExportWriter.NDJSON).toLowerCase();
+      if (!ExportWriter.FORMATS.contains(format)) {
+        callbackContext.error("Format must be one of " + ExportWriter.FORMATS);
+        return;
+      }
+      boolean gzip = opts.optBoolean("gzip", false);
+      String fileName = opts.optString("fileName", datatype + "-" + st + "-" + et + "." + format + (gzip ? ".gz" : ""));
+      if (fileName.isEmpty() || fileName.contains("/") || fileName.equals("..")) {
+        callbackContext.error("fileName must be a plain file name");
+        return;
+      }
+
+      QueryCursor cursor = new QueryCursor(datatype, dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dataOrigins(opts),
+        opts.optBoolean("ascending", false), MAX_PAGE_SIZE);
+      // the next page is read while the current one is written
+      cursor.prefetch = 1;
+      cursor.lane = callbackContext.getLane();
+      JSONArray fields = opts.optJSONArray("fields");
+      if (fields != null) {
+        cursor.fields = new ArrayList<>();
+        for (int i = 0; i < fields.length(); i++) {
+          String field = fields.getString(i);
+          if (!RecordRow.FIELDS.contains(field)) {
+            callbackContext.error("Unknown field " + field);
+            return;
+          }
+          cursor.fields.add(field);
+        }
+      }
+      if (opts.optJSONObject("filter") != null) {
+        try {
+          cursor.filter = new RecordFilter(opts.getJSONObject("filter"));
+        } catch (IllegalArgumentException ex) {
+          callbackContext.error(ex.getMessage());
+          return;
+        }
+      }
+
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before exportToFile()");
+        return;
+      }
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      File dir = new File(cordova.getContext().getFilesDir(), "health-export");
+      File file = new File(dir, fileName);
+      // the file only appears once it is complete
+      File part = new File(dir, fileName + ".part");
+      boolean partial = false;
+      boolean done = false;
+      long rows;
+      try {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+          throw new IOException("Cannot create " + dir);
+        }
+        try (ExportWriter writer = new ExportWriter(part, format, gzip, cursor.fields)) {
+          do {
+            try {
+              partial = !readPage(cursor, callbackContext, row -> {
+                try {
+                  writer.write(row);
+                } catch (IOException ex) {
+                  throw new UncheckedIOException(ex);
+                }
+              });
+            } catch (InterruptedException ex) {
+              if (!callbackContext.isExpired()) throw ex;
+              partial = true;
+            }
+          } while (!partial && cursor.hasMore());
+          rows = writer.getRows();
+        }
+        if (!part.renameTo(file)) {
+          throw new IOException("Cannot rename " + part + " to " + file);
+        }
+        done = true;
+      } catch (IOException | UncheckedIOException ex) {
+        Log.e(TAG, "Could not export " + datatype, ex);
+        callbackContext.error("Could not write file: " + ex.getMessage());
+        return;
+      } finally {
+        cursor.closePrefetcher();
+        if (!done) {
+          part.delete();
+        }
+      }
+
+      long serStart = System.nanoTime();
+      JSONObject retObject = new JSONObject();
+      retObject.put("path", file.getAbsolutePath());
+      retObject.put("rows", rows);
+      retObject.put("bytes", file.length());
+      if (partial) {
+        // the file has the records read so far
+        Log.d(TAG, "Deadline expired, exported " + rows + " records");
+        callbackContext.putExtra("partial", true);
+      }
+      callbackContext.sendResult(retObject, serStart);
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object or write response object");
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Finds the activity and sleep sessions overlapping a time range, or containing an instant for at(),
+   * from the session index, which is loaded the first time and then updated with the changes since
+   *
+   * @param action          "overlaps" or "at"
+   * @param args            the time range or instant, and the types of sessions
+   * @param callbackContext the callback context
+   */
+  private void overlaps(String action, final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      long st;
+      long et;
+      if ("at".equals(action)) {
+        if (!opts.has("date")) {
+          callbackContext.error("Missing argument date");
+          return;
+        }
+        st = opts.getLong("date");
+        et = st + 1;
+      } else {
+        if (!opts.has("startDate")) {
+          callbackContext.error("Missing argument startDate");
+          return;
+        }
+        st = opts.getLong("startDate");
+
+        if (!opts.has("endDate")) {
+          callbackContext.error("Missing argument endDate");
+          return;
+        }
+        et = opts.getLong("endDate");
+      }
+
+      Set<String> dataTypes = new HashSet<>();
+      JSONArray types = opts.optJSONArray("dataTypes");
+      if (types != null) {
+        for (int i = 0; i < types.length(); i++) {
+          String type = types.getString(i).toLowerCase();
+          if (!type.equals("activity") && !type.equals("sleep")) {
+            callbackContext.error("Datatype " + type + " is not a session");
+            return;
+          }
+          dataTypes.add(type);
+        }
+      } else {
+        dataTypes.add("activity");
+        dataTypes.add("sleep");
+      }
+      Set<String> sources = new HashSet<>();
+      for (DataOrigin origin : dataOrigins(opts)) {
+        sources.add(origin.getPackageName());
+      }
+
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before " + action + "()");
+        return;
+      }
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      // one request at a time loads or updates the index, the others wait and use it. The wait is interrupted
+      // if the request is cancelled or its deadline expires, as a full load can take long
+      sessionIndexLock.lockInterruptibly();
+      try {
+        if (!sessionIndex.isLoaded()) {
+          loadSessionIndex(callbackContext);
+        } else if (opts.optBoolean("refresh", false) || sessionIndex.isStale(SESSION_INDEX_MAX_AGE_NANOS)) {
+          String token = sessionIndex.getChangesToken();
+          ChangesPage changes;
+          do {
+            final String from = token;
+            changes = callbackContext.ipc("getChanges", () -> backend.getChanges(from));
+            if (changes.isTokenExpired()) break;
+            for (Record record : changes.getUpserted()) {
+              sessionIndex.put(record);
+            }
+            for (String id : changes.getDeletedIds()) {
+              sessionIndex.remove(id);
+            }
+            callbackContext.addRecords(changes.getUpserted().size() + changes.getDeletedIds().size());
+            token = changes.getNextToken();
+          } while (changes.hasMore());
+          if (changes.isTokenExpired()) {
+            Log.d(TAG, "Changes token expired, loading the session index again");
+            loadSessionIndex(callbackContext);
+          } else {
+            sessionIndex.setChangesToken(token);
+          }
+        } else {
+          callbackContext.addCacheHit();
+        }
+      } finally {
+        sessionIndexLock.unlock();
+      }
+
+      long serStart = System.nanoTime();
+      JSONArray resultset = new JSONArray();
+      for (SessionIndex.Entry entry : sessionIndex.overlaps(st, et, dataTypes, sources)) {
+        resultset.put(entry.toJSON());
+      }
+      callbackContext.sendResult(resultset, serStart);
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object or write response object");
+    } catch (InterruptedException ex2) {
+      if (callbackContext.isExpired()) {
+        callbackContext.error("Request timed out");
+      } else {
+        callbackContext.error("Thread interrupted" + ex2.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads all activity and sleep sessions into the session index.
+   * The changes token is taken first, so that changes made while reading are not missed
+   */
+  private void loadSessionIndex(RequestContext callbackContext) throws JSONException, InterruptedException {
+    sessionIndex.clear();
+    List<String> names = Arrays.asList("activity", "sleep");
+    Set<KClass<? extends Record>> classes = new HashSet<>();
+    for (String name : names) {
+      classes.add(dataTypeNameToClass(name));
+    }
+    String token = callbackContext.ipc("getChangesToken", () -> backend.getChangesToken(classes));
+    for (String name : names) {
+      QueryCursor cursor = new QueryCursor(name, dataTypeNameToClass(name),
+        Instant.EPOCH, Instant.now().plus(Duration.ofDays(365)), new HashSet<>(), true, MAX_PAGE_SIZE);
+      cursor.prefetch = 1;
+      cursor.lane = callbackContext.getLane();
+      do {
+        if (!readPage(cursor, callbackContext, row -> sessionIndex.put(row.getRecord()))) {
+          // an incomplete index would give wrong answers later
+          sessionIndex.clear();
+          throw new InterruptedException("Deadline expired");
+        }
+      } while (cursor.hasMore());
+    }
+    sessionIndex.setChangesToken(token);
+    Log.d(TAG, "Session index loaded with " + sessionIndex.size() + " sessions");
+  }
+
+  /**
+   * Reads the apps that data must come from, so that Health Connect filters by origin
+   *
+   * @param opts options of the query, with an optional "sources" array of package names
+   * @return the origins, empty to get data from all apps
+   */
+  private HashSet<DataOrigin> dataOrigins(JSONObject opts) throws JSONException {
+    HashSet<DataOrigin> dor = new HashSet<>();
+    JSONArray sources = opts.optJSONArray("sources");
+    if (sources != null) {
+      for (int i = 0; i < sources.length(); i++) {
+        dor.add(new DataOrigin(sources.getString(i)));
+      }
+    } else if (opts.has("sources")) {
+      dor.add(new DataOrigin(opts.getString("sources")));
+    }
+    return dor;
+  }
+
+  /**
+   * Continues a query from a cursor returned by query() or by a previous queryNext()
+   *
+   * @param args            the cursor and options
+   * @param callbackContext the callback context
+   */
+  private void queryNext(final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("cursor")) {
+        callbackContext.error("Missing argument cursor");
+        return;
+      }
+      String cursorId = opts.getString("cursor");
+      QueryCursor cursor = cursors.take(cursorId);
+      if (cursor == null) {
+        callbackContext.error("Cursor " + cursorId + " is expired or unknown");
+        return;
+      }
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      String pageToken = cursor.pageToken;
+      try {
+        readNext(cursor, cursorId, callbackContext);
+      } catch (Exception ex) {
+        // the same records can be requested again
+        cursor.pageToken = pageToken;
+        cursors.restore(cursorId, cursor);
+        throw ex;
+      }
+    } catch (JSONException ex) {
+      callbackContext.error("Could not parse query object");
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Reads the next records of a query and sends them to JS.
+   * If there are more records, a cursor to continue is returned together with the records
+   *
+   * @param cursor          the query, and where it stopped
+   * @param cursorId        id of the cursor if already registered, null if this is the first call
+   * @param callbackContext the callback context
+   */
+  private void readNext(QueryCursor cursor, String cursorId, RequestContext callbackContext) throws JSONException, InterruptedException {
+    JSONArray resultset = new JSONArray();
+    boolean partial = !readPage(cursor, callbackContext, row -> resultset.put(row.toJSON(cursor.fields)));
+    sendLastPage(cursor, cursorId, partial, resultset, callbackContext);
+  }
+
+  /**
+   * Scans all the records of a query and returns only the top N by a sort key
+   *
+   * @param cursor          the query
+   * @param selector        keeps the top records
+   * @param callbackContext the callback context
+   */
+  private void selectTop(QueryCursor cursor, TopSelector selector, RequestContext callbackContext) throws JSONException, InterruptedException {
+    boolean partial;
+    do {
+      try {
+        partial = !readPage(cursor, callbackContext, selector::offer);
+      } catch (InterruptedException ex) {
+        if (!callbackContext.isExpired()) throw ex;
+        partial = true;
+      }
+    } while (!partial && cursor.hasMore());
+    cursor.closePrefetcher();
+
+    long serStart = System.nanoTime();
+    JSONArray resultset = new JSONArray();
+    for (RecordRow row : selector.result()) {
+      resultset.put(row.toJSON(cursor.fields));
+    }
+    if (partial) {
+      // the winners among the records read so far
+      Log.d(TAG, "Deadline expired, returning top of " + callbackContext.getRecords() + " records");
+      callbackContext.putExtra("partial", true);
+    }
+    callbackContext.sendResult(resultset, serStart);
+  }
+
+  /**
+   * Scans all the records of a query and returns only the points that are needed to draw them
+   *
+   * @param cursor          the query, in ascending order
+   * @param downsampler     keeps the points
+   * @param callbackContext the callback context
+   */
+  private void downsample(QueryCursor cursor, Downsampler downsampler, RequestContext callbackContext) throws JSONException, InterruptedException {
+    boolean partial;
+    do {
+      try {
+        partial = !readPage(cursor, callbackContext, row -> {
+          downsampler.setUnit((String) row.get("unit"));
+          row.forEachSample(downsampler::add);
+        });
+      } catch (InterruptedException ex) {
+        if (!callbackContext.isExpired()) throw ex;
+        partial = true;
+      }
+    } while (!partial && cursor.hasMore());
+    cursor.closePrefetcher();
+
+    long serStart = System.nanoTime();
+    JSONArray resultset = downsampler.finish();
+    if (partial) {
+      // the points of the records read so far
+      Log.d(TAG, "Deadline expired, returning points of " + callbackContext.getRecords() + " records");
+      callbackContext.putExtra("partial", true);
+    }
+    callbackContext.sendResult(resultset, serStart);
+  }
+
+  /**
+   * Scans all the records of a query and returns them without the time counted by more than one source
+   *
+   * @param cursor          the query
+   * @param resolver        resolves overlaps
+   * @param limit           maximum number of records returned, the first ones in the order of the query
+   * @param callbackContext the callback context
+   */
+  private void dedup(QueryCursor cursor, OverlapResolver resolver, int limit, RequestContext callbackContext) throws JSONException, InterruptedException {
+    boolean partial;
+    do {
+      try {
+        partial = !readPage(cursor, callbackContext, resolver::add);
+      } catch (InterruptedException ex) {
+        if (!callbackContext.isExpired()) throw ex;
+        partial = true;
+      }
+    } while (!partial && cursor.hasMore());
+    cursor.closePrefetcher();
+
+    long serStart = System.nanoTime();
+    JSONArray resultset = resolver.resolve(cursor.fields, cursor.ascending, limit);
+    if (partial) {
+      // overlaps among the records read so far
+      Log.d(TAG, "Deadline expired, returning deduplicated " + callbackContext.getRecords() + " records");
+      callbackContext.putExtra("partial", true);
+    }
+    callbackContext.sendResult(resultset, serStart);
+  }
+
+  /**
+   * Returns the samples of a numeric query, reading the days that are over from the series stored on device
+   * and only the other days from Health Connect, days read that are over are then stored for the next queries
+   *
+   * @param cursor          the query, its records are not returned but its samples, without cursor
+   * @param callbackContext the callback context
+   */
+  private void queryLocalCache(QueryCursor cursor, RequestContext callbackContext) throws JSONException, InterruptedException {
+    long st = cursor.startTime.toEpochMilli();
+    long et = cursor.endTime.toEpochMilli();
+    SeriesStore series = seriesStore(cursor.dataType, cursor.dataOrigins);
+    long firstDay = Math.floorDiv(st, SeriesStore.DAY_MS);
+    long lastDay = Math.floorDiv(et - 1, SeriesStore.DAY_MS);
+    // days before this one are over since long enough to be stored
+    long settledEnd = Math.floorDiv(System.currentTimeMillis() - SERIES_SETTLE_MS, SeriesStore.DAY_MS);
+
+    SeriesStore.Samples found = new SeriesStore.Samples();
+    GorillaCodec.SampleConsumer inRange = (time, duration, value) -> {
+      if (time >= st && time < et) found.add(time, duration, value);
+    };
+    String[] unit = new String[1];
+    boolean partial = false;
+    try {
+      String token = refreshSeries(series, cursor, callbackContext);
+      unit[0] = series.getUnit();
+      long day = firstDay;
+      while (day <= lastDay && !partial) {
+        if (day < settledEnd && series.hasDay(day)) {
+          long from = day;
+          while (day <= lastDay && day < settledEnd && series.hasDay(day)) {
+            callbackContext.addCacheHit();
+            day++;
+          }
+          series.scan(from, day - 1, inRange);
+          continue;
+        }
+        long from = day;
+        while (day <= lastDay && !(day < settledEnd && series.hasDay(day))) {
+          day++;
+        }
+        // days to be stored are read entirely
+        long readStart = from < settledEnd ? from * SeriesStore.DAY_MS : Math.max(st, from * SeriesStore.DAY_MS);
+        long readEnd = day - 1 < settledEnd ? day * SeriesStore.DAY_MS : Math.min(et, day * SeriesStore.DAY_MS);
+        QueryCursor span = new QueryCursor(cursor.dataType, cursor.recordClass, Instant.ofEpochMilli(readStart), Instant.ofEpochMilli(readEnd),
+          cursor.dataOrigins, true, MAX_PAGE_SIZE);
+        span.prefetch = 1;
+        span.lane = cursor.lane;
+        SeriesStore.Samples read = new SeriesStore.Samples();
+        do {
+          try {
+            partial = !readPage(span, callbackContext, row -> {
+              unit[0] = (String) row.get("unit");
+              Object end = row.get("endDate");
+              boolean perSample = row.getRecord() instanceof HeartRateRecord;
+              row.forEachSample((time, value) -> {
+                if (time >= readStart && time < readEnd) {
+                  read.add(time, perSample || end == null ? 0 : Math.max(0, (Long) end - time), value);
+                }
+              });
+            });
+          } catch (InterruptedException ex) {
+            if (!callbackContext.isExpired()) throw ex;
+            partial = true;
+          }
+        } while (!partial && span.hasMore());
+        span.closePrefetcher();
+
+        read.sort();
+        int i = 0;
+        for (long d = from; d < day; d++) {
+          int dayStart = i;
+          while (i < read.size() && read.times[i] < (d + 1) * SeriesStore.DAY_MS) {
+            inRange.accept(read.times[i], read.durations[i], read.values[i]);
+            i++;
+          }
+          if (!partial && d < settledEnd) {
+            series.writeDay(d, read, dayStart, i, unit[0], token);
+          }
+        }
+      }
+    } catch (IOException ex) {
+      // the series is rebuilt by the next query
+      Log.e(TAG, "Could not use the local cache of " + cursor.dataType, ex);
+      series.delete();
+      callbackContext.error("Could not use the local cache: " + ex.getMessage());
+      return;
+    }
+
+    long serStart = System.nanoTime();
+    found.sort();
+    JSONArray resultset = new JSONArray();
+    int n = Math.min(found.size(), cursor.limit);
+    for (int k = 0; k < n; k++) {
+      int i = cursor.ascending ? k : found.size() - 1 - k;
+      JSONObject obj = new JSONObject();
+      obj.put("startDate", found.times[i]);
+      obj.put("endDate", found.times[i] + found.durations[i]);
+      obj.put("value", found.values[i]);
+      if (unit[0] != null) obj.put("unit", unit[0]);
+      resultset.put(obj);
+    }
+    if (partial) {
+      Log.d(TAG, "Deadline expired, returning " + resultset.length() + " samples");
+      callbackContext.putExtra("partial", true);
+    }
+    callbackContext.sendResult(resultset, serStart);
+  }
+
+  /**
+   * Drops the stored days that changed in Health Connect since the series was last used, for example because
+   * another app synced data late, and moves the changes token of the series forward.
+   * The whole series is dropped if the token expired or records were deleted, their time is not known
+   *
+   * @return the changes token, samples read from Health Connect from now on can be stored with it
+   */
+  private String refreshSeries(SeriesStore series, QueryCursor cursor, RequestContext callbackContext) throws IOException, InterruptedException {
+    String token = series.getChangesToken();
+    if (token != null) {
+      Set<String> sources = new HashSet<>();
+      for (DataOrigin origin : cursor.dataOrigins) {
+        sources.add(origin.getPackageName());
+      }
+      ChangesPage changes;
+      do {
+        final String from = token;
+        changes = callbackContext.ipc("getChanges", () -> backend.getChanges(from));
+        if (changes.isTokenExpired() || !changes.getDeletedIds().isEmpty()) {
+          token = null;
+          break;
+        }
+        for (Record record : changes.getUpserted()) {
+          DataOrigin origin = record.getMetadata().getDataOrigin();
+          if (!sources.isEmpty() && (origin == null || !sources.contains(origin.getPackageName()))) continue;
+          long start = RecordUtils.startTime(record).toEpochMilli();
+          long end = Math.max(start, RecordUtils.endTime(record).toEpochMilli() - 1);
+          series.dropDays(Math.floorDiv(start, SeriesStore.DAY_MS), Math.floorDiv(end, SeriesStore.DAY_MS));
+        }
+        callbackContext.addRecords(changes.getUpserted().size());
+        token = changes.getNextToken();
+      } while (changes.hasMore());
+    }
+    if (token == null) {
+      // the token is taken before reading, so that changes made while reading are not missed
+      Log.d(TAG, "No valid changes token, dropping the local cache of " + cursor.dataType);
+      series.delete();
+      Set<KClass<? extends Record>> classes = new HashSet<>();
+      classes.add(cursor.recordClass);
+      token = callbackContext.ipc("getChangesToken", () -> backend.getChangesToken(classes));
+    }
+    series.setChangesToken(token);
+    return token;
+  }
+
+  /**
+   * @return the series of a data type read from some sources
+   */
+  private SeriesStore seriesStore(String datatype, Set<DataOrigin> dataOrigins) {
+    List<String> sources = new ArrayList<>();
+    for (DataOrigin origin : dataOrigins) {
+      sources.add(origin.getPackageName());
+    }
+    Collections.sort(sources);
+    // the list of sources can be too long for a file name, its digest is used instead
+    String name = canonicalDataType(datatype).toLowerCase() + "-" + sha256(String.join(",", sources));
+    return seriesStores.computeIfAbsent(name, key -> new SeriesStore(seriesDir(), key));
+  }
+
+  private static String sha256(String text) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      // every Java platform has SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private File seriesDir() {
+    return new File(cordova.getContext().getCacheDir(), "health-series");
+  }
+
+  /**
+   * Drops what is cached about a data type once data was written. Buckets read by a query running meanwhile
+   * are not cached, as they may have been read before the write
+   *
+   * @param datatype the data type, null for all
+   */
+  private void invalidateCaches(String datatype) {
+    String type = datatype != null ? canonicalDataType(datatype) : null;
+    if (datatype != null && type == null) return;
+    invalidateRecordType(type);
+  }
+
+  /**
+   * @param type the data type as returned by canonicalDataType(), null for all
+   */
+  private void invalidateRecordType(String type) {
+    bucketCache.clear(type);
+    if (type == null || type.equals("ExerciseSessionRecord") || type.equals("SleepSessionRecord")) {
+      sessionIndex.invalidate();
+    }
+    // series are not dropped here, the next query reads the changes and drops only the days written
+  }
+
+  /**
+   * Sends the last records of a request, together with a cursor if the query can be continued
+   */
+  private void sendLastPage(QueryCursor cursor, String cursorId, boolean partial, JSONArray resultset, RequestContext callbackContext) throws JSONException {
+    if (partial) {
+      Log.d(TAG, "Deadline expired, returning " + resultset.length() + " records");
+      callbackContext.putExtra("partial", true);
+    }
+    if (partial || cursor.hasMore()) {
+      if (cursorId == null) {
+        cursorId = cursors.open(cursor);
+      } else {
+        cursors.restore(cursorId, cursor);
+      }
+      callbackContext.putExtra("cursor", cursorId);
+    }
+    Log.d(TAG, "Data query successful");
+    // done:
+    callbackContext.sendResult(resultset, System.nanoTime());
+  }
+
+  /**
+   * Sends the records of a query page by page, each page waits for JS to give credit,
+   * so that no more than the granted pages are read and queued towards the WebView
+   *
+   * @param cursor          the query
+   * @param callbackContext the callback context
+   */
+  private void streamQuery(QueryCursor cursor, RequestContext callbackContext) throws JSONException, InterruptedException {
+    // pages after the ones JS has credit for are not read, except for the prefetched ones
+    while (true) {
+      boolean partial;
+      JSONArray resultset = new JSONArray();
+      try {
+        callbackContext.awaitCredit();
+        partial = !readPage(cursor, callbackContext, row -> resultset.put(row.toJSON(cursor.fields)));
+      } catch (InterruptedException ex) {
+        if (!callbackContext.isExpired()) throw ex;
+        partial = true;
+      }
+      if (partial || !cursor.hasMore()) {
+        cursor.closePrefetcher();
+        callbackContext.putExtra("done", true);
+        sendLastPage(cursor, null, partial, resultset, callbackContext);
+        return;
+      }
+      callbackContext.sendPage(resultset);
+    }
+  }
+
+  /**
+   * Reads the next records of a query, at most the limit of the query
+   *
+   * @param cursor          the query, and where it stopped, updated with where it stops
+   * @param callbackContext the callback context
+   * @param sink            receives the records that pass the filter
+   * @return false if the deadline expired before all records were read
+   */
+  private boolean readPage(QueryCursor cursor, RequestContext callbackContext, RowSink sink) throws JSONException, InterruptedException {
+    int remaining = cursor.limit;
+    boolean partial = false;
+    boolean keepPrefetching = false;
+    if (cursor.prefetcher == null && (cursor.prefetch > 0 || cursor.limit > MAX_PAGE_SIZE)) {
+      // the next pages are read while the current one is serialized
+      startPrefetcher(cursor);
+    }
+    try {
+      do {
+        if (callbackContext.isExpired()) {
+          partial = true;
+          break;
+        }
+        RecordPage page;
+        int pageSize;
+        try {
+          if (cursor.prefetcher != null) {
+            callbackContext.checkCancelled();
+            PagePrefetcher.Fetched fetched = cursor.prefetcher.next();
+            if (fetched == null) break;
+            callbackContext.recordIpc("readRecords", fetched.nanos, fetched.page);
+            page = fetched.page;
+            pageSize = fetched.pageSize;
+          } else {
+            // pages cannot be bigger than what Health Connect allows
+            final int size = Math.min(remaining, MAX_PAGE_SIZE);
+            final String token = cursor.pageToken.isEmpty() ? null : cursor.pageToken;
+            page = callbackContext.ipc("readRecords",
+              () -> backend.readRecords(cursor.recordClass, cursor.startTime, cursor.endTime, cursor.dataOrigins, cursor.ascending, size, token)
+            );
+            pageSize = size;
+          }
+        } catch (InterruptedException ex) {
+          if (!callbackContext.isExpired()) throw ex;
+          // the page being read is dropped, it will be read again from the cursor
+          partial = true;
+          break;
+        }
+        callbackContext.addRecords(page.getRecords().size());
+
+        long serStart = System.nanoTime();
+        for (Record datapoint : page.getRecords()) {
+          callbackContext.checkCancelled();
+          RecordRow row = new RecordRow(datapoint);
+          if (!row.isSupported()) {
+            throw new IllegalStateException("Sample received of unknown type " + cursor.dataType);
+          }
+          // records that are filtered out are never converted
+          if (cursor.filter != null && !cursor.filter.matches(row)) continue;
+          sink.accept(row);
+        }
+        callbackContext.addSerializationTime(System.nanoTime() - serStart);
+
+        remaining -= pageSize;
+        cursor.pageToken = page.getPageToken() != null ? page.getPageToken() : "";
+      } while (cursor.hasMore() && remaining > 0);
+      keepPrefetching = !partial && cursor.hasMore() && cursor.prefetcher != null && cursor.prefetcher.isAcrossCalls();
+    } finally {
+      if (!keepPrefetching) {
+        cursor.closePrefetcher();
+      }
+    }
+    return !partial;
+  }
+
+  /**
+   * Starts reading the pages of a query in the background
+   */
+  private void startPrefetcher(QueryCursor cursor) {
+    cursor.prefetcher = new PagePrefetcher(
+      (token, size) -> scheduler.execute(RequestScheduler.Kind.READ, cursor.lane,
+        () -> backend.readRecords(cursor.recordClass, cursor.startTime, cursor.endTime, cursor.dataOrigins, cursor.ascending, size, token)),
+      cursor.pageToken, cursor.limit, cursor.prefetch, cursor.prefetch > 0, prefetchBudget);
+    cursor.prefetcher.start(cordova.getThreadPool());
+  }
+
+  private void queryAggregated(final JSONArray args, final RequestContext callbackContext) {
+    try {
+      long parseStart = System.nanoTime();
+      if (args.getJSONObject(0).optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!args.getJSONObject(0).has("startDate")) {
+        callbackContext.error("Missing argument startDate");
+        return;
+      }
+      long st = args.getJSONObject(0).getLong("startDate");
+
+      if (!args.getJSONObject(0).has("endDate")) {
+        callbackContext.error("Missing argument endDate");
+        return;
+      }
+      long et = args.getJSONObject(0).getLong("endDate");
+
+      if (!args.getJSONObject(0).has("dataType")) {
+        callbackContext.error("Missing argument dataType");
+        return;
+      }
+      String datatype = args.getJSONObject(0).getString("dataType");
+      KClass<? extends Record> dt = dataTypeNameToClass(datatype);
+      if (dt == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
+      }
+
+      Set<AggregateMetric<?>> metrics = aggregateMetrics(datatype);
+      if (metrics == null) {
+        callbackContext.error("Datatype not recognized " + datatype);
+        return;
+      }
+
+      boolean hasbucket = args.getJSONObject(0).has("bucket");
+
+      HashSet<DataOrigin> dor = dataOrigins(args.getJSONObject(0));
+
+      JSONObject rolling = args.getJSONObject(0).optJSONObject("rolling");
+      RollingWindow roller = null;
+      long bucketsStart = st;
+      if (rolling != null) {
+        if (!hasbucket) {
+          callbackContext.error("Rolling needs a bucket");
+          return;
+        }
+        int window = rolling.optInt("window", 7);
+        try {
+          roller = new RollingWindow(window, rolling.optInt("step", 1), rolling.optDouble("alpha", 2.0 / (window + 1)));
+        } catch (IllegalArgumentException ex) {
+          callbackContext.error(ex.getMessage());
+          return;
+        }
+        String type = args.getJSONObject(0).getString("bucket").toLowerCase();
+        if (TimeBuckets.TYPES.contains(type)) {
+          // the buckets before the start are read too, so that the first window returned is full
+          ZonedDateTime first = TimeBuckets.truncate(ZonedDateTime.ofInstant(Instant.ofEpochMilli(st), ZoneId.systemDefault()), type);
+          bucketsStart = TimeBuckets.plus(first, type, -(window - 1)).toInstant().toEpochMilli();
+        }
+      }
+
+      if (hasbucket) {
+        String bucketType = args.getJSONObject(0).getString("bucket");
+        ZonedDateTime stZDT = ZonedDateTime.ofInstant(Instant.ofEpochMilli(bucketsStart), ZoneId.systemDefault());
+        ZonedDateTime etZDT = ZonedDateTime.ofInstant(Instant.ofEpochMilli(et), ZoneId.systemDefault());
+        // reset unused fields
+        // int year, Month month, int dayOfMonth, int hour, int minute, int second
+        LocalDateTime stLDT;
+        LocalDateTime etLDT = LocalDateTime.from(etZDT);
+        if (bucketType.equalsIgnoreCase("hour")) {
+          stLDT = LocalDateTime.of(stZDT.getYear(), stZDT.getMonth(), stZDT.getDayOfMonth(), stZDT.getHour(), 0, 0, 0);
+          // etLDT = LocalDateTime.of(etZDT.getYear(), etZDT.getMonth(), etZDT.getDayOfMonth(), etZDT.getHour(), 0, 0, 0);
+        } else if (bucketType.equalsIgnoreCase("day")) {
+          stLDT = LocalDateTime.of(stZDT.getYear(), stZDT.getMonth(), stZDT.getDayOfMonth(), 0, 0, 0, 0);
           // etLDT = LocalDateTime.of(etZDT.getYear(), etZDT.getMonth(), etZDT.getDayOfMonth(), 0, 0, 0, 0);
         } else if (bucketType.equalsIgnoreCase("week")) {
           DayOfWeek weekStart = DayOfWeek.MONDAY;
@@ -647,7 +2138,6 @@ public class HealthPlugin extends CordovaPlugin {
           callbackContext.error("Bucket not recognized " + bucketType);
           return;
         }
-        TimeRangeFilter timeRange = TimeRangeFilter.between(stLDT, etLDT);
 
         Duration duration = null;
         Period period = null;
@@ -665,142 +2155,136 @@ public class HealthPlugin extends CordovaPlugin {
           callbackContext.error("Bucket length not recognized " + bucketType);
           return;
         }
-        if (period != null) {
-          AggregateGroupByPeriodRequest request;
-          // DATA_TYPE: add here support for new data types
-          if (datatype.equalsIgnoreCase("steps")) {
-            Set<AggregateMetric<Long>> metrics = new HashSet<>();
-            metrics.add(StepsRecord.COUNT_TOTAL);
-            request = new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-          } else if (datatype.equalsIgnoreCase("activity")) {
-            Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-            metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-            request = new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-          } else if (datatype.equalsIgnoreCase("calories.active")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-            request = new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-          } else if (datatype.equalsIgnoreCase("calories.basal")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-            request = new AggregateGroupByPeriodRequest(metrics, timeRange, period, dor);
-          } else {
-            callbackContext.error("Datatype not recognized " + datatype);
-            return;
-          }
-
-          List<AggregationResultGroupedByPeriod> response = BuildersKt.runBlocking(
-            EmptyCoroutineContext.INSTANCE,
-            (s, c) -> healthConnectClient.aggregateGroupByPeriod(request, c)
-          );
-
-          Log.d(TAG, "Got data from query aggregated");
-          JSONArray retBucketsArr = new JSONArray();
-
-          for (AggregationResultGroupedByPeriod bucket : response) {
+        callbackContext.addParseTime(System.nanoTime() - parseStart);
+        TimeBuckets buckets = new TimeBuckets(stLDT.atZone(ZoneId.systemDefault()).toInstant(), Instant.ofEpochMilli(et), bucketType);
+        JSONObject[] retBuckets = new JSONObject[buckets.size()];
+        String cacheKey = BucketCache.key(canonicalDataType(datatype), bucketType, dor);
+
+        // buckets already read are taken from the cache, the others are read in a single call
+        int firstMissing = -1;
+        int lastMissing = -1;
+        for (int i = 0; i < retBuckets.length; i++) {
+          BucketCache.Entry cached = bucketCache.get(cacheKey, buckets.getStart(i));
+          if (cached != null) {
             JSONObject retObject = new JSONObject();
-            long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-            long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-            retObject.put("startDate", stbkt);
-            retObject.put("endDate", etbkt);
-            setAggregatedVal(datatype, retObject, bucket.getResult());
-
-            retBucketsArr.put(retObject);
+            retObject.put("startDate", buckets.getStart(i));
+            retObject.put("endDate", buckets.getEnd(i));
+            retObject.put("value", cached.value);
+            retObject.put("unit", cached.unit);
+            retBuckets[i] = retObject;
+            callbackContext.addCacheHit();
+          } else {
+            if (firstMissing < 0) firstMissing = i;
+            lastMissing = i;
           }
-
-          callbackContext.success(retBucketsArr);
-        } else {
-          AggregateGroupByDurationRequest request;
-          // DATA_TYPE: add here support for new data types
-          if (datatype.equalsIgnoreCase("steps")) {
-            Set<AggregateMetric<Long>> metrics = new HashSet<>();
-            metrics.add(StepsRecord.COUNT_TOTAL);
-            request = new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-          } else if (datatype.equalsIgnoreCase("activity")) {
-            Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-            metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-            request = new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-          } else if (datatype.equalsIgnoreCase("calories.active")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-            request = new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
-          } else if (datatype.equalsIgnoreCase("calories.basal")) {
-            Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-            metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-            request = new AggregateGroupByDurationRequest(metrics, timeRange, duration, dor);
+        }
+        if (firstMissing >= 0) {
+          long cacheGeneration = bucketCache.generation();
+          final LocalDateTime from = LocalDateTime.ofInstant(Instant.ofEpochMilli(buckets.getStart(firstMissing)), ZoneId.systemDefault());
+          final LocalDateTime to = lastMissing == retBuckets.length - 1 ? etLDT
+            : LocalDateTime.ofInstant(Instant.ofEpochMilli(buckets.getEnd(lastMissing)), ZoneId.systemDefault());
+          final Period slicePeriod = period;
+          final Duration sliceDuration = duration;
+          List<AggregateBucket> response;
+          if (period != null) {
+            response = callbackContext.ipc("aggregateGroupByPeriod",
+              () -> backend.aggregateGroupByPeriod(metrics, from, to, slicePeriod, dor));
           } else {
-            callbackContext.error("Datatype not recognized " + datatype);
-            return;
+            response = callbackContext.ipc("aggregateGroupByDuration",
+              () -> backend.aggregateGroupByDuration(metrics, from, to, sliceDuration, dor));
           }
-
-          List<AggregationResultGroupedByDuration> response = BuildersKt.runBlocking(
-            EmptyCoroutineContext.INSTANCE,
-            (s, c) -> healthConnectClient.aggregateGroupByDuration(request, c)
-          );
-
+          callbackContext.addRecords(response.size());
           Log.d(TAG, "Got data from query aggregated");
-          JSONArray retBucketsArr = new JSONArray();
 
-          for (AggregationResultGroupedByDuration bucket : response) {
+          long now = System.currentTimeMillis();
+          for (AggregateBucket bucket : response) {
+            int i = buckets.indexOf(bucket.getStartTime().toEpochMilli());
+            if (i < 0 || retBuckets[i] != null) continue;
             JSONObject retObject = new JSONObject();
-            long stbkt = bucket.getStartTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-            long etbkt = bucket.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-            retObject.put("startDate", stbkt);
-            retObject.put("endDate", etbkt);
-            setAggregatedVal(datatype, retObject, bucket.getResult());
+            retObject.put("startDate", bucket.getStartTime().toEpochMilli());
+            retObject.put("endDate", bucket.getEndTime().toEpochMilli());
+            setAggregatedVal(datatype, retObject, bucket);
+            retBuckets[i] = retObject;
+            // records can still be added to a bucket that is not over, or cut by the end of the range
+            if (bucket.getEndTime().toEpochMilli() == buckets.getEnd(i) && buckets.getEnd(i) <= now) {
+              bucketCache.put(cacheKey, buckets.getStart(i), retObject.opt("value"), retObject.optString("unit", null), cacheGeneration);
+            }
+          }
+        }
 
+        long serStart = System.nanoTime();
+        JSONArray retBucketsArr = new JSONArray();
+        for (int i = 0; i < retBuckets.length; i++) {
+          JSONObject retObject = retBuckets[i];
+          if (retObject == null) {
+            if (roller == null) continue;
+            // Health Connect leaves out buckets without data, the window must still span its number of buckets
+            // in time: all these metrics are totals, so an empty bucket counts as 0
+            long end = Math.min(et, buckets.getEnd(i));
+            retObject = new JSONObject();
+            retObject.put("startDate", buckets.getStart(i));
+            retObject.put("endDate", end);
+            setAggregatedVal(datatype, retObject, new AggregateBucket(Instant.ofEpochMilli(buckets.getStart(i)), Instant.ofEpochMilli(end)));
+          }
+          if (roller != null) {
+            roller.add(retObject.getLong("startDate"), retObject.getLong("endDate"), retObject.getDouble("value"), retObject.optString("unit", null));
+          } else {
             retBucketsArr.put(retObject);
           }
-
-          callbackContext.success(retBucketsArr);
-        }
-      } else {
-        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
-
-        AggregateRequest request;
-        // DATA_TYPE add here support for new data types
-        if (datatype.equalsIgnoreCase("steps")) {
-          Set<AggregateMetric<Long>> metrics = new HashSet<>();
-          metrics.add(StepsRecord.COUNT_TOTAL);
-          request = new AggregateRequest(metrics, timeRange, dor);
-        } else if (datatype.equalsIgnoreCase("activity")) {
-          Set<AggregateMetric<Duration>> metrics = new HashSet<>();
-          metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
-          request = new AggregateRequest(metrics, timeRange, dor);
-        } else if (datatype.equalsIgnoreCase("calories.active")) {
-          Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-          metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
-          request = new AggregateRequest(metrics, timeRange, dor);
-        } else if (datatype.equalsIgnoreCase("calories.basal")) {
-          Set<AggregateMetric<Energy>> metrics = new HashSet<>();
-          metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
-          request = new AggregateRequest(metrics, timeRange, dor);
-        } else {
-          callbackContext.error("Datatype not recognized " + datatype);
-          return;
         }
 
-        AggregationResult response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.aggregate(request, c)
+        callbackContext.sendResult(roller != null ? roller.getResult() : retBucketsArr, serStart);
+      } else {
+        callbackContext.addParseTime(System.nanoTime() - parseStart);
+        AggregateBucket response = callbackContext.ipc("aggregate",
+          () -> backend.aggregate(metrics, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et), dor)
         );
+        callbackContext.addRecords(1);
         Log.d(TAG, "Got data from query aggregated");
 
+        long serStart = System.nanoTime();
         JSONObject retObject = new JSONObject();
         retObject.put("startDate", st);
         retObject.put("endDate", et);
         setAggregatedVal(datatype, retObject, response);
 
-        callbackContext.success(retObject);
+        callbackContext.sendResult(retObject, serStart);
       }
     } catch (JSONException ex) {
       callbackContext.error("Could not parse query object or write response object");
     } catch (InterruptedException ex2) {
-      callbackContext.error("Thread interrupted" + ex2.getMessage());
+      if (callbackContext.isExpired()) {
+        callbackContext.error("Request timed out");
+      } else {
+        callbackContext.error("Thread interrupted" + ex2.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Gets the metrics used to aggregate a data type
+   *
+   * @param datatype the data type
+   * @return the metrics or null if the data type cannot be aggregated
+   */
+  private Set<AggregateMetric<?>> aggregateMetrics(String datatype) {
+    Set<AggregateMetric<?>> metrics = new HashSet<>();
+    // DATA_TYPE add here support for new data types
+    if (datatype.equalsIgnoreCase("steps")) {
+      metrics.add(StepsRecord.COUNT_TOTAL);
+    } else if (datatype.equalsIgnoreCase("activity")) {
+      metrics.add(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL);
+    } else if (datatype.equalsIgnoreCase("calories.active")) {
+      metrics.add(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL);
+    } else if (datatype.equalsIgnoreCase("calories.basal")) {
+      metrics.add(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL);
+    } else {
+      return null;
     }
+    return metrics;
   }
 
-  private void setAggregatedVal(String datatype, JSONObject retObj, AggregationResult response) throws JSONException {
+  private void setAggregatedVal(String datatype, JSONObject retObj, AggregateBucket response) throws JSONException {
     // DATA_TYPE add here new data types when extending
     if (datatype.equalsIgnoreCase("steps")) {
       if (response.get(StepsRecord.COUNT_TOTAL) != null) {
@@ -848,174 +2332,192 @@ public class HealthPlugin extends CordovaPlugin {
    * Stores a datapoint
    *
    * @param args
+   * @param callbackContext
    */
-  private void store(final JSONArray args) {
+  private void store(final JSONArray args, final RequestContext callbackContext) {
     try {
-      if (!args.getJSONObject(0).has("startDate")) {
-        callbackContext.error("Missing argument startDate");
+      if (args.optJSONArray(0) != null) {
+        storeBatch(args.getJSONArray(0), callbackContext);
         return;
       }
-      long st = args.getJSONObject(0).getLong("startDate");
+      Record record;
+      try {
+        record = RecordFactory.fromJSON(args.getJSONObject(0), null);
+      } catch (IllegalArgumentException ex) {
+        callbackContext.error(ex.getMessage());
+        return;
+      }
+      List<Record> data = new LinkedList<>();
+      data.add(record);
+      List<String> ids = callbackContext.ipc("insertRecords", RequestScheduler.Kind.WRITE, () -> backend.insertRecords(data));
+      callbackContext.addRecords(data.size());
+      Log.d(TAG, "Data written of type " + args.getJSONObject(0).getString("dataType"));
 
-      if (!args.getJSONObject(0).has("endDate")) {
-        callbackContext.error("Missing argument endDate");
+      String id = ids.get(0);
+
+      callbackContext.success(id);
+    } catch (JSONException ex) {
+      callbackContext.error("Cannot parse request object " + ex.getMessage());
+    } catch (InterruptedException ex2) {
+      callbackContext.error("Thread interrupted" + ex2.getMessage());
+    }
+  }
+
+  /**
+   * Stores several datapoints, in as few calls as possible
+   *
+   * @param items           the datapoints, as passed to store()
+   * @param callbackContext the callback context, receives the ids in the same order
+   */
+  private void storeBatch(JSONArray items, RequestContext callbackContext) throws JSONException, InterruptedException {
+    // all records are checked before anything is written
+    List<Record> records = new ArrayList<>(items.length());
+    for (int i = 0; i < items.length(); i++) {
+      try {
+        records.add(RecordFactory.fromJSON(items.getJSONObject(i), null));
+      } catch (IllegalArgumentException | JSONException ex) {
+        callbackContext.error("Datapoint " + i + ": " + ex.getMessage());
         return;
       }
-      long et = args.getJSONObject(0).getLong("endDate");
+    }
+    JSONArray ids = new JSONArray();
+    for (int from = 0; from < records.size(); from += MAX_WRITE_BATCH) {
+      List<Record> chunk = records.subList(from, Math.min(records.size(), from + MAX_WRITE_BATCH));
+      List<String> chunkIds = callbackContext.ipc("insertRecords", RequestScheduler.Kind.WRITE, () -> backend.insertRecords(chunk));
+      callbackContext.addRecords(chunk.size());
+      for (String id : chunkIds) {
+        ids.put(id);
+      }
+    }
+    Log.d(TAG, "Data written in batch of " + records.size());
+    callbackContext.success(ids);
+  }
 
-      if (!args.getJSONObject(0).has("dataType")) {
-        callbackContext.error("Missing argument dataType");
+  /**
+   * Reads records from a file line by line and inserts them in batches, reporting progress after each batch
+   *
+   * @param args            the file, its format and where to start
+   * @param callbackContext the callback context
+   * @param importedTypes   receives the data types written, as returned by canonicalDataType()
+   */
+  private void importFromFile(final JSONArray args, final RequestContext callbackContext, Set<String> importedTypes) {
+    try {
+      long parseStart = System.nanoTime();
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.optBoolean("profile", false)) {
+        callbackContext.startProfiling();
+      }
+      if (!opts.has("path")) {
+        callbackContext.error("Missing argument path");
         return;
       }
-      String datatype = args.getJSONObject(0).getString("dataType");
-      KClass<? extends Record> dt = dataTypeNameToClass(datatype);
-      if (dt == null) {
-        callbackContext.error("Datatype " + datatype + " not supported");
+      String path = opts.getString("path");
+      if (path.startsWith("file://")) {
+        path = path.substring("file://".length());
+      }
+      File file = new File(path);
+      String name = file.getName().toLowerCase();
+      boolean gzip = opts.optBoolean("gzip", name.endsWith(".gz"));
+      if (gzip && name.endsWith(".gz")) {
+        name = name.substring(0, name.length() - ".gz".length());
+      }
+      String format = opts.optString("format", name.endsWith(".csv") ? ExportWriter.CSV : ExportWriter.NDJSON).toLowerCase();
+      if (!ExportWriter.FORMATS.contains(format)) {
+        callbackContext.error("Format must be one of " + ExportWriter.FORMATS);
         return;
       }
+      String datatype = opts.optString("dataType", null);
+      int batchSize = Math.max(1, Math.min(opts.optInt("batchSize", MAX_WRITE_BATCH), MAX_WRITE_BATCH));
+      long startOffset = Math.max(0, opts.optLong("offset", 0));
+      boolean skipInvalid = opts.optBoolean("skipInvalid", false);
 
-      if (!args.getJSONObject(0).has("value")) {
-        callbackContext.error("Missing argument value");
+      if (this.backend == null) {
+        callbackContext.error("You must call requestAuthorization() before importFromFile()");
         return;
       }
-
-      // DATA_TYPES here we need to add support for each different data type
-      if (datatype.equalsIgnoreCase("steps")) {
-        long steps = args.getJSONObject(0).getLong("value");
-        // TODO: we could add meta data when storing, including entry method, client ID and device
-        StepsRecord record = new StepsRecord(
-          Instant.ofEpochMilli(st), null,
-          Instant.ofEpochMilli(et), null,
-          steps,
-          Metadata.EMPTY
-        );
-        List<StepsRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else if (datatype.equalsIgnoreCase("weight")) {
-        double kgs = args.getJSONObject(0).getDouble("value");
-
-        // TODO: we could add meta data when storing, including entry method, client ID and device
-        WeightRecord record = new WeightRecord(
-          Instant.ofEpochMilli(st), null,
-          Mass.kilograms(kgs),
-          Metadata.EMPTY
-        );
-        List<WeightRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else if (datatype.equalsIgnoreCase("fat_percentage")) {
-        double perc = args.getJSONObject(0).getDouble("value");
-
-        BodyFatRecord record = new BodyFatRecord(
-          Instant.ofEpochMilli(st), null,
-          new Percentage(perc),
-          Metadata.EMPTY
-        );
-        List<BodyFatRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else if (datatype.equalsIgnoreCase("activity")) {
-        String activityStr = args.getJSONObject(0).getString("value");
-        int exerciseType = ActivityMapper.exerciseTypeFromActivity(activityStr);
-        String title = null;
-        String notes = null;
-        List<ExerciseSegment> segments = new LinkedList<>();
-        List<ExerciseLap> laps = new LinkedList<>();
-
-        ExerciseSessionRecord record = new ExerciseSessionRecord(
-          Instant.ofEpochMilli(st), null,
-          Instant.ofEpochMilli(et), null,
-          exerciseType,
-          title, notes,
-          Metadata.EMPTY,
-          segments, laps
-        );
-        List<ExerciseSessionRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else if (datatype.equalsIgnoreCase("calories.active")) {
-        double kcals = args.getJSONObject(0).getDouble("value");
-
-        ActiveCaloriesBurnedRecord record = new ActiveCaloriesBurnedRecord(
-          Instant.ofEpochMilli(st), null,
-          Instant.ofEpochMilli(et), null,
-          Energy.kilocalories(kcals),
-          Metadata.EMPTY
-        );
-        List<ActiveCaloriesBurnedRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else if (datatype.equalsIgnoreCase("calories.basal")) {
-        double kcals = args.getJSONObject(0).getDouble("value");
-        // convert kcals to power
-        double ms = (et - st);
-        double kcalsDay = kcals / (ms / (double) (86400000));
-        Power pow = Power.kilocaloriesPerDay(kcalsDay);
-
-        BasalMetabolicRateRecord record = new BasalMetabolicRateRecord(
-          Instant.ofEpochMilli(st), null,
-          pow,
-          Metadata.EMPTY
-        );
-        List<BasalMetabolicRateRecord> data = new LinkedList<>();
-        data.add(record);
-        InsertRecordsResponse response = BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.insertRecords(data, c)
-        );
-        Log.d(TAG, "Data written of type " + datatype);
-
-        String id = response.getRecordIdsList().get(0);
-
-        callbackContext.success(id);
-      } else {
-        callbackContext.error("Datatype not supported " + datatype);
+      callbackContext.addParseTime(System.nanoTime() - parseStart);
+
+      long imported = 0;
+      long skipped = 0;
+      boolean partial = false;
+      long committed;
+      List<Record> batch = new ArrayList<>(batchSize);
+      try (RecordFileReader reader = new RecordFileReader(file, format, gzip, startOffset)) {
+        committed = reader.getOffset();
+        boolean eof = false;
+        while (!eof) {
+          callbackContext.checkCancelled();
+          if (callbackContext.isExpired()) {
+            partial = true;
+            break;
+          }
+          long rowStart = reader.getOffset();
+          String invalid = null;
+          try {
+            JSONObject row = reader.next();
+            if (row == null) {
+              eof = true;
+            } else {
+              batch.add(RecordFactory.fromJSON(row, datatype));
+            }
+          } catch (JSONException | IllegalArgumentException ex) {
+            invalid = ex.getMessage();
+          }
+          if (invalid != null && skipInvalid) {
+            skipped++;
+            invalid = null;
+          }
+          if (batch.size() == batchSize || (eof || invalid != null) && !batch.isEmpty()) {
+            // before writing, as an interrupted batch may have been written
+            for (Record record : batch) {
+              importedTypes.add(record.getClass().getSimpleName());
+            }
+            try {
+              callbackContext.ipc("insertRecords", RequestScheduler.Kind.WRITE, () -> backend.insertRecords(batch));
+            } catch (InterruptedException ex) {
+              if (!callbackContext.isExpired()) throw ex;
+              // the batch may or may not have been written, it is imported again when resuming
+              partial = true;
+              break;
+            }
+            callbackContext.addRecords(batch.size());
+            imported += batch.size();
+            committed = invalid != null ? rowStart : reader.getOffset();
+            batch.clear();
+            JSONObject progress = new JSONObject();
+            progress.put("imported", imported);
+            progress.put("skipped", skipped);
+            progress.put("offset", committed);
+            callbackContext.sendProgress(progress);
+          }
+          if (invalid != null) {
+            callbackContext.error("Invalid record at offset " + rowStart + ": " + invalid);
+            return;
+          }
+        }
+        if (!partial) {
+          committed = reader.getOffset();
+        }
+      } catch (IOException ex) {
+        Log.e(TAG, "Could not import " + file, ex);
+        callbackContext.error("Could not read file: " + ex.getMessage());
+        return;
       }
-
-
+      Log.d(TAG, "Imported " + imported + " records from " + file);
+
+      long serStart = System.nanoTime();
+      JSONObject retObject = new JSONObject();
+      retObject.put("imported", imported);
+      retObject.put("skipped", skipped);
+      retObject.put("offset", committed);
+      retObject.put("done", !partial);
+      if (partial) {
+        // can be resumed from the offset
+        callbackContext.putExtra("partial", true);
+      }
+      callbackContext.sendResult(retObject, serStart);
     } catch (JSONException ex) {
-      callbackContext.error("Cannot parse request object " + ex.getMessage());
+      callbackContext.error("Could not parse query object or write response object");
     } catch (InterruptedException ex2) {
       callbackContext.error("Thread interrupted" + ex2.getMessage());
     }
@@ -1025,9 +2527,16 @@ public class HealthPlugin extends CordovaPlugin {
    * Deletes datapoints
    *
    * @param args
+   * @param callbackContext
    */
-  private void delete(final JSONArray args) {
+  private void delete(final JSONArray args, final RequestContext callbackContext) {
     try {
+      JSONObject opts = args.getJSONObject(0);
+      if (opts.has("items") || opts.has("ids") || opts.has("clientRecordIds") || opts.has("clientRecordId")) {
+        // a single object with lists of ids is a batch of one item
+        deleteBatch(opts.has("items") ? opts.getJSONArray("items") : new JSONArray().put(opts), callbackContext);
+        return;
+      }
       String datatype = args.getJSONObject(0).getString("dataType");
       KClass<? extends Record> dt = dataTypeNameToClass(datatype);
       if (dt == null) {
@@ -1040,15 +2549,15 @@ public class HealthPlugin extends CordovaPlugin {
 
         List<String> recordids = new LinkedList<>();
         recordids.add(id);
-        BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.deleteRecords(dt, recordids, new LinkedList<>(), c)
-        );
+        callbackContext.ipc("deleteRecords", RequestScheduler.Kind.WRITE, () -> {
+          backend.deleteRecords(dt, recordids, new LinkedList<>());
+          return null;
+        });
         Log.d(TAG, "Data deleted by ID of type " + datatype);
 
         callbackContext.success();
       } else {
-        if (args.getJSONObject(0).has("startDate")) {
+        if (!args.getJSONObject(0).has("startDate")) {
           callbackContext.error("Missing argument startDate");
           return;
         }
@@ -1060,11 +2569,10 @@ public class HealthPlugin extends CordovaPlugin {
         }
         final long et = args.getJSONObject(0).getLong("endDate");
 
-        TimeRangeFilter timeRange = TimeRangeFilter.between(Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
-        BuildersKt.runBlocking(
-          EmptyCoroutineContext.INSTANCE,
-          (s, c) -> healthConnectClient.deleteRecords(dt, timeRange, c)
-        );
+        callbackContext.ipc("deleteRecords", RequestScheduler.Kind.WRITE, () -> {
+          backend.deleteRecords(dt, Instant.ofEpochMilli(st), Instant.ofEpochMilli(et));
+          return null;
+        });
         Log.d(TAG, "Data deleted by time range of type " + datatype);
 
         callbackContext.success();
@@ -1075,5 +2583,182 @@ public class HealthPlugin extends CordovaPlugin {
       callbackContext.error("Thread interrupted" + ex2.getMessage());
     }
   }
+
+  /**
+   * An item of a bulk delete: ids of a data type, or a time range
+   */
+  private static class DeleteItem {
+    KClass<? extends Record> dataType;
+    List<String> ids = new ArrayList<>();
+    List<String> clientIds = new ArrayList<>();
+    Instant start;
+    Instant end;
+    volatile String error;
+    volatile boolean done;
+  }
+
+  /**
+   * Deletes lists of ids of several data types, grouped by type in as few calls as possible,
+   * and several time ranges, deleted concurrently
+   *
+   * @param items           objects with a dataType and either id, ids, clientRecordId, clientRecordIds or startDate and endDate
+   * @param callbackContext the callback context, receives the outcome of each item
+   */
+  private void deleteBatch(JSONArray items, RequestContext callbackContext) throws JSONException, InterruptedException {
+    List<DeleteItem> parsed = new ArrayList<>(items.length());
+    Map<KClass<? extends Record>, List<DeleteItem>> byType = new LinkedHashMap<>();
+    List<DeleteItem> ranges = new ArrayList<>();
+    for (int i = 0; i < items.length(); i++) {
+      DeleteItem item = new DeleteItem();
+      parsed.add(item);
+      JSONObject obj = items.optJSONObject(i);
+      String datatype = obj != null ? obj.optString("dataType", null) : null;
+      item.dataType = datatype != null ? dataTypeNameToClass(datatype) : null;
+      if (item.dataType == null) {
+        item.error = datatype == null ? "Missing argument dataType" : "Datatype " + datatype + " not supported";
+        continue;
+      }
+      if (obj.has("id")) item.ids.add(obj.getString("id"));
+      if (obj.has("clientRecordId")) item.clientIds.add(obj.getString("clientRecordId"));
+      JSONArray ids = obj.optJSONArray("ids");
+      for (int k = 0; ids != null && k < ids.length(); k++) {
+        item.ids.add(ids.getString(k));
+      }
+      JSONArray clientIds = obj.optJSONArray("clientRecordIds");
+      for (int k = 0; clientIds != null && k < clientIds.length(); k++) {
+        item.clientIds.add(clientIds.getString(k));
+      }
+      if (!item.ids.isEmpty() || !item.clientIds.isEmpty()) {
+        byType.computeIfAbsent(item.dataType, k -> new ArrayList<>()).add(item);
+      } else if (obj.has("startDate") && obj.has("endDate")) {
+        item.start = Instant.ofEpochMilli(obj.getLong("startDate"));
+        item.end = Instant.ofEpochMilli(obj.getLong("endDate"));
+        ranges.add(item);
+      } else {
+        item.error = "Missing argument ids or startDate and endDate";
+      }
+    }
+
+    // time ranges are deleted in the background while ids are deleted here
+    AtomicInteger nextRange = new AtomicInteger();
+    List<Future<?>> workers = new ArrayList<>();
+    for (int w = 0; w < Math.min(MAX_CONCURRENT_DELETES, ranges.size()); w++) {
+      workers.add(cordova.getThreadPool().submit(() -> {
+        int k;
+        while ((k = nextRange.getAndIncrement()) < ranges.size()) {
+          DeleteItem item = ranges.get(k);
+          try {
+            callbackContext.ipc("deleteRecords", RequestScheduler.Kind.WRITE, () -> {
+              backend.deleteRecords(item.dataType, item.start, item.end);
+              return null;
+            });
+            item.done = true;
+          } catch (InterruptedException | CancellationException ex) {
+            return;
+          } catch (Exception ex) {
+            item.error = ex.getMessage();
+          }
+        }
+      }));
+    }
+
+    try {
+      for (Map.Entry<KClass<? extends Record>, List<DeleteItem>> entry : byType.entrySet()) {
+        deleteIds(entry.getKey(), entry.getValue(), callbackContext);
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException ex) {
+      if (!callbackContext.isExpired()) throw ex;
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException(ex.getCause());
+    } finally {
+      for (Future<?> worker : workers) {
+        worker.cancel(true);
+      }
+    }
+
+    long serStart = System.nanoTime();
+    int deleted = 0;
+    JSONArray results = new JSONArray();
+    for (DeleteItem item : parsed) {
+      JSONObject result = new JSONObject();
+      if (item.done) {
+        deleted++;
+        result.put("ok", true);
+      } else {
+        result.put("ok", false);
+        result.put("error", item.error != null ? item.error : "Request timed out");
+      }
+      results.put(result);
+    }
+    Log.d(TAG, "Bulk delete of " + parsed.size() + " items, " + deleted + " deleted");
+    JSONObject retObject = new JSONObject();
+    retObject.put("deleted", deleted);
+    retObject.put("failed", parsed.size() - deleted);
+    retObject.put("results", results);
+    if (deleted < parsed.size() && callbackContext.isExpired()) {
+      callbackContext.putExtra("partial", true);
+    }
+    callbackContext.sendResult(retObject, serStart);
+  }
+
+  /**
+   * Deletes the ids of the items of a data type, in chunks, an item fails if a chunk with some of its ids fails
+   */
+  private void deleteIds(KClass<? extends Record> dataType, List<DeleteItem> items, RequestContext callbackContext) throws InterruptedException {
+    int i = 0;
+    int idPos = 0;
+    int clientIdPos = 0;
+    while (i < items.size()) {
+      // a chunk can end in the middle of an item
+      List<String> ids = new ArrayList<>();
+      List<String> clientIds = new ArrayList<>();
+      List<DeleteItem> inChunk = new ArrayList<>();
+      while (i < items.size() && ids.size() + clientIds.size() < MAX_WRITE_BATCH) {
+        DeleteItem item = items.get(i);
+        if (inChunk.isEmpty() || inChunk.get(inChunk.size() - 1) != item) {
+          inChunk.add(item);
+        }
+        int room = MAX_WRITE_BATCH - ids.size() - clientIds.size();
+        if (idPos < item.ids.size()) {
+          int take = Math.min(room, item.ids.size() - idPos);
+          ids.addAll(item.ids.subList(idPos, idPos + take));
+          idPos += take;
+        } else {
+          int take = Math.min(room, item.clientIds.size() - clientIdPos);
+          clientIds.addAll(item.clientIds.subList(clientIdPos, clientIdPos + take));
+          clientIdPos += take;
+        }
+        if (idPos == item.ids.size() && clientIdPos == item.clientIds.size()) {
+          i++;
+          idPos = 0;
+          clientIdPos = 0;
+        }
+      }
+      try {
+        callbackContext.ipc("deleteRecords", RequestScheduler.Kind.WRITE, () -> {
+          backend.deleteRecords(dataType, ids, clientIds);
+          return null;
+        });
+        callbackContext.addRecords(ids.size() + clientIds.size());
+      } catch (InterruptedException | CancellationException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        // Health Connect errors are checked exceptions rethrown as they are by the coroutine
+        for (DeleteItem item : inChunk) {
+          item.error = ex.getMessage();
+        }
+      }
+      // items whose last ids were in this chunk are over
+      DeleteItem unfinished = idPos > 0 || clientIdPos > 0 ? items.get(i) : null;
+      for (DeleteItem item : inChunk) {
+        if (item != unfinished) {
+          item.done = item.error == null;
+        }
+      }
+    }
+  }
 }
 
@@ -0,0 +1,176 @@
+package org.apache.cordova.health;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KLL quantile sketch: approximates quantiles of a stream of values in bounded memory.
+ * Values are kept in levels of compactors, when a level is full half of its values, chosen at random
+ * among odd or even positions, are promoted to the next level with double weight.
+ * With the default k = 200 the rank error is below 1.5% and the sketch holds less than 3k + 2 log2(n) values
+ * for n values added, 640 for a million. Sketches of different buckets can be merged.
+ */
+public class KllSketch {
+
+  static final int DEFAULT_K = 200;
+
+  private static final double DECAY = 2.0 / 3.0;
+
+  private final int k;
+
+  /**
+   * Values of each level, a value at level h stands for 2^h values
+   */
+  private final List<double[]> levels = new ArrayList<>();
+
+  private final List<Integer> sizes = new ArrayList<>();
+
+  private long count;
+
+  private int retained;
+
+  public KllSketch() {
+    this(DEFAULT_K);
+  }
+
+  public KllSketch(int k) {
+    this.k = k;
+    addLevel();
+  }
+
+  private void addLevel() {
+    levels.add(new double[capacity(levels.size(), levels.size() + 1)]);
+    sizes.add(0);
+  }
+
+  /**
+   * Capacity of a level, the top level is the largest, lower levels shrink geometrically
+   */
+  private int capacity(int level, int height) {
+    return Math.max(2, (int) Math.ceil(k * Math.pow(DECAY, height - 1 - level)));
+  }
+
+  private int maxRetained() {
+    int total = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      total += capacity(h, levels.size());
+    }
+    return total;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the number of values held
+   */
+  int getRetained() {
+    return retained;
+  }
+
+  public void add(double value) {
+    append(0, value);
+    count++;
+    if (retained >= maxRetained()) {
+      compress();
+    }
+  }
+
+  private void append(int level, double value) {
+    double[] items = levels.get(level);
+    int size = sizes.get(level);
+    if (size == items.length) {
+      items = Arrays.copyOf(items, Math.max(2, items.length * 2));
+      levels.set(level, items);
+    }
+    items[size] = value;
+    sizes.set(level, size + 1);
+    retained++;
+  }
+
+  /**
+   * Compacts the lowest level that is over capacity
+   */
+  private void compress() {
+    for (int h = 0; h < levels.size(); h++) {
+      int size = sizes.get(h);
+      if (size >= capacity(h, levels.size())) {
+        if (h + 1 == levels.size()) {
+          addLevel();
+        }
+        double[] items = levels.get(h);
+        Arrays.sort(items, 0, size);
+        // with an odd number of values, the last one stays at this level
+        int pairs = size / 2;
+        int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+        for (int i = 0; i < pairs; i++) {
+          append(h + 1, items[2 * i + offset]);
+        }
+        int kept = size - 2 * pairs;
+        if (kept == 1) {
+          items[0] = items[size - 1];
+        }
+        sizes.set(h, kept);
+        retained -= 2 * pairs;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds all the values of another sketch to this one
+   */
+  public void merge(KllSketch other) {
+    while (levels.size() < other.levels.size()) {
+      addLevel();
+    }
+    for (int h = 0; h < other.levels.size(); h++) {
+      double[] items = other.levels.get(h);
+      int size = other.sizes.get(h);
+      for (int i = 0; i < size; i++) {
+        append(h, items[i]);
+      }
+    }
+    count += other.count;
+    while (retained >= maxRetained()) {
+      compress();
+    }
+  }
+
+  /**
+   * Estimates the value below which a fraction of the values fall
+   *
+   * @param q the fraction, between 0 and 1
+   * @return the value, NaN if the sketch is empty
+   */
+  public double quantile(double q) {
+    if (retained == 0) return Double.NaN;
+    double[] values = new double[retained];
+    long[] weights = new long[retained];
+    int n = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      double[] items = levels.get(h);
+      for (int i = 0; i < sizes.get(h); i++) {
+        values[n] = items[i];
+        weights[n] = 1L << h;
+        n++;
+      }
+    }
+    // sort values together with their weights
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+    long total = 0;
+    for (long w : weights) total += w;
+    double target = q * total;
+    long cumulative = 0;
+    for (Integer i : order) {
+      cumulative += weights[i];
+      if (cumulative >= target) return values[i];
+    }
+    return values[order[n - 1]];
+  }
+}
@@ -0,0 +1,119 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in the style of HdrHistogram: buckets are powers of two, each split in
+ * 8 linear sub-buckets, which keeps the error of percentiles below 12.5% at any scale.
+ * Recording only touches striped counters, so it can be called from many threads without locking.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  /**
+   * Counts by bucket, values are in microseconds
+   */
+  private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+  private final LongAdder total = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a latency
+   *
+   * @param nanos latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts[bucketOf(micros)].increment();
+    total.increment();
+    sum.add(micros);
+    max.accumulate(micros);
+  }
+
+  public long getCount() {
+    return total.sum();
+  }
+
+  /**
+   * Gets a percentile, approximated with the middle of the bucket it falls in
+   *
+   * @param percentile between 0 and 100
+   * @return the latency in microseconds
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts[i].sum();
+      count += snapshot[i];
+    }
+    if (count == 0) return 0;
+    long rank = (long) Math.ceil(percentile / 100.0 * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(max.get(), (lowestValueOf(i) + lowestValueOf(i + 1) - 1) / 2);
+      }
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (LongAdder c : counts) {
+      c.reset();
+    }
+    total.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  /**
+   * @return summary of the histogram, latencies are in milliseconds
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject obj = new JSONObject();
+    long count = total.sum();
+    obj.put("count", count);
+    obj.put("mean", count == 0 ? 0 : sum.sum() / (double) count / 1000.0);
+    obj.put("p50", getPercentile(50) / 1000.0);
+    obj.put("p90", getPercentile(90) / 1000.0);
+    obj.put("p99", getPercentile(99) / 1000.0);
+    obj.put("max", max.get() / 1000.0);
+    return obj;
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long lowestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    if (exponent >= 63) return Long.MAX_VALUE;
+    return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,158 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.Record;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Removes double counting between records of different apps that cover the same time, such as the steps
+ * counted by both the phone and the watch. Records are taken in order of priority of their source and each one
+ * only keeps the parts of its interval not already claimed by a record taken before, its value being
+ * prorated by duration. Claimed time is kept as a set of disjoint intervals in a sorted map,
+ * so resolving n records takes O(n log n).
+ */
+public class OverlapResolver {
+
+  private static class Fragment {
+    final RecordRow row;
+    final int rank;
+    final long seq;
+    final long recordStart;
+    final long recordEnd;
+    long start;
+    long end;
+    /**
+     * Time kept from the record before this fragment
+     */
+    long keptBefore;
+
+    Fragment(RecordRow row, int rank, long seq, long start, long end) {
+      this.row = row;
+      this.rank = rank;
+      this.seq = seq;
+      this.recordStart = start;
+      this.recordEnd = end;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final List<String> priority;
+
+  private final List<Fragment> records = new ArrayList<>();
+
+  /**
+   * Constructor
+   *
+   * @param priority package names of the source apps, the first wins, apps not listed come last
+   */
+  public OverlapResolver(List<String> priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Adds a record
+   */
+  public void add(RecordRow row) {
+    Record record = row.getRecord();
+    Object source = row.get("sourceBundleId");
+    int rank = source != null ? priority.indexOf(source.toString()) : -1;
+    records.add(new Fragment(row, rank >= 0 ? rank : priority.size(), records.size(),
+      RecordUtils.startTime(record).toEpochMilli(), RecordUtils.endTime(record).toEpochMilli()));
+  }
+
+  /**
+   * Resolves the overlaps
+   *
+   * @param fields    fields to be returned, null for all
+   * @param ascending order of the records returned, by start date
+   * @param limit     maximum number of records returned, only those are serialized
+   * @return the records, or the parts of them that are kept, with their value prorated
+   */
+  public JSONArray resolve(List<String> fields, boolean ascending, int limit) throws JSONException {
+    records.sort(Comparator.<Fragment>comparingInt(f -> f.rank).thenComparingLong(f -> f.recordStart).thenComparingLong(f -> f.seq));
+    // start -> end of the time already claimed by records with higher priority
+    TreeMap<Long, Long> claimed = new TreeMap<>();
+    List<Fragment> kept = new ArrayList<>();
+    for (Fragment record : records) {
+      if (record.recordEnd <= record.recordStart) {
+        // an instant is kept if no interval covers it
+        Map.Entry<Long, Long> floor = claimed.floorEntry(record.recordStart);
+        if (floor == null || floor.getValue() <= record.recordStart) kept.add(record);
+        continue;
+      }
+      long cur = record.recordStart;
+      long keptBefore = 0;
+      Map.Entry<Long, Long> floor = claimed.floorEntry(record.recordStart);
+      if (floor != null && floor.getValue() > cur) cur = floor.getValue();
+      for (Map.Entry<Long, Long> over : claimed.subMap(record.recordStart, false, record.recordEnd, false).entrySet()) {
+        if (over.getKey() > cur) {
+          kept.add(fragment(record, cur, over.getKey(), keptBefore));
+          keptBefore += over.getKey() - cur;
+        }
+        cur = Math.max(cur, over.getValue());
+      }
+      if (cur < record.recordEnd) {
+        kept.add(fragment(record, cur, record.recordEnd, keptBefore));
+      }
+      claim(claimed, record.recordStart, record.recordEnd);
+    }
+
+    Comparator<Fragment> byStart = Comparator.<Fragment>comparingLong(f -> f.start).thenComparingLong(f -> f.end);
+    kept.sort(ascending ? byStart : byStart.reversed());
+    JSONArray resultset = new JSONArray();
+    for (Fragment f : kept.subList(0, Math.min(limit, kept.size()))) {
+      JSONObject obj = f.row.toJSON(fields);
+      if (f.start != f.recordStart || f.end != f.recordEnd) {
+        if (fields == null || fields.contains("startDate")) obj.put("startDate", f.start);
+        if (fields == null || fields.contains("endDate")) obj.put("endDate", f.end);
+        Object value = f.row.get("value");
+        if ((fields == null || fields.contains("value")) && value instanceof Number) {
+          double perMs = ((Number) value).doubleValue() / (f.recordEnd - f.recordStart);
+          if (value instanceof Long) {
+            // counts stay integers, rounded cumulatively so that the parts of a record add up to its rounded share
+            obj.put("value", Math.round(perMs * (f.keptBefore + f.end - f.start)) - Math.round(perMs * f.keptBefore));
+          } else {
+            obj.put("value", perMs * (f.end - f.start));
+          }
+        }
+      }
+      resultset.put(obj);
+    }
+    return resultset;
+  }
+
+  private static Fragment fragment(Fragment record, long start, long end, long keptBefore) {
+    Fragment f = new Fragment(record.row, record.rank, record.seq, record.recordStart, record.recordEnd);
+    f.start = start;
+    f.end = end;
+    f.keptBefore = keptBefore;
+    return f;
+  }
+
+  /**
+   * Adds an interval to the claimed time, merging it with the intervals it touches
+   */
+  private static void claim(TreeMap<Long, Long> claimed, long start, long end) {
+    Map.Entry<Long, Long> floor = claimed.floorEntry(start);
+    if (floor != null && floor.getValue() >= start) {
+      start = floor.getKey();
+      end = Math.max(end, floor.getValue());
+    }
+    NavigableMap<Long, Long> touched = claimed.subMap(start, true, end, true);
+    for (Long e : touched.values()) {
+      end = Math.max(end, e);
+    }
+    touched.clear();
+    claimed.put(start, end);
+  }
+}
@@ -0,0 +1,252 @@
+package org.apache.cordova.health;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the pages of a query ahead of time, in the background, so that reading from Health Connect
+ * overlaps with serializing and delivering the pages already read.
+ * Pages are requested with the same sizes that the query would use, so that the records returned to JS do not change.
+ */
+public class PagePrefetcher {
+
+  /**
+   * Reads a page from Health Connect
+   */
+  public interface PageReader {
+    RecordPage read(String pageToken, int pageSize) throws InterruptedException;
+  }
+
+  /**
+   * Limits the records held by all prefetchers, so that memory stays bounded. Pages that a consumer is waiting for
+   * can also be taken from a small reserve, so that pages read ahead by idle cursors cannot block other queries
+   */
+  public static class Budget {
+    private final int maxRecords;
+    private final int maxWaited;
+    private int reserved;
+    private int waited;
+
+    /**
+     * Constructor
+     *
+     * @param maxRecords records of all pages read ahead
+     * @param maxWaited  records of the pages consumers are waiting for, once maxRecords is used
+     */
+    public Budget(int maxRecords, int maxWaited) {
+      this.maxRecords = maxRecords;
+      this.maxWaited = maxWaited;
+    }
+
+    /**
+     * @param waitedFor true if a consumer is waiting for the page
+     * @return true if the page can be read
+     */
+    synchronized boolean reserve(int records, boolean waitedFor) {
+      if (reserved + records <= maxRecords) {
+        reserved += records;
+        return true;
+      }
+      if (waitedFor && waited + records <= maxWaited) {
+        waited += records;
+        return true;
+      }
+      return false;
+    }
+
+    synchronized void release(int records) {
+      // the reserve is given back first, so that it is free for the next waiting consumer
+      int fromWaited = Math.min(records, waited);
+      waited -= fromWaited;
+      reserved -= records - fromWaited;
+    }
+  }
+
+  /**
+   * A page read in advance
+   */
+  public static class Fetched {
+    public final RecordPage page;
+    /**
+     * Records that were requested, the page may have less
+     */
+    public final int pageSize;
+    public final long nanos;
+    final Exception error;
+
+    Fetched(RecordPage page, int pageSize, long nanos, Exception error) {
+      this.page = page;
+      this.pageSize = pageSize;
+      this.nanos = nanos;
+      this.error = error;
+    }
+  }
+
+  private final PageReader reader;
+
+  private final Budget budget;
+
+  /**
+   * Records returned to JS at each call, pages are sized so that they add up to it
+   */
+  private final int limit;
+
+  private final int depth;
+
+  /**
+   * If false, pages are only read up to the end of the current call
+   */
+  private final boolean acrossCalls;
+
+  private final ArrayDeque<Fetched> ready = new ArrayDeque<>();
+
+  private String nextToken;
+
+  private int remainingInCall;
+
+  private boolean finished;
+
+  private boolean closed;
+
+  /**
+   * True while the consumer waits for a page
+   */
+  private boolean consumerWaiting;
+
+  private Future<?> task;
+
+  /**
+   * Constructor
+   *
+   * @param reader      reads pages
+   * @param pageToken   token of the first page to read, empty for the first page of the query
+   * @param limit       records returned to JS at each call
+   * @param depth       pages read ahead
+   * @param acrossCalls if true, reading continues after the records of the current call have been read
+   * @param budget      limit to the records held in memory
+   */
+  public PagePrefetcher(PageReader reader, String pageToken, int limit, int depth, boolean acrossCalls, Budget budget) {
+    this.reader = reader;
+    this.nextToken = pageToken;
+    this.limit = limit;
+    this.remainingInCall = limit;
+    this.depth = Math.max(1, depth);
+    this.acrossCalls = acrossCalls;
+    this.budget = budget;
+  }
+
+  public void start(ExecutorService executor) {
+    task = executor.submit(this::run);
+  }
+
+  public boolean isAcrossCalls() {
+    return acrossCalls;
+  }
+
+  private void run() {
+    while (true) {
+      String token;
+      int pageSize;
+      synchronized (this) {
+        try {
+          while (!closed && !finished) {
+            pageSize = Math.min(remainingInCall, HealthPlugin.MAX_PAGE_SIZE);
+            if (ready.size() >= depth) {
+              // only next() and close() make room, and they notify
+              wait();
+            } else if (budget.reserve(pageSize, consumerWaiting)) {
+              break;
+            } else {
+              // the budget is freed by other prefetchers too, check it again in a while
+              wait(50);
+            }
+          }
+        } catch (InterruptedException ex) {
+          return;
+        }
+        if (closed || finished) return;
+        token = nextToken;
+        pageSize = Math.min(remainingInCall, HealthPlugin.MAX_PAGE_SIZE);
+      }
+
+      long st = System.nanoTime();
+      Fetched fetched;
+      try {
+        RecordPage page = reader.read(token.isEmpty() ? null : token, pageSize);
+        fetched = new Fetched(page, pageSize, System.nanoTime() - st, null);
+      } catch (InterruptedException ex) {
+        budget.release(pageSize);
+        return;
+      } catch (Exception ex) {
+        fetched = new Fetched(null, pageSize, System.nanoTime() - st, ex);
+      }
+
+      synchronized (this) {
+        if (closed) {
+          budget.release(pageSize);
+          return;
+        }
+        ready.add(fetched);
+        if (fetched.error != null) {
+          finished = true;
+        } else {
+          nextToken = fetched.page.getPageToken() != null ? fetched.page.getPageToken() : "";
+          remainingInCall -= pageSize;
+          if (remainingInCall <= 0) {
+            remainingInCall = limit;
+            finished = !acrossCalls;
+          }
+          if (nextToken.isEmpty()) {
+            finished = true;
+          }
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Takes the next page, waiting for it to be read if needed
+   *
+   * @return the page, or null if no more pages will be read
+   */
+  public synchronized Fetched next() throws InterruptedException {
+    try {
+      while (ready.isEmpty() && !finished && !closed) {
+        consumerWaiting = true;
+        // the page can now be read from the reserve
+        notifyAll();
+        wait();
+      }
+    } finally {
+      consumerWaiting = false;
+    }
+    Fetched fetched = ready.poll();
+    if (fetched == null) return null;
+    budget.release(fetched.pageSize);
+    notifyAll();
+    if (fetched.error instanceof RuntimeException) {
+      throw (RuntimeException) fetched.error;
+    } else if (fetched.error != null) {
+      throw new IllegalStateException(fetched.error.getMessage(), fetched.error);
+    }
+    return fetched;
+  }
+
+  /**
+   * Stops reading and drops the pages read in advance
+   */
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    if (task != null) {
+      task.cancel(true);
+    }
+    for (Fetched fetched : ready) {
+      budget.release(fetched.pageSize);
+    }
+    ready.clear();
+    notifyAll();
+  }
+}
@@ -0,0 +1,51 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runtime metrics of the plugin, by action and data type
+ */
+public class PluginMetrics {
+
+  private final ConcurrentHashMap<String, ActionMetrics> metrics = new ConcurrentHashMap<>();
+
+  private volatile long since = System.currentTimeMillis();
+
+  /**
+   * Gets the metrics of an action on a data type, creating them the first time
+   */
+  public ActionMetrics get(String action, String dataType) {
+    String key = action + '/' + dataType;
+    ActionMetrics m = metrics.get(key);
+    if (m == null) {
+      m = metrics.computeIfAbsent(key, k -> new ActionMetrics(action, dataType));
+    }
+    return m;
+  }
+
+  public void reset() {
+    for (ActionMetrics m : metrics.values()) {
+      m.reset();
+    }
+    since = System.currentTimeMillis();
+  }
+
+  /**
+   * @return snapshot of all metrics
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("since", since);
+    obj.put("timestamp", System.currentTimeMillis());
+    JSONArray actions = new JSONArray();
+    for (ActionMetrics m : metrics.values()) {
+      actions.put(m.toJSON());
+    }
+    obj.put("actions", actions);
+    return obj;
+  }
+}
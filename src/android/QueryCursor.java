@@ -0,0 +1,102 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import kotlin.reflect.KClass;
+
+/**
+ * State of a query that can be continued: the query itself and where Health Connect stopped
+ */
+public class QueryCursor {
+
+  final String dataType;
+
+  final KClass<? extends Record> recordClass;
+
+  final Instant startTime;
+
+  final Instant endTime;
+
+  final Set<DataOrigin> dataOrigins;
+
+  final boolean ascending;
+
+  /**
+   * Records read at each call
+   */
+  int limit;
+
+  /**
+   * Health Connect page token of the next page, empty when there are no more pages
+   */
+  String pageToken = "";
+
+  /**
+   * Fields returned to JS, null for all
+   */
+  List<String> fields;
+
+  /**
+   * Condition that records must satisfy to be returned, null for all
+   */
+  RecordFilter filter;
+
+  /**
+   * Pages read ahead for the next calls, 0 to read only when asked
+   */
+  int prefetch;
+
+  /**
+   * Priority of the calls made in the background
+   */
+  RequestScheduler.Lane lane = RequestScheduler.Lane.INTERACTIVE;
+
+  /**
+   * Pages being read in advance, if any. Its first page is always the one of pageToken
+   */
+  PagePrefetcher prefetcher;
+
+  /**
+   * Constructor
+   *
+   * @param dataType    data type, as named in JS
+   * @param recordClass class of the records
+   * @param startTime   start of the time range
+   * @param endTime     end of the time range
+   * @param dataOrigins apps the records come from, empty for all
+   * @param ascending   order of the records
+   * @param limit       records to be returned at each call
+   */
+  public QueryCursor(String dataType, KClass<? extends Record> recordClass, Instant startTime, Instant endTime,
+                     Set<DataOrigin> dataOrigins, boolean ascending, int limit) {
+    this.dataType = dataType;
+    this.recordClass = recordClass;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.dataOrigins = dataOrigins;
+    this.ascending = ascending;
+    this.limit = limit;
+  }
+
+  /**
+   * @return true if Health Connect has more records
+   */
+  public boolean hasMore() {
+    return !pageToken.isEmpty();
+  }
+
+  /**
+   * Stops reading ahead, releasing the pages already read
+   */
+  public void closePrefetcher() {
+    if (prefetcher != null) {
+      prefetcher.close();
+      prefetcher = null;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing breakdown of a single request, returned to JS when the request asks to be profiled
+ */
+public class QueryProfile {
+
+  /**
+   * A call to Health Connect
+   */
+  private static class Step {
+    final String call;
+    final long nanos;
+    final int records;
+
+    Step(String call, long nanos, int records) {
+      this.call = call;
+      this.nanos = nanos;
+      this.records = records;
+    }
+  }
+
+  private final List<Step> steps = new ArrayList<>();
+
+  private long queueTime;
+
+  private long parseTime;
+
+  private long serializationTime;
+
+  private int pages;
+
+  private int shards;
+
+  private int cacheHits;
+
+  /**
+   * @param nanos time spent waiting for a thread
+   */
+  void setQueueTime(long nanos) {
+    queueTime = nanos;
+  }
+
+  /**
+   * @param nanos time spent parsing the arguments
+   */
+  void addParseTime(long nanos) {
+    parseTime += nanos;
+  }
+
+  void addSerializationTime(long nanos) {
+    serializationTime += nanos;
+  }
+
+  /**
+   * Adds a call to Health Connect
+   *
+   * @param call    name of the call
+   * @param nanos   time spent
+   * @param records number of records or buckets returned
+   */
+  synchronized void addStep(String call, long nanos, int records) {
+    steps.add(new Step(call, nanos, records));
+  }
+
+  synchronized void addPage() {
+    pages++;
+  }
+
+  synchronized void addShard() {
+    shards++;
+  }
+
+  synchronized void addCacheHit() {
+    cacheHits++;
+  }
+
+  /**
+   * @param totalNanos time spent by the whole request so far
+   * @return the profile, times are in milliseconds
+   */
+  synchronized JSONObject toJSON(long totalNanos) throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("queue", millis(queueTime));
+    obj.put("parse", millis(parseTime));
+    JSONArray ipc = new JSONArray();
+    long ipcTime = 0;
+    for (Step step : steps) {
+      JSONObject s = new JSONObject();
+      s.put("call", step.call);
+      s.put("time", millis(step.nanos));
+      s.put("records", step.records);
+      ipc.put(s);
+      ipcTime += step.nanos;
+    }
+    obj.put("ipc", ipc);
+    obj.put("ipcTotal", millis(ipcTime));
+    obj.put("serialization", millis(serializationTime));
+    obj.put("pages", pages);
+    obj.put("shards", shards);
+    obj.put("cacheHits", cacheHits);
+    obj.put("total", millis(totalNanos));
+    return obj;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1_000_000.0;
+  }
+}
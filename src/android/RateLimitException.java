@@ -0,0 +1,15 @@
+package org.apache.cordova.health;
+
+/**
+ * Thrown by a backend when the app has exceeded its Health Connect quota, the call can be tried again later
+ */
+public class RateLimitException extends RuntimeException {
+
+  public RateLimitException(String message) {
+    super(message);
+  }
+
+  public RateLimitException(Throwable cause) {
+    super(cause.getMessage(), cause);
+  }
+}
@@ -0,0 +1,136 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
+import androidx.health.connect.client.records.BasalMetabolicRateRecord;
+import androidx.health.connect.client.records.BodyFatRecord;
+import androidx.health.connect.client.records.ExerciseLap;
+import androidx.health.connect.client.records.ExerciseSegment;
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.StepsRecord;
+import androidx.health.connect.client.records.WeightRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Metadata;
+import androidx.health.connect.client.units.Energy;
+import androidx.health.connect.client.units.Mass;
+import androidx.health.connect.client.units.Percentage;
+import androidx.health.connect.client.units.Power;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Builds the records to be written to Health Connect from the objects passed to store() or read from an imported file
+ */
+public class RecordFactory {
+
+  /**
+   * Builds a record
+   *
+   * @param obj             startDate, endDate, dataType and value, dates in ms
+   * @param defaultDataType data type used if the object has none, can be null
+   * @throws IllegalArgumentException if an argument is missing or the data type cannot be stored
+   * @throws JSONException            if a value has the wrong type
+   */
+  public static Record fromJSON(JSONObject obj, String defaultDataType) throws JSONException {
+    if (!obj.has("startDate")) {
+      throw new IllegalArgumentException("Missing argument startDate");
+    }
+    long st = obj.getLong("startDate");
+
+    if (!obj.has("endDate")) {
+      throw new IllegalArgumentException("Missing argument endDate");
+    }
+    long et = obj.getLong("endDate");
+
+    String datatype = obj.optString("dataType", defaultDataType);
+    if (datatype == null || datatype.isEmpty()) {
+      throw new IllegalArgumentException("Missing argument dataType");
+    }
+
+    if (!obj.has("value")) {
+      throw new IllegalArgumentException("Missing argument value");
+    }
+
+    Metadata metadata = metadata(obj);
+
+    // DATA_TYPES here we need to add support for each different data type
+    // TODO: we could add meta data when storing, including entry method and device
+    if (datatype.equalsIgnoreCase("steps")) {
+      return new StepsRecord(
+        Instant.ofEpochMilli(st), null,
+        Instant.ofEpochMilli(et), null,
+        obj.getLong("value"),
+        metadata
+      );
+    } else if (datatype.equalsIgnoreCase("weight")) {
+      return new WeightRecord(
+        Instant.ofEpochMilli(st), null,
+        Mass.kilograms(obj.getDouble("value")),
+        metadata
+      );
+    } else if (datatype.equalsIgnoreCase("fat_percentage")) {
+      return new BodyFatRecord(
+        Instant.ofEpochMilli(st), null,
+        new Percentage(obj.getDouble("value")),
+        metadata
+      );
+    } else if (datatype.equalsIgnoreCase("activity")) {
+      int exerciseType = ActivityMapper.exerciseTypeFromActivity(obj.getString("value"));
+      String title = null;
+      String notes = null;
+      List<ExerciseSegment> segments = new LinkedList<>();
+      List<ExerciseLap> laps = new LinkedList<>();
+      return new ExerciseSessionRecord(
+        Instant.ofEpochMilli(st), null,
+        Instant.ofEpochMilli(et), null,
+        exerciseType,
+        title, notes,
+        metadata,
+        segments, laps
+      );
+    } else if (datatype.equalsIgnoreCase("calories.active")) {
+      return new ActiveCaloriesBurnedRecord(
+        Instant.ofEpochMilli(st), null,
+        Instant.ofEpochMilli(et), null,
+        Energy.kilocalories(obj.getDouble("value")),
+        metadata
+      );
+    } else if (datatype.equalsIgnoreCase("calories.basal")) {
+      double kcals = obj.getDouble("value");
+      // convert kcals to power
+      double ms = (et - st);
+      double kcalsDay = kcals / (ms / (double) (86400000));
+      return new BasalMetabolicRateRecord(
+        Instant.ofEpochMilli(st), null,
+        Power.kilocaloriesPerDay(kcalsDay),
+        metadata
+      );
+    }
+    throw new IllegalArgumentException("Datatype not supported " + datatype);
+  }
+
+  /**
+   * Builds the metadata of a record. With a client record id, Health Connect updates the record
+   * previously written with the same id instead of adding a new one, if the version is higher, or else ignores it
+   */
+  private static Metadata metadata(JSONObject obj) throws JSONException {
+    if (!obj.has("clientRecordId")) {
+      if (obj.has("clientRecordVersion")) {
+        throw new IllegalArgumentException("clientRecordVersion needs a clientRecordId");
+      }
+      return Metadata.EMPTY;
+    }
+    String clientRecordId = obj.getString("clientRecordId");
+    if (clientRecordId.isEmpty()) {
+      throw new IllegalArgumentException("clientRecordId cannot be empty");
+    }
+    long clientRecordVersion = obj.has("clientRecordVersion") ? obj.getLong("clientRecordVersion") : 0;
+    return new Metadata("", new DataOrigin(""), Instant.EPOCH, clientRecordId, clientRecordVersion, null,
+      Metadata.RECORDING_METHOD_UNKNOWN);
+  }
+}
@@ -0,0 +1,208 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the records of a file written by {@link ExportWriter}, or by a server in the same format, one line at a time,
+ * so that memory does not depend on the size of the file. Keeps the offset in bytes (of the uncompressed content)
+ * of the end of the last record read, from which a later reader can start again.
+ */
+public class RecordFileReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+
+  private final String format;
+
+  private final byte[] buf = new byte[BUFFER_SIZE];
+
+  private int bufPos;
+
+  private int bufLen;
+
+  /**
+   * Bytes of the content before the buffer
+   */
+  private long consumed;
+
+  private byte[] line = new byte[256];
+
+  private List<String> columns;
+
+  private long offset;
+
+  /**
+   * Constructor, opens the file
+   *
+   * @param file   the file
+   * @param format NDJSON or CSV
+   * @param gzip   true if the file is gzip compressed
+   * @param offset where to start, as returned by getOffset(), 0 for the beginning
+   */
+  public RecordFileReader(File file, String format, boolean gzip, long offset) throws IOException {
+    if (!ExportWriter.FORMATS.contains(format)) {
+      throw new IllegalArgumentException("Format must be one of " + ExportWriter.FORMATS);
+    }
+    this.format = format;
+    InputStream stream = new FileInputStream(file);
+    this.in = gzip ? new GZIPInputStream(stream, BUFFER_SIZE) : stream;
+    try {
+      if (ExportWriter.CSV.equals(format)) {
+        String header = readLine();
+        if (header == null) {
+          throw new EOFException("Missing CSV header");
+        }
+        columns = parseCsv(header);
+      }
+      if (offset > position()) {
+        skip(offset - position());
+      }
+      this.offset = position();
+    } catch (IOException ex) {
+      in.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Reads the next record
+   *
+   * @return the record, with the fields of the line, null at the end of the file
+   * @throws JSONException if the line is not valid
+   */
+  public JSONObject next() throws IOException, JSONException {
+    String text;
+    do {
+      text = readLine();
+      if (text == null) return null;
+    } while (text.trim().isEmpty());
+    JSONObject obj;
+    if (ExportWriter.NDJSON.equals(format)) {
+      obj = new JSONObject(text);
+    } else {
+      // a quoted value can contain line breaks
+      while (!balancedQuotes(text)) {
+        String more = readLine();
+        if (more == null) throw new JSONException("Unterminated quoted value");
+        text = text + "\n" + more;
+      }
+      List<String> values = parseCsv(text);
+      if (values.size() > columns.size()) {
+        throw new JSONException("Expected " + columns.size() + " values, found " + values.size());
+      }
+      obj = new JSONObject();
+      for (int i = 0; i < values.size(); i++) {
+        if (!values.get(i).isEmpty()) obj.put(columns.get(i), values.get(i));
+      }
+    }
+    offset = position();
+    return obj;
+  }
+
+  /**
+   * @return offset in bytes of the end of the last record read, or of where reading started
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private long position() {
+    return consumed + bufPos;
+  }
+
+  private boolean fill() throws IOException {
+    consumed += bufLen;
+    bufPos = 0;
+    bufLen = Math.max(0, in.read(buf));
+    return bufLen > 0;
+  }
+
+  private void skip(long bytes) throws IOException {
+    while (bytes > 0) {
+      if (bufPos == bufLen && !fill()) {
+        throw new EOFException("Offset beyond the end of the file");
+      }
+      int n = (int) Math.min(bytes, bufLen - bufPos);
+      bufPos += n;
+      bytes -= n;
+    }
+  }
+
+  /**
+   * @return the next line without its line break, null at the end of the file
+   */
+  private String readLine() throws IOException {
+    int len = 0;
+    boolean any = false;
+    while (true) {
+      if (bufPos == bufLen && !fill()) break;
+      any = true;
+      byte b = buf[bufPos++];
+      if (b == '\n') break;
+      if (len == line.length) {
+        line = Arrays.copyOf(line, len * 2);
+      }
+      line[len++] = b;
+    }
+    if (!any) return null;
+    if (len > 0 && line[len - 1] == '\r') len--;
+    String text = new String(line, 0, len, StandardCharsets.UTF_8);
+    // byte order mark written by some spreadsheets
+    return text.startsWith("\uFEFF") ? text.substring(1) : text;
+  }
+
+  private static boolean balancedQuotes(String text) {
+    int quotes = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '"') quotes++;
+    }
+    return quotes % 2 == 0;
+  }
+
+  private static List<String> parseCsv(String text) {
+    List<String> values = new ArrayList<>();
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+          value.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          value.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        values.add(value.toString());
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    values.add(value.toString());
+    return values;
+  }
+}
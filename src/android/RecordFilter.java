@@ -0,0 +1,124 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.units.Percentage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Condition on the fields of a record, evaluated before the record is converted to JSON.
+ * Built from an object like { value: { gt: 0 }, entryMethod: { ne: 'manual_entry' } },
+ * where all conditions must be true. A plain value, as in { unit: 'kg' }, means equality.
+ * Supported operators are eq, ne, gt, gte, lt, lte and in.
+ */
+public class RecordFilter {
+
+  private static class Condition {
+    final String field;
+    final String op;
+    final Object operand;
+
+    Condition(String field, String op, Object operand) {
+      this.field = field;
+      this.op = op;
+      this.operand = operand;
+    }
+  }
+
+  private final List<Condition> conditions = new ArrayList<>();
+
+  /**
+   * Parses a filter
+   *
+   * @param filter the filter, as passed from JS
+   * @throws IllegalArgumentException if a field or an operator is not known
+   */
+  public RecordFilter(JSONObject filter) throws JSONException {
+    Iterator<String> fields = filter.keys();
+    while (fields.hasNext()) {
+      String field = fields.next();
+      if (!RecordRow.FIELDS.contains(field)) {
+        throw new IllegalArgumentException("Unknown field " + field);
+      }
+      Object cond = filter.get(field);
+      if (cond instanceof JSONObject) {
+        JSONObject ops = (JSONObject) cond;
+        Iterator<String> it = ops.keys();
+        while (it.hasNext()) {
+          String op = it.next();
+          if (!op.equals("eq") && !op.equals("ne") && !op.equals("gt") && !op.equals("gte")
+            && !op.equals("lt") && !op.equals("lte") && !op.equals("in")) {
+            throw new IllegalArgumentException("Unknown operator " + op);
+          }
+          conditions.add(new Condition(field, op, ops.get(op)));
+        }
+      } else {
+        conditions.add(new Condition(field, "eq", cond));
+      }
+    }
+  }
+
+  /**
+   * @return true if the record satisfies all conditions
+   */
+  public boolean matches(RecordRow row) {
+    for (Condition c : conditions) {
+      if (!matches(row.get(c.field), c.op, c.operand)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(Object value, String op, Object operand) {
+    switch (op) {
+      case "eq":
+        return same(value, operand);
+      case "ne":
+        return !same(value, operand);
+      case "in":
+        if (operand instanceof JSONArray) {
+          JSONArray options = (JSONArray) operand;
+          for (int i = 0; i < options.length(); i++) {
+            if (same(value, options.opt(i))) return true;
+          }
+        }
+        return false;
+      default:
+        // ordering only applies to numbers, missing values never match
+        Double a = number(value);
+        Double b = number(operand);
+        if (a == null || b == null) return false;
+        int cmp = Double.compare(a, b);
+        switch (op) {
+          case "gt":
+            return cmp > 0;
+          case "gte":
+            return cmp >= 0;
+          case "lt":
+            return cmp < 0;
+          default:
+            return cmp <= 0;
+        }
+    }
+  }
+
+  private static boolean same(Object value, Object operand) {
+    if (value == null) return operand == null || JSONObject.NULL.equals(operand);
+    Double a = number(value);
+    Double b = number(operand);
+    if (a != null && b != null) return a.doubleValue() == b.doubleValue();
+    return value.toString().equals(String.valueOf(operand));
+  }
+
+  private static Double number(Object value) {
+    if (value instanceof Number) return ((Number) value).doubleValue();
+    if (value instanceof Percentage) return ((Percentage) value).getValue();
+    return null;
+  }
+}
@@ -0,0 +1,42 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.Record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of records as returned by a single read
+ */
+public class RecordPage {
+
+  private final List<Record> records;
+
+  private final String pageToken;
+
+  /**
+   * Constructor
+   *
+   * @param records   records contained in the page
+   * @param pageToken token used to read the following page, null if this is the last one
+   */
+  public RecordPage(List<? extends Record> records, String pageToken) {
+    this.records = new ArrayList<>(records);
+    this.pageToken = pageToken;
+  }
+
+  public List<Record> getRecords() {
+    return records;
+  }
+
+  public String getPageToken() {
+    return pageToken;
+  }
+
+  /**
+   * @return true if more records can be read after this page
+   */
+  public boolean hasMore() {
+    return pageToken != null && !pageToken.isEmpty();
+  }
+}
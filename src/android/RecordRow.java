@@ -0,0 +1,259 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
+import androidx.health.connect.client.records.BasalMetabolicRateRecord;
+import androidx.health.connect.client.records.BodyFatRecord;
+import androidx.health.connect.client.records.DistanceRecord;
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+import androidx.health.connect.client.records.FloorsClimbedRecord;
+import androidx.health.connect.client.records.HeartRateRecord;
+import androidx.health.connect.client.records.OxygenSaturationRecord;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.SleepSessionRecord;
+import androidx.health.connect.client.records.StepsRecord;
+import androidx.health.connect.client.records.WeightRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Device;
+import androidx.health.connect.client.units.Percentage;
+import androidx.health.connect.client.units.Power;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A record as seen by JS. Fields are only computed when needed, so that records can be filtered
+ * and projected without building what is thrown away.
+ */
+public class RecordRow {
+
+  /**
+   * Receives the numeric samples of a record
+   */
+  public interface SampleConsumer {
+    void accept(long time, double value);
+  }
+
+  /**
+   * Fields of a record returned to JS, in order
+   */
+  public static final List<String> FIELDS = Arrays.asList(
+    "id", "sourceDevice", "sourceBundleId", "entryMethod", "startDate", "endDate", "value", "unit");
+
+  private final Record record;
+
+  private boolean converted;
+
+  private boolean supported;
+
+  private Long startDate;
+
+  private Long endDate;
+
+  private Object value;
+
+  private String unit;
+
+  public RecordRow(Record record) {
+    this.record = record;
+  }
+
+  public Record getRecord() {
+    return record;
+  }
+
+  /**
+   * @return false if the type of record cannot be converted
+   */
+  public boolean isSupported() {
+    convert();
+    return supported;
+  }
+
+  /**
+   * Gets a field
+   *
+   * @param field one of FIELDS
+   * @return the value, or null if the record does not have it
+   */
+  public Object get(String field) {
+    switch (field) {
+      case "id":
+        return record.getMetadata().getId();
+      case "sourceDevice":
+        Device dev = record.getMetadata().getDevice();
+        if (dev != null) {
+          String manufacturer = dev.getManufacturer();
+          String model = dev.getModel();
+          if (manufacturer != null || model != null) {
+            return manufacturer + " " + model;
+          }
+        }
+        return null;
+      case "sourceBundleId":
+        DataOrigin origin = record.getMetadata().getDataOrigin();
+        return origin != null ? origin.getPackageName() : null;
+      case "entryMethod":
+        switch (record.getMetadata().getRecordingMethod()) {
+          case 1:
+            return "actively_recorded";
+          case 2:
+            return "automatically_recorded";
+          case 3:
+            return "manual_entry";
+          default:
+            return "unknown";
+        }
+      case "startDate":
+        convert();
+        return startDate;
+      case "endDate":
+        convert();
+        return endDate;
+      case "value":
+        convert();
+        return value;
+      case "unit":
+        convert();
+        return unit;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Goes through the numeric values of the record: each sample for heart rate, the value for other types.
+   * Records with a non numeric value, such as activities and sleep, have no samples
+   */
+  public void forEachSample(SampleConsumer consumer) {
+    if (record instanceof HeartRateRecord) {
+      for (HeartRateRecord.Sample sample : ((HeartRateRecord) record).getSamples()) {
+        consumer.accept(sample.getTime().toEpochMilli(), sample.getBeatsPerMinute());
+      }
+      return;
+    }
+    convert();
+    if (startDate == null) return;
+    if (value instanceof Number) {
+      consumer.accept(startDate, ((Number) value).doubleValue());
+    } else if (value instanceof Percentage) {
+      consumer.accept(startDate, ((Percentage) value).getValue());
+    }
+  }
+
+  /**
+   * Builds the JSON object passed to JS
+   *
+   * @param fields fields to be included, null for all
+   */
+  public JSONObject toJSON(List<String> fields) throws JSONException {
+    JSONObject obj = new JSONObject();
+    for (String field : fields != null ? fields : FIELDS) {
+      Object val = get(field);
+      if (val != null) {
+        obj.put(field, val);
+      }
+    }
+    return obj;
+  }
+
+  /**
+   * Computes the fields that depend on the type of record
+   */
+  private void convert() {
+    if (converted) return;
+    converted = true;
+    supported = true;
+
+    // DATA_TYPES here we need to add support for each different data type
+    if (record instanceof StepsRecord) {
+      StepsRecord stepsDP = (StepsRecord) record;
+      startDate = stepsDP.getStartTime().toEpochMilli();
+      endDate = stepsDP.getEndTime().toEpochMilli();
+      value = stepsDP.getCount();
+      unit = "count";
+    } else if (record instanceof WeightRecord) {
+      WeightRecord weightDP = (WeightRecord) record;
+      startDate = weightDP.getTime().toEpochMilli();
+      endDate = weightDP.getTime().toEpochMilli();
+      value = weightDP.getWeight().getKilograms();
+      unit = "kg";
+    } else if (record instanceof DistanceRecord) {
+      DistanceRecord distanceDP = (DistanceRecord) record;
+      startDate = distanceDP.getStartTime().toEpochMilli();
+      endDate = distanceDP.getEndTime().toEpochMilli();
+      value = distanceDP.getDistance().getMeters();
+      unit = "m";
+    } else if (record instanceof FloorsClimbedRecord) {
+      FloorsClimbedRecord climbedDP = (FloorsClimbedRecord) record;
+      startDate = climbedDP.getStartTime().toEpochMilli();
+      endDate = climbedDP.getEndTime().toEpochMilli();
+      value = climbedDP.getFloors();
+      unit = "count";
+    } else if (record instanceof BodyFatRecord) {
+      BodyFatRecord bodyFatDP = (BodyFatRecord) record;
+      startDate = bodyFatDP.getTime().toEpochMilli();
+      endDate = bodyFatDP.getTime().toEpochMilli();
+      value = bodyFatDP.getPercentage().getValue();
+      unit = "%";
+    } else if (record instanceof ExerciseSessionRecord) {
+      ExerciseSessionRecord activityDP = (ExerciseSessionRecord) record;
+      startDate = activityDP.getStartTime().toEpochMilli();
+      endDate = activityDP.getEndTime().toEpochMilli();
+      value = ActivityMapper.activityFromExerciseType(activityDP.getExerciseType());
+      unit = "activityType";
+    } else if (record instanceof ActiveCaloriesBurnedRecord) {
+      ActiveCaloriesBurnedRecord caloriesDP = (ActiveCaloriesBurnedRecord) record;
+      startDate = caloriesDP.getStartTime().toEpochMilli();
+      endDate = caloriesDP.getEndTime().toEpochMilli();
+      value = caloriesDP.getEnergy().getKilocalories();
+      unit = "kcal";
+    } else if (record instanceof BasalMetabolicRateRecord) {
+      BasalMetabolicRateRecord basalRateDP = (BasalMetabolicRateRecord) record;
+      startDate = basalRateDP.getTime().toEpochMilli();
+      endDate = basalRateDP.getTime().toEpochMilli();
+      Power pow = basalRateDP.getBasalMetabolicRate();
+      if (pow != null) {
+        value = pow.getKilocaloriesPerDay();
+        unit = "kcal/day";
+      }
+    } else if (record instanceof HeartRateRecord) {
+      HeartRateRecord heartDP = (HeartRateRecord) record;
+      for (HeartRateRecord.Sample sample : heartDP.getSamples()) {
+        startDate = sample.getTime().toEpochMilli();
+        endDate = sample.getTime().toEpochMilli();
+        unit = "count/min";
+        value = sample.getBeatsPerMinute();
+      }
+    } else if (record instanceof OxygenSaturationRecord) {
+      OxygenSaturationRecord oxygenSaturationDP = (OxygenSaturationRecord) record;
+      startDate = oxygenSaturationDP.getTime().toEpochMilli();
+      endDate = oxygenSaturationDP.getTime().toEpochMilli();
+      value = oxygenSaturationDP.getPercentage();
+      unit = "percentage";
+    } else if (record instanceof SleepSessionRecord) {
+      SleepSessionRecord sleepDP = (SleepSessionRecord) record;
+      for (SleepSessionRecord.Stage stage : sleepDP.getStages()) {
+        String sleep_stage = switch (stage.getStage()) {
+          case SleepSessionRecord.STAGE_TYPE_UNKNOWN -> "unknown";
+          case SleepSessionRecord.STAGE_TYPE_AWAKE_IN_BED -> "sleep.inBed";
+          case SleepSessionRecord.STAGE_TYPE_AWAKE,
+            SleepSessionRecord.STAGE_TYPE_OUT_OF_BED -> "sleep.awake";
+          case SleepSessionRecord.STAGE_TYPE_SLEEPING -> "sleep";
+          case SleepSessionRecord.STAGE_TYPE_LIGHT -> "sleep.light";
+          case SleepSessionRecord.STAGE_TYPE_DEEP -> "sleep.deep";
+          case SleepSessionRecord.STAGE_TYPE_REM -> "sleep.rem";
+          default -> "";
+        };
+        startDate = stage.getStartTime().toEpochMilli();
+        endDate = stage.getEndTime().toEpochMilli();
+        value = sleep_stage;
+        unit = "sleepType";
+      }
+    } else {
+      supported = false;
+    }
+  }
+}
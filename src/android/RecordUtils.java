@@ -0,0 +1,39 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.InstantaneousRecord;
+import androidx.health.connect.client.records.IntervalRecord;
+import androidx.health.connect.client.records.Record;
+
+import java.time.Instant;
+
+/**
+ * Helpers to access properties shared by all Health Connect records
+ */
+public class RecordUtils {
+
+  /**
+   * Gets the start time of a record, instantaneous records start and end at the same time
+   *
+   * @param record the record
+   * @return the start time
+   */
+  static Instant startTime(Record record) {
+    if (record instanceof IntervalRecord) {
+      return ((IntervalRecord) record).getStartTime();
+    }
+    return ((InstantaneousRecord) record).getTime();
+  }
+
+  /**
+   * Gets the end time of a record, instantaneous records start and end at the same time
+   *
+   * @param record the record
+   * @return the end time
+   */
+  static Instant endTime(Record record) {
+    if (record instanceof IntervalRecord) {
+      return ((IntervalRecord) record).getEndTime();
+    }
+    return ((InstantaneousRecord) record).getTime();
+  }
+}
@@ -0,0 +1,441 @@
+package org.apache.cordova.health;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callback context of a single request, it keeps track of where the request spends its time
+ * and updates the metrics when the result is sent back to JavaScript.
+ * Requests with a handle can be cancelled while running, requests with a deadline are interrupted when it expires.
+ */
+public class RequestContext extends CallbackContext {
+
+  /**
+   * A call to the health data store
+   */
+  public interface IpcCall<T> {
+    T call() throws InterruptedException;
+  }
+
+  private final CallbackContext callbackContext;
+
+  private final ActionMetrics metrics;
+
+  private final long startTime = System.nanoTime();
+
+  /**
+   * Identifier given by JS, used to cancel the request, may be null
+   */
+  private final String handle;
+
+  private volatile boolean cancelled;
+
+  /**
+   * Schedules the calls to Health Connect, may be null
+   */
+  private RequestScheduler scheduler;
+
+  private RequestScheduler.Lane lane = RequestScheduler.Lane.INTERACTIVE;
+
+  /**
+   * Thread running the request, interrupted when the request is cancelled
+   */
+  private Thread worker;
+
+  /**
+   * When the request must complete, as given by System.nanoTime(), 0 if there is no deadline
+   */
+  private long deadline;
+
+  private volatile boolean expired;
+
+  private ScheduledFuture<?> deadlineTimer;
+
+  /**
+   * Breakdown of where time is spent, only collected when requested
+   */
+  private QueryProfile profile;
+
+  /**
+   * Additional properties returned together with the data
+   */
+  private JSONObject extras;
+
+  private int records;
+
+  private long serializationTime;
+
+  private boolean done;
+
+  /**
+   * Pages that JS is ready to receive, for streamed results
+   */
+  private int credit;
+
+  /**
+   * Constructor
+   *
+   * @param callbackContext the callback context passed to execute()
+   * @param webView         the WebView of the plugin
+   * @param metrics         metrics of the action and data type
+   * @param handle          identifier used to cancel the request, can be null
+   */
+  public RequestContext(CallbackContext callbackContext, CordovaWebView webView, ActionMetrics metrics, String handle) {
+    super(callbackContext.getCallbackId(), webView);
+    this.callbackContext = callbackContext;
+    this.metrics = metrics;
+    this.handle = handle;
+    metrics.requests.increment();
+  }
+
+  public String getHandle() {
+    return handle;
+  }
+
+  /**
+   * Marks the current thread as the one running the request
+   */
+  synchronized void bindWorker() {
+    worker = Thread.currentThread();
+  }
+
+  /**
+   * Releases the thread, clearing any interruption caused by a cancellation
+   */
+  void unbindWorker() {
+    synchronized (this) {
+      worker = null;
+    }
+    Thread.interrupted();
+  }
+
+  /**
+   * Cancels the request: the error callback is called straight away, the thread running the request
+   * is interrupted and any later result is dropped
+   *
+   * @return false if the request had already completed
+   */
+  public boolean cancel() {
+    synchronized (this) {
+      if (done) return false;
+      done = true;
+      cancelled = true;
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+    if (deadlineTimer != null) {
+      deadlineTimer.cancel(false);
+    }
+    metrics.cancelled.increment();
+    metrics.total.record(System.nanoTime() - startTime);
+    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, "Request cancelled"));
+    return true;
+  }
+
+  /**
+   * Makes calls to Health Connect go through the scheduler
+   *
+   * @param scheduler the scheduler
+   * @param lane      priority of the calls of this request
+   */
+  public void setScheduler(RequestScheduler scheduler, RequestScheduler.Lane lane) {
+    this.scheduler = scheduler;
+    this.lane = lane;
+  }
+
+  public RequestScheduler.Lane getLane() {
+    return lane;
+  }
+
+  /**
+   * Sets a deadline to the request, counted from when the request was received.
+   * When the deadline expires the call to Health Connect in progress, if any, is interrupted
+   *
+   * @param timeoutMs time available to the request, in milliseconds
+   * @param timer     executor used to interrupt the request
+   */
+  public void setTimeout(long timeoutMs, ScheduledExecutorService timer) {
+    deadline = startTime + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    long delay = Math.max(0, deadline - System.nanoTime());
+    deadlineTimer = timer.schedule(this::expire, delay, TimeUnit.NANOSECONDS);
+  }
+
+  private void expire() {
+    synchronized (this) {
+      if (done) return;
+      expired = true;
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+  }
+
+  /**
+   * @return true if the request has a deadline and it has passed
+   */
+  public boolean isExpired() {
+    return expired || (deadline != 0 && System.nanoTime() - deadline >= 0);
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Stops the request if it has been cancelled, to be called before any expensive step
+   *
+   * @throws CancellationException if the request has been cancelled
+   */
+  public void checkCancelled() {
+    if (cancelled) {
+      throw new CancellationException("Request cancelled");
+    }
+  }
+
+  /**
+   * Starts collecting a profile of the request, to be called as soon as the request starts running
+   */
+  public void startProfiling() {
+    profile = new QueryProfile();
+    profile.setQueueTime(System.nanoTime() - startTime);
+  }
+
+  /**
+   * @return the profile, or null if the request is not being profiled
+   */
+  public QueryProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Reads from Health Connect, see {@link #ipc(String, RequestScheduler.Kind, IpcCall)}
+   */
+  public <T> T ipc(String name, IpcCall<T> call) throws InterruptedException {
+    return ipc(name, RequestScheduler.Kind.READ, call);
+  }
+
+  /**
+   * Calls Health Connect, measuring the time spent.
+   * The call waits for the quota if there is a scheduler, and is interrupted if the deadline of the request expires
+   *
+   * @param name name of the call, used in profiles
+   * @param kind whether the call reads or writes
+   * @param call the call
+   */
+  public <T> T ipc(String name, RequestScheduler.Kind kind, IpcCall<T> call) throws InterruptedException {
+    checkCancelled();
+    if (isExpired()) {
+      throw new InterruptedException("Deadline expired");
+    }
+    long st = System.nanoTime();
+    T result = null;
+    try {
+      result = scheduler != null ? scheduler.execute(kind, lane, call) : call.call();
+      return result;
+    } finally {
+      recordIpc(name, System.nanoTime() - st, result);
+    }
+  }
+
+  /**
+   * Records a call to Health Connect, also used for calls made in the background on behalf of the request
+   *
+   * @param name   name of the call, used in profiles
+   * @param nanos  time spent
+   * @param result what the call returned, null if it failed
+   */
+  public void recordIpc(String name, long nanos, Object result) {
+    metrics.ipc.record(nanos);
+    if (profile != null) {
+      if (result instanceof RecordPage) {
+        profile.addStep(name, nanos, ((RecordPage) result).getRecords().size());
+        profile.addPage();
+      } else if (result instanceof List) {
+        profile.addStep(name, nanos, ((List<?>) result).size());
+        profile.addShard();
+      } else if (result instanceof AggregateBucket) {
+        profile.addStep(name, nanos, 1);
+        profile.addShard();
+      } else {
+        profile.addStep(name, nanos, 0);
+      }
+    }
+  }
+
+  /**
+   * Adds time spent parsing the arguments
+   *
+   * @param nanos time in nanoseconds
+   */
+  public void addParseTime(long nanos) {
+    if (profile != null) {
+      profile.addParseTime(nanos);
+    }
+  }
+
+  /**
+   * Counts records read or written
+   */
+  public void addRecords(int count) {
+    records += count;
+  }
+
+  public int getRecords() {
+    return records;
+  }
+
+  /**
+   * Counts a bucket taken from the cache instead of Health Connect
+   */
+  public void addCacheHit() {
+    if (profile != null) {
+      profile.addCacheHit();
+    }
+  }
+
+  /**
+   * Adds time spent serializing the result
+   *
+   * @param nanos time in nanoseconds
+   */
+  public void addSerializationTime(long nanos) {
+    serializationTime += nanos;
+    if (profile != null) {
+      profile.addSerializationTime(nanos);
+    }
+  }
+
+  /**
+   * Adds a property to be returned together with the data
+   */
+  public void putExtra(String name, Object value) throws JSONException {
+    if (extras == null) {
+      extras = new JSONObject();
+    }
+    extras.put(name, value);
+  }
+
+  /**
+   * Sends the data as the successful result of the request.
+   * If there are extras or a profile the data is wrapped in an object: { data: ..., profile: ..., ...extras }
+   *
+   * @param data               the data, a JSONArray or a JSONObject
+   * @param serializationStart when building the data started, as given by System.nanoTime()
+   */
+  public void sendResult(Object data, long serializationStart) throws JSONException {
+    PluginResult result;
+    if (extras == null && profile == null) {
+      if (data instanceof JSONArray) {
+        result = new PluginResult(PluginResult.Status.OK, (JSONArray) data);
+      } else {
+        result = new PluginResult(PluginResult.Status.OK, (JSONObject) data);
+      }
+      addSerializationTime(System.nanoTime() - serializationStart);
+    } else {
+      addSerializationTime(System.nanoTime() - serializationStart);
+      JSONObject wrapped = extras != null ? extras : new JSONObject();
+      wrapped.put("data", data);
+      if (profile != null) {
+        wrapped.put("profile", profile.toJSON(System.nanoTime() - startTime));
+      }
+      result = new PluginResult(PluginResult.Status.OK, wrapped);
+    }
+    sendPluginResult(result);
+  }
+
+  /**
+   * Sends a page of a streamed result, more results will follow
+   *
+   * @param data the records of the page
+   */
+  public void sendPage(JSONArray data) {
+    PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+    result.setKeepCallback(true);
+    sendPluginResult(result);
+  }
+
+  /**
+   * Sends the progress of a long request, the result will follow
+   *
+   * @param data how far the request went
+   */
+  public void sendProgress(JSONObject data) {
+    PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+    result.setKeepCallback(true);
+    sendPluginResult(result);
+  }
+
+  /**
+   * Allows more pages of a streamed result to be sent
+   *
+   * @param pages number of pages
+   */
+  public synchronized void grantCredit(int pages) {
+    credit += pages;
+    notifyAll();
+  }
+
+  /**
+   * Waits until JS is ready to receive a page, then uses one page of credit
+   *
+   * @throws InterruptedException if the request is cancelled or its deadline expires while waiting
+   */
+  public synchronized void awaitCredit() throws InterruptedException {
+    while (credit <= 0) {
+      checkCancelled();
+      if (isExpired()) {
+        throw new InterruptedException("Deadline expired");
+      }
+      wait();
+    }
+    credit--;
+  }
+
+  @Override
+  public void sendPluginResult(PluginResult pluginResult) {
+    boolean last = !pluginResult.getKeepCallback();
+    synchronized (this) {
+      // once done, or cancelled, JS has already been told
+      if (done) {
+        if (!cancelled && pluginResult.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+          metrics.lateErrors.increment();
+        }
+        return;
+      }
+      done = last;
+    }
+    // pages of streamed results count as well, in chars as the message is already built, counting bytes would scan it again
+    String message = pluginResult.getMessage();
+    if (message != null) {
+      metrics.resultChars.add(message.length());
+    }
+    if (last) {
+      if (deadlineTimer != null) {
+        deadlineTimer.cancel(false);
+      }
+      if (pluginResult.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+        metrics.errors.increment();
+      }
+      metrics.records.add(records);
+      metrics.serialization.record(serializationTime);
+      metrics.total.record(System.nanoTime() - startTime);
+    }
+    callbackContext.sendPluginResult(pluginResult);
+  }
+
+  @Override
+  public boolean isFinished() {
+    return callbackContext.isFinished();
+  }
+}
@@ -0,0 +1,218 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules calls to Health Connect so that the app stays within its quota.
+ * Reads and writes have separate token buckets, interactive calls are always served before bulk ones
+ * and bulk calls cannot use the part of the bucket reserved to interactive calls.
+ * When a call fails with a RateLimitException, all calls are paused with an exponential
+ * backoff with jitter and the refill rate is halved, it then slowly grows back as calls succeed.
+ */
+public class RequestScheduler {
+
+  public enum Kind {READ, WRITE}
+
+  public enum Lane {INTERACTIVE, BULK}
+
+  /**
+   * Retries of a single call that has been rate limited
+   */
+  static final int MAX_RETRIES = 5;
+
+  static final long BASE_BACKOFF_MS = 200;
+
+  static final long MAX_BACKOFF_MS = 30_000;
+
+  /**
+   * Fraction of each bucket that bulk calls cannot use
+   */
+  static final double INTERACTIVE_RESERVE = 0.25;
+
+  /**
+   * Token bucket modelling a quota
+   */
+  static class TokenBucket {
+    final double capacity;
+    final double maxRate;
+    double rate;
+    double tokens;
+    long lastRefill = System.nanoTime();
+
+    TokenBucket(double capacity, double ratePerSecond) {
+      this.capacity = capacity;
+      this.maxRate = ratePerSecond;
+      this.rate = ratePerSecond;
+      this.tokens = capacity;
+    }
+
+    void refill(long now) {
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+    }
+
+    /**
+     * @return nanoseconds until the given amount of tokens is available
+     */
+    long waitFor(double amount) {
+      return tokens >= amount ? 0 : (long) Math.ceil((amount - tokens) * 1e9 / rate);
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+
+  private final Condition changed = lock.newCondition();
+
+  private final TokenBucket reads;
+
+  private final TokenBucket writes;
+
+  private int interactiveWaiting;
+
+  private long pausedUntil = System.nanoTime();
+
+  private int consecutiveRateLimits;
+
+  public final LongAdder rateLimited = new LongAdder();
+
+  public final LongAdder throttledNanos = new LongAdder();
+
+  /**
+   * Constructor
+   *
+   * @param readsPerSecond  sustained rate of reads
+   * @param readBurst       reads that can be done at once
+   * @param writesPerSecond sustained rate of writes
+   * @param writeBurst      writes that can be done at once
+   */
+  public RequestScheduler(double readsPerSecond, int readBurst, double writesPerSecond, int writeBurst) {
+    reads = new TokenBucket(readBurst, readsPerSecond);
+    writes = new TokenBucket(writeBurst, writesPerSecond);
+  }
+
+  /**
+   * Runs a call to Health Connect when the quota allows it, retrying it if it gets rate limited
+   *
+   * @param kind whether the call reads or writes
+   * @param lane priority of the call
+   * @param call the call
+   */
+  public <T> T execute(Kind kind, Lane lane, RequestContext.IpcCall<T> call) throws InterruptedException {
+    for (int attempt = 0; ; attempt++) {
+      acquire(kind, lane);
+      try {
+        T result = call.call();
+        onSuccess(kind);
+        return result;
+      } catch (Exception ex) {
+        if (attempt >= MAX_RETRIES || !isRateLimit(ex)) throw ex;
+        onRateLimited(kind);
+      }
+    }
+  }
+
+  /**
+   * Waits until a token is available for the call
+   */
+  void acquire(Kind kind, Lane lane) throws InterruptedException {
+    TokenBucket bucket = kind == Kind.READ ? reads : writes;
+    // bulk calls leave a reserve for interactive ones
+    double needed = lane == Lane.INTERACTIVE ? 1 : 1 + bucket.capacity * INTERACTIVE_RESERVE;
+    long waitStart = System.nanoTime();
+    lock.lockInterruptibly();
+    try {
+      if (lane == Lane.INTERACTIVE) interactiveWaiting++;
+      try {
+        while (true) {
+          long now = System.nanoTime();
+          bucket.refill(now);
+          long wait = Math.max(pausedUntil - now, bucket.waitFor(needed));
+          if (wait <= 0 && lane == Lane.BULK && interactiveWaiting > 0) {
+            // interactive calls go first, they signal when done
+            wait = TimeUnit.MILLISECONDS.toNanos(BASE_BACKOFF_MS);
+          }
+          if (wait <= 0) {
+            bucket.tokens -= 1;
+            break;
+          }
+          changed.awaitNanos(wait);
+        }
+      } finally {
+        if (lane == Lane.INTERACTIVE && --interactiveWaiting == 0) {
+          changed.signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    throttledNanos.add(System.nanoTime() - waitStart);
+  }
+
+  private void onSuccess(Kind kind) {
+    lock.lock();
+    try {
+      consecutiveRateLimits = 0;
+      // additive increase of the rate, back to what is configured
+      TokenBucket bucket = kind == Kind.READ ? reads : writes;
+      if (bucket.rate < bucket.maxRate) {
+        bucket.refill(System.nanoTime());
+        bucket.rate = Math.min(bucket.maxRate, bucket.rate + bucket.maxRate / 20);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void onRateLimited(Kind kind) {
+    rateLimited.increment();
+    lock.lock();
+    try {
+      TokenBucket bucket = kind == Kind.READ ? reads : writes;
+      long now = System.nanoTime();
+      bucket.refill(now);
+      bucket.rate = Math.max(bucket.maxRate / 16, bucket.rate / 2);
+      bucket.tokens = 0;
+
+      // exponential backoff with jitter, shared by all calls as the quota is per app
+      long maxDelay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(consecutiveRateLimits, 16));
+      consecutiveRateLimits++;
+      long delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1));
+      pausedUntil = Math.max(pausedUntil, now + delay);
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return snapshot of how much calls have been throttled
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("rateLimited", rateLimited.sum());
+    obj.put("throttled", throttledNanos.sum() / 1e6);
+    return obj;
+  }
+
+  public void reset() {
+    rateLimited.reset();
+    throttledNanos.reset();
+  }
+
+  /**
+   * @return true if the exception reports that the quota has been exceeded
+   */
+  static boolean isRateLimit(Throwable ex) {
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof RateLimitException) return true;
+    }
+    return false;
+  }
+}
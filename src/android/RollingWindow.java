@@ -0,0 +1,98 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sliding window over a stream of buckets: sum and mean of the last buckets, and their exponential moving average.
+ * Each bucket is added and removed from the sum once, so the whole stream takes O(n).
+ */
+public class RollingWindow {
+
+  private final int window;
+
+  private final int step;
+
+  private final double alpha;
+
+  /**
+   * Values and starts of the buckets in the window, as a ring
+   */
+  private final double[] values;
+
+  private final long[] starts;
+
+  private long count;
+
+  private double sum;
+
+  private double ema;
+
+  private final JSONArray result = new JSONArray();
+
+  /**
+   * Constructor
+   *
+   * @param window number of buckets in a window
+   * @param step   number of buckets between two windows returned
+   * @param alpha  smoothing factor of the exponential moving average, between 0 and 1
+   */
+  public RollingWindow(int window, int step, double alpha) {
+    if (window < 1 || step < 1) {
+      throw new IllegalArgumentException("Rolling window and step must be at least 1");
+    }
+    if (alpha <= 0 || alpha > 1) {
+      throw new IllegalArgumentException("Rolling alpha must be between 0 and 1");
+    }
+    this.window = window;
+    this.step = step;
+    this.alpha = alpha;
+    this.values = new double[window];
+    this.starts = new long[window];
+  }
+
+  /**
+   * Adds the next bucket, a window is returned for each bucket that completes one, every step buckets
+   *
+   * @param start start of the bucket, in ms
+   * @param end   end of the bucket, in ms
+   * @param value value of the bucket
+   * @param unit  unit of the value
+   */
+  public void add(long start, long end, double value, String unit) throws JSONException {
+    int slot = (int) (count % window);
+    if (count >= window) {
+      sum -= values[slot];
+    }
+    values[slot] = value;
+    starts[slot] = start;
+    sum += value;
+    count++;
+    if (count < window) return;
+
+    double mean = sum / window;
+    // the average is seeded with the mean of the first window
+    ema = count == window ? mean : alpha * value + (1 - alpha) * ema;
+    if ((count - window) % step != 0) return;
+
+    JSONObject obj = new JSONObject();
+    // the oldest bucket is the one that will be replaced next
+    obj.put("startDate", starts[(int) (count % window)]);
+    obj.put("endDate", end);
+    obj.put("sum", sum);
+    obj.put("mean", mean);
+    obj.put("ema", ema);
+    if (unit != null) {
+      obj.put("unit", unit);
+    }
+    result.put(obj);
+  }
+
+  /**
+   * @return the windows, in ascending order of time
+   */
+  public JSONArray getResult() {
+    return result;
+  }
+}
@@ -0,0 +1,62 @@
+package org.apache.cordova.health;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Count, mean, variance, min and max of a stream of values, computed in one pass with Welford's method,
+ * which stays accurate also with many values close to each other.
+ */
+public class RunningStats {
+
+  private long count;
+
+  private double mean;
+
+  /**
+   * Sum of squared differences from the mean
+   */
+  private double m2;
+
+  private double min = Double.POSITIVE_INFINITY;
+
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public void add(double value) {
+    count++;
+    double delta = value - mean;
+    mean += delta / count;
+    m2 += delta * (value - mean);
+    if (value < min) min = value;
+    if (value > max) max = value;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  /**
+   * @return the sample variance, 0 with less than two values
+   */
+  public double getVariance() {
+    return count > 1 ? m2 / (count - 1) : 0;
+  }
+
+  /**
+   * Adds the statistics to a JSON object, only the count if there are no values
+   */
+  public void toJSON(JSONObject obj) throws JSONException {
+    obj.put("count", count);
+    if (count > 0) {
+      obj.put("mean", mean);
+      obj.put("variance", getVariance());
+      obj.put("stdDev", Math.sqrt(getVariance()));
+      obj.put("min", min);
+      obj.put("max", max);
+    }
+  }
+}
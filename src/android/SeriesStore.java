@@ -0,0 +1,304 @@
+package org.apache.cordova.health;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Numeric series kept on disk, one block per UTC day compressed with {@link GorillaCodec}.
+ * Blocks are appended to a data file and located through an index file of fixed size entries
+ * (day, offset, length, number of samples), loaded in memory the first time the series is used.
+ * Scans map the data file in memory and only decode the blocks of the days asked for.
+ * A day written again replaces the previous block, which stays in the file until the series is deleted.
+ * The series also keeps the Health Connect changes token from which it must be checked for changes,
+ * so that days changed since, for example by another app syncing late, can be dropped.
+ */
+public class SeriesStore {
+
+  public static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+  private static final int MAGIC = 0x48534552;
+
+  private final File dataFile;
+
+  private final File indexFile;
+
+  private final File tokenFile;
+
+  /**
+   * Day -> {offset, length, count}
+   */
+  private TreeMap<Long, long[]> index;
+
+  private String unit;
+
+  private String changesToken;
+
+  /**
+   * Samples being collected, in three growing arrays so that they can be encoded without copies
+   */
+  public static class Samples {
+    long[] times = new long[256];
+    long[] durations = new long[256];
+    double[] values = new double[256];
+    int size;
+
+    public void add(long time, long duration, double value) {
+      if (size == times.length) {
+        times = Arrays.copyOf(times, size * 2);
+        durations = Arrays.copyOf(durations, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      times[size] = time;
+      durations[size] = duration;
+      values[size] = value;
+      size++;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Sorts the samples by time, records are mostly read in order so this is usually a single check
+     */
+    public void sort() {
+      boolean sorted = true;
+      for (int i = 1; i < size && sorted; i++) {
+        sorted = times[i - 1] <= times[i];
+      }
+      if (sorted) return;
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) order[i] = i;
+      Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+      long[] t = new long[size];
+      long[] d = new long[size];
+      double[] v = new double[size];
+      for (int i = 0; i < size; i++) {
+        t[i] = times[order[i]];
+        d[i] = durations[order[i]];
+        v[i] = values[order[i]];
+      }
+      times = t;
+      durations = d;
+      values = v;
+    }
+  }
+
+  /**
+   * Constructor, files are only read when the series is used
+   *
+   * @param dir  folder of the series
+   * @param name name of the series, used for the file names
+   */
+  public SeriesStore(File dir, String name) {
+    this.dataFile = new File(dir, name + ".dat");
+    this.indexFile = new File(dir, name + ".idx");
+    this.tokenFile = new File(dir, name + ".tok");
+  }
+
+  /**
+   * @return true if the samples of the day are stored
+   */
+  public synchronized boolean hasDay(long epochDay) throws IOException {
+    return loadIndex().containsKey(epochDay);
+  }
+
+  /**
+   * @return the unit of the values, null if nothing is stored
+   */
+  public synchronized String getUnit() throws IOException {
+    loadIndex();
+    return unit;
+  }
+
+  /**
+   * @return the changes token from which the series must be checked for changes, null if there is none
+   */
+  public synchronized String getChangesToken() throws IOException {
+    loadIndex();
+    return changesToken;
+  }
+
+  /**
+   * Sets the changes token, after the changes up to it were applied
+   */
+  public synchronized void setChangesToken(String token) throws IOException {
+    loadIndex();
+    File dir = tokenFile.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    File tmp = new File(tokenFile.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+      out.writeUTF(token);
+    }
+    if (!tmp.renameTo(tokenFile)) {
+      throw new IOException("Cannot write " + tokenFile);
+    }
+    changesToken = token;
+  }
+
+  /**
+   * Stores the samples of a day
+   *
+   * @param epochDay UTC day, as days since 1970-01-01
+   * @param samples  samples sorted by time
+   * @param from     first sample of the day
+   * @param to       end of the samples of the day, excluded, equal to from if there are none
+   * @param unit     unit of the values
+   * @param token    changes token of the series when the samples were read, if changes were applied since
+   *                 the samples may be out of date and the day is not stored
+   * @return true if the day was stored
+   */
+  public synchronized boolean writeDay(long epochDay, Samples samples, int from, int to, String unit, String token) throws IOException {
+    loadIndex();
+    if (token == null || !token.equals(changesToken)) {
+      return false;
+    }
+    byte[] block = GorillaCodec.encode(Arrays.copyOfRange(samples.times, from, to), Arrays.copyOfRange(samples.durations, from, to),
+      Arrays.copyOfRange(samples.values, from, to), to - from);
+    File dir = dataFile.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    long offset;
+    try (RandomAccessFile data = new RandomAccessFile(dataFile, "rw")) {
+      offset = data.length();
+      data.seek(offset);
+      data.write(block);
+    }
+    // the block is written before it is indexed, a crash in between only leaves unused bytes
+    boolean newIndex = !indexFile.exists() || index.isEmpty();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile, !newIndex))) {
+      if (newIndex) {
+        out.writeInt(MAGIC);
+        out.writeUTF(unit != null ? unit : "");
+        this.unit = unit;
+      }
+      out.writeLong(epochDay);
+      out.writeLong(offset);
+      out.writeInt(block.length);
+      out.writeInt(to - from);
+    }
+    index.put(epochDay, new long[]{offset, block.length, to - from});
+    return true;
+  }
+
+  /**
+   * Drops the stored days of a range, they will be read again from Health Connect
+   *
+   * @param fromDay first day, included
+   * @param toDay   last day, included
+   */
+  public synchronized void dropDays(long fromDay, long toDay) throws IOException {
+    Map<Long, long[]> dropped = loadIndex().subMap(fromDay, true, toDay, true);
+    if (dropped.isEmpty()) return;
+    // entries without offset remove the day when the index is loaded
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile, true))) {
+      for (long day : dropped.keySet()) {
+        out.writeLong(day);
+        out.writeLong(-1);
+        out.writeInt(0);
+        out.writeInt(0);
+      }
+    }
+    dropped.clear();
+  }
+
+  /**
+   * Reads the samples of a range of days
+   *
+   * @param fromDay  first day, included
+   * @param toDay    last day, included
+   * @param consumer receives the samples, in time order
+   * @return the number of samples read
+   */
+  public synchronized long scan(long fromDay, long toDay, GorillaCodec.SampleConsumer consumer) throws IOException {
+    Map<Long, long[]> blocks = loadIndex().subMap(fromDay, true, toDay, true);
+    if (blocks.isEmpty()) return 0;
+    long count = 0;
+    try (RandomAccessFile data = new RandomAccessFile(dataFile, "r"); FileChannel channel = data.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      for (long[] block : blocks.values()) {
+        if (block[0] + block[1] > mapped.capacity()) {
+          throw new IOException("Truncated block in " + dataFile);
+        }
+        mapped.position((int) block[0]);
+        GorillaCodec.decode(mapped, consumer);
+        count += block[2];
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Deletes the series
+   */
+  public synchronized void delete() {
+    dataFile.delete();
+    indexFile.delete();
+    tokenFile.delete();
+    index = new TreeMap<>();
+    unit = null;
+    changesToken = null;
+  }
+
+  private TreeMap<Long, long[]> loadIndex() throws IOException {
+    if (index != null) return index;
+    TreeMap<Long, long[]> entries = new TreeMap<>();
+    if (indexFile.exists()) {
+      // the index is small, 24 bytes per day, it is read at once so that the end of the last entry is known
+      byte[] bytes = Files.readAllBytes(indexFile.toPath());
+      int valid = 0;
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("Not a series index: " + indexFile);
+        }
+        String u = in.readUTF();
+        unit = u.isEmpty() ? null : u;
+        long dataLength = dataFile.length();
+        while (true) {
+          valid = bytes.length - in.available();
+          long day = in.readLong();
+          long offset = in.readLong();
+          int length = in.readInt();
+          int count = in.readInt();
+          if (offset < 0) {
+            entries.remove(day);
+          } else if (offset + length <= dataLength) {
+            // the latest block of a day wins
+            entries.put(day, new long[]{offset, length, count});
+          }
+        }
+      } catch (EOFException ex) {
+        // end of the index, or an entry cut by a crash
+      }
+      if (valid > 0 && valid < bytes.length) {
+        // the entries appended next must not follow the cut one
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+          file.setLength(valid);
+        }
+      }
+    }
+    if (tokenFile.exists()) {
+      try (DataInputStream in = new DataInputStream(new FileInputStream(tokenFile))) {
+        changesToken = in.readUTF();
+      }
+    }
+    index = entries;
+    return index;
+  }
+}
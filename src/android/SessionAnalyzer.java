@@ -0,0 +1,171 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Summarizes the heart rate during exercise sessions: time in each zone, average, max and drift.
+ * Samples are expected in ascending order of time and are swept through the sessions,
+ * so only the summaries are kept in memory.
+ */
+public class SessionAnalyzer {
+
+  private static class Summary {
+    final ExerciseSessionRecord session;
+    final long start;
+    final long end;
+    final long middle;
+    final long[] zoneMillis;
+    final RunningStats stats = new RunningStats();
+    final RunningStats firstHalf = new RunningStats();
+    final RunningStats secondHalf = new RunningStats();
+    double max = Double.NEGATIVE_INFINITY;
+    long lastTime = -1;
+    int lastZone;
+
+    Summary(ExerciseSessionRecord session, int zones) {
+      this.session = session;
+      this.start = session.getStartTime().toEpochMilli();
+      this.end = session.getEndTime().toEpochMilli();
+      this.middle = start + (end - start) / 2;
+      this.zoneMillis = new long[zones];
+    }
+  }
+
+  /**
+   * Lower bounds of the zones, in bpm, the first zone starts at 0
+   */
+  private final double[] zoneBounds;
+
+  /**
+   * Longer gaps between samples are not counted in any zone
+   */
+  private final long maxGapMillis;
+
+  private final List<Summary> summaries = new ArrayList<>();
+
+  /**
+   * Sessions that have started, by start time
+   */
+  private final List<Summary> active = new ArrayList<>();
+
+  private int next;
+
+  /**
+   * Constructor
+   *
+   * @param sessions     the sessions
+   * @param zoneBounds   lower bounds of zones after the first, in bpm, ascending
+   * @param maxGapMillis longest gap between samples that is counted as time in zone
+   */
+  public SessionAnalyzer(List<ExerciseSessionRecord> sessions, double[] zoneBounds, long maxGapMillis) {
+    this.zoneBounds = zoneBounds;
+    this.maxGapMillis = maxGapMillis;
+    for (ExerciseSessionRecord session : sessions) {
+      summaries.add(new Summary(session, zoneBounds.length + 1));
+    }
+    summaries.sort(Comparator.comparingLong(s -> s.start));
+  }
+
+  /**
+   * @return the earliest time a sample is needed, or -1 if there are no sessions
+   */
+  public long getStart() {
+    return summaries.isEmpty() ? -1 : summaries.get(0).start;
+  }
+
+  /**
+   * @return the latest time a sample is needed
+   */
+  public long getEnd() {
+    long end = -1;
+    for (Summary s : summaries) {
+      end = Math.max(end, s.end);
+    }
+    return end;
+  }
+
+  private int zoneOf(double bpm) {
+    int zone = 0;
+    while (zone < zoneBounds.length && bpm >= zoneBounds[zone]) {
+      zone++;
+    }
+    return zone;
+  }
+
+  /**
+   * Adds a heart rate sample
+   *
+   * @param time time of the sample, in ms
+   * @param bpm  heart rate
+   */
+  public void addSample(long time, double bpm) {
+    while (next < summaries.size() && summaries.get(next).start <= time) {
+      active.add(summaries.get(next++));
+    }
+    int zone = zoneOf(bpm);
+    for (int i = active.size() - 1; i >= 0; i--) {
+      Summary s = active.get(i);
+      if (time > s.end) {
+        // samples come in order, the session is over
+        active.remove(i);
+        continue;
+      }
+      if (s.lastTime >= 0 && time >= s.lastTime && time - s.lastTime <= maxGapMillis) {
+        // the time from the previous sample is spent in the zone of the previous sample
+        s.zoneMillis[s.lastZone] += time - s.lastTime;
+      }
+      s.lastTime = time;
+      s.lastZone = zone;
+      s.stats.add(bpm);
+      if (bpm > s.max) s.max = bpm;
+      (time < s.middle ? s.firstHalf : s.secondHalf).add(bpm);
+    }
+  }
+
+  /**
+   * @return a summary for each session, ordered by start time
+   */
+  public JSONArray toJSON() throws JSONException {
+    JSONArray arr = new JSONArray();
+    for (Summary s : summaries) {
+      JSONObject obj = new JSONObject();
+      String id = s.session.getMetadata().getId();
+      if (id != null) {
+        obj.put("id", id);
+      }
+      obj.put("startDate", s.start);
+      obj.put("endDate", s.end);
+      obj.put("value", ActivityMapper.activityFromExerciseType(s.session.getExerciseType()));
+      obj.put("samples", s.stats.getCount());
+      if (s.stats.getCount() > 0) {
+        obj.put("avgHeartRate", s.stats.getMean());
+        obj.put("maxHeartRate", s.max);
+      }
+      if (s.firstHalf.getCount() > 0 && s.secondHalf.getCount() > 0) {
+        // cardiac drift: how much the average rate grew from the first to the second half, in %
+        obj.put("drift", (s.secondHalf.getMean() - s.firstHalf.getMean()) / s.firstHalf.getMean() * 100);
+      }
+      JSONArray zones = new JSONArray();
+      for (int z = 0; z < s.zoneMillis.length; z++) {
+        JSONObject zone = new JSONObject();
+        zone.put("min", z == 0 ? 0 : zoneBounds[z - 1]);
+        if (z < zoneBounds.length) {
+          zone.put("max", zoneBounds[z]);
+        }
+        zone.put("minutes", s.zoneMillis[z] / 60000.0);
+        zones.put(zone);
+      }
+      obj.put("zones", zones);
+      arr.put(obj);
+    }
+    return arr;
+  }
+}
@@ -0,0 +1,203 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.SleepSessionRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Activity and sleep sessions kept in memory to find the ones overlapping a time range without reading Health Connect.
+ * Sessions are sorted by start time and organized as an implicit balanced binary tree over the sorted array, each node
+ * knowing the latest end in its subtree, so that a query takes O(log n + k) for k sessions found.
+ * The index is loaded once and then kept up to date with the changes reported by Health Connect,
+ * the tree is rebuilt only when sessions changed.
+ */
+public class SessionIndex {
+
+  /**
+   * A session
+   */
+  public static class Entry {
+    final String id;
+    final String dataType;
+    final long start;
+    final long end;
+    final String value;
+    final String source;
+
+    Entry(String id, String dataType, long start, long end, String value, String source) {
+      this.id = id;
+      this.dataType = dataType;
+      this.start = start;
+      this.end = end;
+      this.value = value;
+      this.source = source;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+      JSONObject obj = new JSONObject();
+      obj.put("id", id);
+      obj.put("dataType", dataType);
+      obj.put("startDate", start);
+      obj.put("endDate", end);
+      obj.put("value", value);
+      if (source != null) {
+        obj.put("sourceBundleId", source);
+      }
+      return obj;
+    }
+  }
+
+  private final Map<String, Entry> byId = new HashMap<>();
+
+  /**
+   * Sessions sorted by start, as the nodes of the tree
+   */
+  private Entry[] sorted = new Entry[0];
+
+  /**
+   * Latest end of the subtree rooted at each node
+   */
+  private long[] maxEnd = new long[0];
+
+  private boolean dirty;
+
+  private String changesToken;
+
+  private long refreshedAt;
+
+  /**
+   * @return true if the sessions have been loaded
+   */
+  public synchronized boolean isLoaded() {
+    return changesToken != null;
+  }
+
+  public synchronized String getChangesToken() {
+    return changesToken;
+  }
+
+  /**
+   * Sets the token to get the changes from, after the sessions are loaded or the changes applied
+   */
+  public synchronized void setChangesToken(String token) {
+    this.changesToken = token;
+    this.refreshedAt = System.nanoTime();
+  }
+
+  /**
+   * @param maxAgeNanos how long the sessions can be used without checking for changes
+   * @return true if the changes should be checked
+   */
+  public synchronized boolean isStale(long maxAgeNanos) {
+    return changesToken == null || System.nanoTime() - refreshedAt > maxAgeNanos;
+  }
+
+  /**
+   * Makes the next query check for changes, for example after this app stored data
+   */
+  public synchronized void invalidate() {
+    refreshedAt = System.nanoTime() - Long.MAX_VALUE / 2;
+  }
+
+  /**
+   * Drops all sessions, they will be loaded again
+   */
+  public synchronized void clear() {
+    byId.clear();
+    changesToken = null;
+    dirty = true;
+  }
+
+  /**
+   * Adds or replaces a session, other types of records are ignored
+   */
+  public synchronized void put(Record record) {
+    String dataType;
+    String value;
+    if (record instanceof ExerciseSessionRecord) {
+      dataType = "activity";
+      value = ActivityMapper.activityFromExerciseType(((ExerciseSessionRecord) record).getExerciseType());
+    } else if (record instanceof SleepSessionRecord) {
+      dataType = "sleep";
+      value = "sleep";
+    } else {
+      return;
+    }
+    String id = record.getMetadata().getId();
+    DataOrigin origin = record.getMetadata().getDataOrigin();
+    byId.put(id, new Entry(id, dataType, RecordUtils.startTime(record).toEpochMilli(), RecordUtils.endTime(record).toEpochMilli(),
+      value, origin != null ? origin.getPackageName() : null));
+    dirty = true;
+  }
+
+  public synchronized void remove(String id) {
+    if (byId.remove(id) != null) {
+      dirty = true;
+    }
+  }
+
+  public synchronized int size() {
+    return byId.size();
+  }
+
+  /**
+   * Finds the sessions overlapping a time range
+   *
+   * @param start     start of the range, in ms
+   * @param end       end of the range, in ms, excluded
+   * @param dataTypes "activity" and/or "sleep"
+   * @param sources   apps the sessions must come from, empty for all
+   * @return the sessions, sorted by start
+   */
+  public synchronized List<Entry> overlaps(long start, long end, Set<String> dataTypes, Set<String> sources) {
+    if (dirty) {
+      rebuild();
+    }
+    List<Entry> found = new ArrayList<>();
+    search(0, sorted.length - 1, start, end, dataTypes, sources, found);
+    return found;
+  }
+
+  private void search(int lo, int hi, long start, long end, Set<String> dataTypes, Set<String> sources, List<Entry> found) {
+    if (lo > hi) return;
+    int mid = (lo + hi) >>> 1;
+    // nothing in this subtree ends after the start
+    if (maxEnd[mid] <= start) return;
+    search(lo, mid - 1, start, end, dataTypes, sources, found);
+    Entry e = sorted[mid];
+    // the right subtree starts even later
+    if (e.start >= end) return;
+    if (e.end > start && dataTypes.contains(e.dataType) && (sources.isEmpty() || sources.contains(e.source))) {
+      found.add(e);
+    }
+    search(mid + 1, hi, start, end, dataTypes, sources, found);
+  }
+
+  private void rebuild() {
+    sorted = byId.values().toArray(new Entry[0]);
+    Arrays.sort(sorted, Comparator.<Entry>comparingLong(e -> e.start).thenComparingLong(e -> e.end));
+    maxEnd = new long[sorted.length];
+    fillMaxEnd(0, sorted.length - 1);
+    dirty = false;
+  }
+
+  private long fillMaxEnd(int lo, int hi) {
+    if (lo > hi) return Long.MIN_VALUE;
+    int mid = (lo + hi) >>> 1;
+    long max = Math.max(sorted[mid].end, Math.max(fillMaxEnd(lo, mid - 1), fillMaxEnd(mid + 1, hi)));
+    maxEnd[mid] = max;
+    return max;
+  }
+}
@@ -0,0 +1,164 @@
+package org.apache.cordova.health;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.Period;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a time range in calendar buckets (hour, day, week, month, year) in the time zone of the device.
+ * As in queryAggregated(), the first bucket starts at the beginning of the hour, day, week (on Monday),
+ * month or year the start falls in.
+ */
+public class TimeBuckets {
+
+  public static final List<String> TYPES = Arrays.asList("hour", "day", "week", "month", "year");
+
+  /**
+   * Bucket boundaries, in ms, the last one is the end of the last bucket
+   */
+  private final long[] bounds;
+
+  /**
+   * Constructor
+   *
+   * @param start      start of the range
+   * @param end        end of the range
+   * @param bucketType one of TYPES, or null for a single bucket going from start to end
+   * @throws IllegalArgumentException if the bucket type is unknown
+   */
+  public TimeBuckets(Instant start, Instant end, String bucketType) {
+    if (bucketType == null) {
+      bounds = new long[]{start.toEpochMilli(), end.toEpochMilli()};
+      return;
+    }
+    String type = bucketType.toLowerCase();
+    if (!TYPES.contains(type)) {
+      throw new IllegalArgumentException("Bucket not recognized " + bucketType);
+    }
+    ZonedDateTime t = truncate(ZonedDateTime.ofInstant(start, ZoneId.systemDefault()), type);
+    List<Long> list = new ArrayList<>();
+    list.add(t.toInstant().toEpochMilli());
+    while (t.toInstant().isBefore(end)) {
+      t = next(t, type);
+      list.add(t.toInstant().toEpochMilli());
+    }
+    bounds = new long[list.size()];
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = list.get(i);
+    }
+  }
+
+  static ZonedDateTime truncate(ZonedDateTime t, String type) {
+    switch (type) {
+      case "hour":
+        return t.truncatedTo(ChronoUnit.HOURS);
+      case "day":
+        return t.truncatedTo(ChronoUnit.DAYS);
+      case "week":
+        return t.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+      case "month":
+        return t.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+      default:
+        return t.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+    }
+  }
+
+  static ZonedDateTime next(ZonedDateTime t, String type) {
+    return plus(t, type, 1);
+  }
+
+  /**
+   * Moves a time by a number of buckets, backwards if negative
+   */
+  static ZonedDateTime plus(ZonedDateTime t, String type, long buckets) {
+    switch (type) {
+      case "hour":
+        return t.plusHours(buckets);
+      case "day":
+        return t.plusDays(buckets);
+      case "week":
+        return t.plusWeeks(buckets);
+      case "month":
+        return t.plusMonths(buckets);
+      default:
+        return t.plusYears(buckets);
+    }
+  }
+
+  /**
+   * @return the length of a bucket as a calendar period, null for hours
+   */
+  static Period period(String type) {
+    switch (type) {
+      case "hour":
+        return null;
+      case "day":
+        return Period.ofDays(1);
+      case "week":
+        return Period.ofWeeks(1);
+      case "month":
+        return Period.ofMonths(1);
+      default:
+        return Period.ofYears(1);
+    }
+  }
+
+  /**
+   * Bounds the number of buckets of a range without building them, to reject ranges too long for their bucket
+   *
+   * @param bucketType one of TYPES, or null for a single bucket
+   * @return at least the number of buckets
+   */
+  static long maxCount(long start, long end, String bucketType) {
+    if (bucketType == null) return 1;
+    long hour = 3600000L;
+    long shortest;
+    // days can be an hour shorter when the clock changes
+    switch (bucketType.toLowerCase()) {
+      case "hour":
+        shortest = hour;
+        break;
+      case "day":
+        shortest = 23 * hour;
+        break;
+      case "week":
+        shortest = 7 * 24 * hour - hour;
+        break;
+      case "month":
+        shortest = 28 * 24 * hour - hour;
+        break;
+      default:
+        shortest = 365 * 24 * hour - hour;
+    }
+    return Math.max(0, end - start) / shortest + 2;
+  }
+
+  public int size() {
+    return bounds.length - 1;
+  }
+
+  public long getStart(int bucket) {
+    return bounds[bucket];
+  }
+
+  public long getEnd(int bucket) {
+    return bounds[bucket + 1];
+  }
+
+  /**
+   * @param time time in ms
+   * @return the bucket the time falls in, -1 if outside of all buckets
+   */
+  public int indexOf(long time) {
+    int i = Arrays.binarySearch(bounds, time);
+    int bucket = i >= 0 ? i : -i - 2;
+    return bucket >= 0 && bucket < size() ? bucket : -1;
+  }
+}
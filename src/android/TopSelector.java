@@ -0,0 +1,103 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.units.Percentage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the N records with the highest, or lowest, value of a sort key, using a bounded heap.
+ * Memory is proportional to N, whatever the number of records offered.
+ */
+public class TopSelector {
+
+  /**
+   * Sort keys that can be used
+   */
+  public static final List<String> KEYS = Arrays.asList("value", "duration", "startDate", "endDate");
+
+  private static class Entry {
+    final double key;
+    final long seq;
+    final RecordRow row;
+
+    Entry(double key, long seq, RecordRow row) {
+      this.key = key;
+      this.seq = seq;
+      this.row = row;
+    }
+  }
+
+  private final String key;
+
+  private final int n;
+
+  /**
+   * The head is the worst of the records kept, the first to be dropped
+   */
+  private final PriorityQueue<Entry> heap;
+
+  private final Comparator<Entry> order;
+
+  private long seq;
+
+  /**
+   * Constructor
+   *
+   * @param key        one of KEYS
+   * @param n          number of records to keep
+   * @param descending if true the records with the highest key are kept, otherwise the lowest
+   */
+  public TopSelector(String key, int n, boolean descending) {
+    this.key = key;
+    this.n = n;
+    // best first, on ties the record seen first wins
+    Comparator<Entry> byKey = Comparator.comparingDouble(e -> e.key);
+    this.order = (descending ? byKey.reversed() : byKey).thenComparingLong(e -> e.seq);
+    this.heap = new PriorityQueue<>(n + 1, order.reversed());
+  }
+
+  /**
+   * Offers a record, records without the sort key are ignored
+   */
+  public void offer(RecordRow row) {
+    Double k = keyOf(row);
+    if (k == null) return;
+    Entry entry = new Entry(k, seq++, row);
+    if (heap.size() < n) {
+      heap.add(entry);
+    } else if (order.compare(entry, heap.peek()) < 0) {
+      heap.poll();
+      heap.add(entry);
+    }
+  }
+
+  /**
+   * @return the records kept, best first
+   */
+  public List<RecordRow> result() {
+    List<Entry> entries = new ArrayList<>(heap);
+    entries.sort(order);
+    List<RecordRow> rows = new ArrayList<>(entries.size());
+    for (Entry e : entries) {
+      rows.add(e.row);
+    }
+    return rows;
+  }
+
+  private Double keyOf(RecordRow row) {
+    if (key.equals("duration")) {
+      Object st = row.get("startDate");
+      Object et = row.get("endDate");
+      if (st == null || et == null) return null;
+      return (double) ((Long) et - (Long) st);
+    }
+    Object val = row.get(key);
+    if (val instanceof Number) return ((Number) val).doubleValue();
+    if (val instanceof Percentage) return ((Percentage) val).getValue();
+    return null;
+  }
+}
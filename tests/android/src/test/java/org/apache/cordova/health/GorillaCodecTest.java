@@ -0,0 +1,141 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class GorillaCodecTest {
+
+  /**
+   * Encodes the samples, decodes them from a position other than 0 and checks that they come back bit for bit
+   *
+   * @return the size of the block
+   */
+  private static int assertRoundTrip(long[] times, long[] durations, double[] values) {
+    int count = times.length;
+    byte[] block = GorillaCodec.encode(times, durations, values, count);
+    ByteBuffer buf = ByteBuffer.allocate(block.length + 3);
+    buf.position(3);
+    buf.put(block);
+    buf.position(3);
+    List<Object[]> decoded = new ArrayList<>();
+    GorillaCodec.decode(buf, (time, duration, value) -> decoded.add(new Object[]{time, duration, value}));
+    assertEquals(count, decoded.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals("time " + i, times[i], (long) decoded.get(i)[0]);
+      assertEquals("duration " + i, durations[i], (long) decoded.get(i)[1]);
+      assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+        Double.doubleToRawLongBits((double) decoded.get(i)[2]));
+    }
+    return block.length;
+  }
+
+  private static int assertRoundTrip(double... values) {
+    long[] times = new long[values.length];
+    long[] durations = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      times[i] = 1_700_000_000_000L + i * 60_000L;
+      durations[i] = 60_000L;
+    }
+    return assertRoundTrip(times, durations, values);
+  }
+
+  @Test
+  public void emptyBlock() {
+    assertEquals(4, assertRoundTrip(new long[0], new long[0], new double[0]));
+  }
+
+  @Test
+  public void randomSamples() {
+    Random rnd = new Random(42);
+    int count = 5000;
+    long[] times = new long[count];
+    long[] durations = new long[count];
+    double[] values = new double[count];
+    long t = 1_700_000_000_000L;
+    for (int i = 0; i < count; i++) {
+      t += 1000 + rnd.nextInt(120_000);
+      times[i] = t;
+      durations[i] = rnd.nextInt(4) == 0 ? 0 : rnd.nextInt(3_600_000);
+      switch (rnd.nextInt(4)) {
+        case 0:
+          values[i] = rnd.nextInt(200);
+          break;
+        case 1:
+          values[i] = rnd.nextGaussian() * 1e6;
+          break;
+        case 2:
+          values[i] = Double.longBitsToDouble(rnd.nextLong());
+          break;
+        default:
+          values[i] = i > 0 ? values[i - 1] : 0;
+      }
+    }
+    assertRoundTrip(times, durations, values);
+  }
+
+  @Test
+  public void regularSeriesIsSmall() {
+    // one day of per-minute heart rate
+    Random rnd = new Random(42);
+    double[] values = new double[1440];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 60 + rnd.nextInt(5);
+    }
+    int size = assertRoundTrip(values);
+    assertTrue("block of " + size + " bytes", size < 2 * values.length);
+  }
+
+  @Test
+  public void specialValues() {
+    assertRoundTrip(0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+      Double.MAX_VALUE, -Double.MAX_VALUE, 0.0, 0.0);
+  }
+
+  @Test
+  public void leadingZerosAreClampedTo31() {
+    double one = 1.0;
+    long bits = Double.doubleToRawLongBits(one);
+    // XORs with 63, 40 and 32 leading zeros, more than the 5 bits of the header can hold
+    assertRoundTrip(one, Double.longBitsToDouble(bits ^ 1), Double.longBitsToDouble(bits ^ (1L << 23)),
+      Double.longBitsToDouble(bits ^ (1L << 31)), one,
+      // then windows that fit in the clamped one, and one that does not
+      Double.longBitsToDouble(bits ^ 3), Double.longBitsToDouble(bits ^ (1L << 40)), one);
+  }
+
+  @Test
+  public void sixtyFourMeaningfulBitsAreStoredAsZero() {
+    // the first XOR is against 0, lowest and highest bits set: no leading nor trailing zeros
+    double full = Double.longBitsToDouble(0x8000000000000001L);
+    assertRoundTrip(full, 0.0, full, Double.longBitsToDouble(0x8000000000000003L),
+      Double.longBitsToDouble(0xFFFFFFFFFFFFFFFFL), Double.longBitsToDouble(0x7FFFFFFFFFFFFFFEL));
+  }
+
+  @Test
+  public void deltaOfDeltaBucketBoundaries() {
+    // boundaries of the 7, 9, 12 and 32 bit buckets and of the 64 bit escape
+    long[] dods = {0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+      Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L,
+      Long.MAX_VALUE, Long.MIN_VALUE, 0, 0};
+    long[] times = new long[dods.length];
+    long[] durations = new long[dods.length];
+    double[] values = new double[dods.length];
+    long time = 0;
+    long delta = 0;
+    for (int i = 0; i < dods.length; i++) {
+      // overflows wrap around, in the encoder and the decoder alike
+      delta += dods[i];
+      time += delta;
+      times[i] = time;
+      durations[i] = dods[i];
+      values[i] = i;
+    }
+    assertRoundTrip(times, durations, values);
+  }
+}
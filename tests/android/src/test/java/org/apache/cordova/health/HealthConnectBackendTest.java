@@ -0,0 +1,38 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The client turns the errors of Health Connect into standard exceptions that only keep the message:
+ * IllegalStateException for rate limits and most other errors, SecurityException, IllegalArgumentException,
+ * IOException or RemoteException otherwise.
+ */
+public class HealthConnectBackendTest {
+
+  private static final String RATE_LIMITED =
+    "Rate limited request quota has been exceeded. Please wait until quota has replenished before making further requests.";
+
+  @Test
+  public void rateLimitsOfTheClientAreRecognized() {
+    assertTrue(HealthConnectBackend.isRateLimit(new IllegalStateException(RATE_LIMITED)));
+    // rethrown by a coroutine or a future
+    assertTrue(HealthConnectBackend.isRateLimit(new ExecutionException(new IllegalStateException(RATE_LIMITED))));
+    assertTrue(HealthConnectBackend.isRateLimit(new RuntimeException("Failed", new IllegalStateException(RATE_LIMITED))));
+  }
+
+  @Test
+  public void otherErrorsOfTheClientAreNotRateLimits() {
+    assertFalse(HealthConnectBackend.isRateLimit(new IllegalStateException()));
+    assertFalse(HealthConnectBackend.isRateLimit(new IllegalStateException("Service not available")));
+    assertFalse(HealthConnectBackend.isRateLimit(new SecurityException("Caller doesn't have android.permission.health.READ_STEPS")));
+    assertFalse(HealthConnectBackend.isRateLimit(new IllegalArgumentException("startTime must be before endTime.")));
+    assertFalse(HealthConnectBackend.isRateLimit(new IOException("Failed to read data")));
+    assertFalse(HealthConnectBackend.isRateLimit(new RuntimeException(new IOException("Failed to read data"))));
+  }
+}
@@ -0,0 +1,784 @@
+package org.apache.cordova.health;
+
+import androidx.health.connect.client.aggregate.AggregateMetric;
+import androidx.health.connect.client.permission.HealthPermission;
+import androidx.health.connect.client.records.ActiveCaloriesBurnedRecord;
+import androidx.health.connect.client.records.BasalMetabolicRateRecord;
+import androidx.health.connect.client.records.BodyFatRecord;
+import androidx.health.connect.client.records.DistanceRecord;
+import androidx.health.connect.client.records.ExerciseLap;
+import androidx.health.connect.client.records.ExerciseSegment;
+import androidx.health.connect.client.records.ExerciseSessionRecord;
+import androidx.health.connect.client.records.FloorsClimbedRecord;
+import androidx.health.connect.client.records.HeartRateRecord;
+import androidx.health.connect.client.records.OxygenSaturationRecord;
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.SleepSessionRecord;
+import androidx.health.connect.client.records.StepsRecord;
+import androidx.health.connect.client.records.WeightRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Metadata;
+import androidx.health.connect.client.units.Energy;
+import androidx.health.connect.client.units.Length;
+import androidx.health.connect.client.units.Mass;
+import androidx.health.connect.client.units.Percentage;
+import androidx.health.connect.client.units.Power;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import kotlin.jvm.JvmClassMappingKt;
+import kotlin.reflect.KClass;
+
+/**
+ * Health data store kept in memory, it mimics Health Connect closely enough to load test and profile
+ * the plugin on a plain JVM, without a phone.
+ * It can generate large amounts of synthetic records and simulate IPC latency, page size limits and failures.
+ * Page tokens are positions in the store, so they are not stable if records are added or removed while paginating.
+ */
+public class InMemoryHealthBackend implements HealthBackend {
+
+  /**
+   * Largest page Health Connect accepts
+   */
+  public static final int DEFAULT_MAX_PAGE_SIZE = 5000;
+
+  /**
+   * Record types that can be generated and stored
+   */
+  static final List<Class<? extends Record>> SUPPORTED_TYPES = Arrays.asList(
+    StepsRecord.class, WeightRecord.class, BodyFatRecord.class, ExerciseSessionRecord.class,
+    ActiveCaloriesBurnedRecord.class, BasalMetabolicRateRecord.class, DistanceRecord.class,
+    FloorsClimbedRecord.class, HeartRateRecord.class, OxygenSaturationRecord.class, SleepSessionRecord.class
+  );
+
+  /**
+   * Changes kept for changes tokens, older ones are dropped and their tokens expire
+   */
+  static final int MAX_CHANGES = 100000;
+
+  static final int CHANGES_PAGE_SIZE = 1000;
+
+  private static final Comparator<Record> BY_START_TIME = Comparator.comparing(RecordUtils::startTime);
+
+  private static final int[] EXERCISE_TYPES = {
+    ExerciseSessionRecord.EXERCISE_TYPE_WALKING,
+    ExerciseSessionRecord.EXERCISE_TYPE_RUNNING,
+    ExerciseSessionRecord.EXERCISE_TYPE_BIKING,
+    ExerciseSessionRecord.EXERCISE_TYPE_OTHER_WORKOUT
+  };
+
+  private static final int[] SLEEP_STAGES = {
+    SleepSessionRecord.STAGE_TYPE_LIGHT,
+    SleepSessionRecord.STAGE_TYPE_DEEP,
+    SleepSessionRecord.STAGE_TYPE_REM,
+    SleepSessionRecord.STAGE_TYPE_LIGHT
+  };
+
+  /**
+   * Records by type, sorted by start time
+   */
+  private final Map<Class<? extends Record>, List<Record>> store = new HashMap<>();
+
+  /**
+   * Longest record stored by type, used to find records that overlap a time window
+   */
+  private final Map<Class<? extends Record>, Duration> longestSpan = new HashMap<>();
+
+  /**
+   * Inserted records that have a client record id, by caller, type and client record id, to upsert them
+   */
+  private final Map<String, Record> byClientId = new HashMap<>();
+
+  private final AtomicLong idCounter = new AtomicLong();
+
+  /**
+   * A record inserted or deleted, for changes tokens
+   */
+  private static class Change {
+    final Class<? extends Record> type;
+    final Record upserted;
+    final String deletedId;
+
+    Change(Class<? extends Record> type, Record upserted, String deletedId) {
+      this.type = type;
+      this.upserted = upserted;
+      this.deletedId = deletedId;
+    }
+  }
+
+  /**
+   * Changes since the first token was issued, in order
+   */
+  private final List<Change> changes = new ArrayList<>();
+
+  /**
+   * Position of the first change kept in the whole history of changes, tokens are positions
+   */
+  private long changesOffset;
+
+  private boolean trackChanges;
+
+  private final Random random;
+
+  private final Set<String> grantedPermissions = new HashSet<>();
+
+  private List<DataOrigin> origins = Collections.singletonList(new DataOrigin("org.example.synthetic"));
+
+  private DataOrigin callerOrigin = new DataOrigin("org.apache.cordova.health");
+
+  private int heartRateSamplesPerRecord = 12;
+
+  private volatile long latencyMillis = 0;
+
+  private volatile long latencyNanosPerRecord = 0;
+
+  private volatile int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+
+  private volatile double failureRate = 0;
+
+  private volatile Supplier<? extends RuntimeException> failure = () -> new IllegalStateException("Injected failure");
+
+  private volatile int quotaPerSecond = 0;
+
+  private long quotaWindow;
+
+  private int quotaUsed;
+
+  /**
+   * Constructor, all permissions are granted
+   *
+   * @param seed seed used to generate synthetic values, so that runs can be repeated
+   */
+  public InMemoryHealthBackend(long seed) {
+    this.random = new Random(seed);
+    for (Class<? extends Record> type : SUPPORTED_TYPES) {
+      KClass<? extends Record> kType = JvmClassMappingKt.getKotlinClass(type);
+      grantedPermissions.add(HealthPermission.getReadPermission(kType));
+      grantedPermissions.add(HealthPermission.getWritePermission(kType));
+    }
+  }
+
+  /**
+   * Sets the latency of each simulated IPC call
+   *
+   * @param millis         fixed latency of each call
+   * @param nanosPerRecord additional latency per record read or written
+   */
+  public void setLatency(long millis, long nanosPerRecord) {
+    this.latencyMillis = millis;
+    this.latencyNanosPerRecord = nanosPerRecord;
+  }
+
+  /**
+   * Sets the largest page size accepted by readRecords(), larger requests fail as they would in Health Connect
+   */
+  public void setMaxPageSize(int maxPageSize) {
+    this.maxPageSize = maxPageSize;
+  }
+
+  /**
+   * Makes a fraction of calls fail
+   *
+   * @param rate    probability, between 0 and 1, that a call fails
+   * @param failure creates the exception thrown by failing calls
+   */
+  public void setFailureRate(double rate, Supplier<? extends RuntimeException> failure) {
+    this.failureRate = rate;
+    this.failure = failure;
+  }
+
+  /**
+   * Limits the number of calls per second, further calls fail as Health Connect does when the quota is exceeded
+   *
+   * @param callsPerSecond maximum number of calls in each second, 0 for no limit
+   */
+  public void setQuota(int callsPerSecond) {
+    this.quotaPerSecond = callsPerSecond;
+  }
+
+  /**
+   * Replaces the set of granted permissions
+   */
+  public synchronized void setGrantedPermissions(Set<String> permissions) {
+    grantedPermissions.clear();
+    grantedPermissions.addAll(permissions);
+  }
+
+  /**
+   * Sets the apps that generated records are attributed to, they are assigned round robin
+   */
+  public synchronized void setOrigins(String... packageNames) {
+    List<DataOrigin> list = new ArrayList<>();
+    for (String packageName : packageNames) {
+      list.add(new DataOrigin(packageName));
+    }
+    this.origins = list;
+  }
+
+  /**
+   * Sets the app that inserted records are attributed to
+   */
+  public synchronized void setCallerPackage(String packageName) {
+    this.callerOrigin = new DataOrigin(packageName);
+  }
+
+  /**
+   * Sets how many samples are generated in each heart rate record
+   */
+  public synchronized void setHeartRateSamplesPerRecord(int samples) {
+    this.heartRateSamplesPerRecord = samples;
+  }
+
+  /**
+   * Generates synthetic records, back to back
+   *
+   * @param type     type of record
+   * @param start    start time of the first record
+   * @param interval time between records, also the duration of interval records
+   * @param count    number of records to generate
+   */
+  public void generate(Class<? extends Record> type, Instant start, Duration interval, int count) {
+    List<Record> generated = new ArrayList<>(count);
+    Random rnd;
+    List<DataOrigin> from;
+    int hrSamples;
+    synchronized (this) {
+      rnd = new Random(random.nextLong());
+      from = origins;
+      hrSamples = heartRateSamplesPerRecord;
+    }
+    Instant t = start;
+    for (int i = 0; i < count; i++) {
+      Metadata metadata = new Metadata(nextId(), from.get(i % from.size()), t, null, 0, null,
+        Metadata.RECORDING_METHOD_AUTOMATICALLY_RECORDED);
+      generated.add(synthesize(type, t, interval, metadata, rnd, hrSamples));
+      t = t.plus(interval);
+    }
+    synchronized (this) {
+      List<Record> records = records(type);
+      records.addAll(generated);
+      records.sort(BY_START_TIME);
+      trackSpan(type, interval);
+      for (Record record : generated) {
+        logChange(type, record, null);
+      }
+    }
+  }
+
+  /**
+   * @return the number of stored records of a type
+   */
+  public synchronized int count(Class<? extends Record> type) {
+    return records(type).size();
+  }
+
+  /**
+   * Removes all records
+   */
+  public synchronized void clear() {
+    store.clear();
+    longestSpan.clear();
+    byClientId.clear();
+    // outstanding tokens expire
+    changesOffset += changes.size() + 1;
+    changes.clear();
+  }
+
+  @Override
+  public synchronized Set<String> getGrantedPermissions() throws InterruptedException {
+    maybeFail();
+    return new HashSet<>(grantedPermissions);
+  }
+
+  @Override
+  public RecordPage readRecords(KClass<? extends Record> dataType, Instant start, Instant end, Set<DataOrigin> dataOrigins,
+                                boolean ascending, int pageSize, String pageToken) throws InterruptedException {
+    maybeFail();
+    if (pageSize < 1 || pageSize > maxPageSize) {
+      throw new IllegalArgumentException("pageSize must be between 1 and " + maxPageSize);
+    }
+    List<Record> page = new ArrayList<>(Math.min(pageSize, 1024));
+    String nextToken = null;
+    synchronized (this) {
+      List<Record> records = records(JvmClassMappingKt.getJavaClass(dataType));
+      int from = lowerBound(records, start);
+      int to = lowerBound(records, end);
+      int pos;
+      if (pageToken != null) {
+        pos = Integer.parseInt(pageToken);
+      } else {
+        pos = ascending ? from : to - 1;
+      }
+      while (pos >= from && pos < to && page.size() < pageSize) {
+        Record record = records.get(pos);
+        if (dataOrigins.isEmpty() || dataOrigins.contains(record.getMetadata().getDataOrigin())) {
+          page.add(record);
+        }
+        pos += ascending ? 1 : -1;
+      }
+      if (pos >= from && pos < to) {
+        nextToken = Integer.toString(pos);
+      }
+    }
+    simulateLatency(page.size());
+    return new RecordPage(page, nextToken);
+  }
+
+  @Override
+  public AggregateBucket aggregate(Set<AggregateMetric<?>> metrics, Instant start, Instant end,
+                                   Set<DataOrigin> dataOrigins) throws InterruptedException {
+    maybeFail();
+    AggregateBucket bucket;
+    synchronized (this) {
+      bucket = aggregateWindow(metrics, start, end, dataOrigins);
+    }
+    simulateLatency(0);
+    return bucket;
+  }
+
+  @Override
+  public List<AggregateBucket> aggregateGroupByPeriod(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                                      Period period, Set<DataOrigin> dataOrigins) throws InterruptedException {
+    maybeFail();
+    List<AggregateBucket> buckets = new ArrayList<>();
+    synchronized (this) {
+      for (LocalDateTime bst = start; bst.isBefore(end); bst = bst.plus(period)) {
+        LocalDateTime bet = bst.plus(period).isBefore(end) ? bst.plus(period) : end;
+        buckets.add(aggregateWindow(metrics, bst.atZone(ZoneId.systemDefault()).toInstant(),
+          bet.atZone(ZoneId.systemDefault()).toInstant(), dataOrigins));
+      }
+    }
+    simulateLatency(0);
+    return buckets;
+  }
+
+  @Override
+  public List<AggregateBucket> aggregateGroupByDuration(Set<AggregateMetric<?>> metrics, LocalDateTime start, LocalDateTime end,
+                                                        Duration duration, Set<DataOrigin> dataOrigins) throws InterruptedException {
+    maybeFail();
+    List<AggregateBucket> buckets = new ArrayList<>();
+    Instant et = end.atZone(ZoneId.systemDefault()).toInstant();
+    synchronized (this) {
+      for (Instant bst = start.atZone(ZoneId.systemDefault()).toInstant(); bst.isBefore(et); bst = bst.plus(duration)) {
+        Instant bet = bst.plus(duration).isBefore(et) ? bst.plus(duration) : et;
+        buckets.add(aggregateWindow(metrics, bst, bet, dataOrigins));
+      }
+    }
+    simulateLatency(0);
+    return buckets;
+  }
+
+  @Override
+  public List<String> insertRecords(List<? extends Record> records) throws InterruptedException {
+    maybeFail();
+    List<String> ids = new ArrayList<>(records.size());
+    synchronized (this) {
+      Set<Class<? extends Record>> touched = new HashSet<>();
+      for (Record record : records) {
+        Metadata md = record.getMetadata();
+        String clientKey = md.getClientRecordId() != null
+          ? clientKey(callerOrigin.getPackageName(), record.getClass(), md.getClientRecordId()) : null;
+        Record existing = clientKey != null ? byClientId.get(clientKey) : null;
+        String id;
+        if (existing != null) {
+          // as in Health Connect, a record with the same client record id is replaced, unless its version is not newer
+          id = existing.getMetadata().getId();
+          if (md.getClientRecordVersion() <= existing.getMetadata().getClientRecordVersion()) {
+            ids.add(id);
+            continue;
+          }
+          remove(existing);
+        } else {
+          id = nextId();
+        }
+        Metadata stored = new Metadata(id, callerOrigin, Instant.now(), md.getClientRecordId(),
+          md.getClientRecordVersion(), md.getDevice(), md.getRecordingMethod());
+        Record copy = withMetadata(record, stored);
+        records(copy.getClass()).add(copy);
+        if (clientKey != null) {
+          byClientId.put(clientKey, copy);
+        }
+        logChange(copy.getClass(), copy, null);
+        trackSpan(copy.getClass(), Duration.between(RecordUtils.startTime(copy), RecordUtils.endTime(copy)));
+        touched.add(copy.getClass());
+        ids.add(id);
+      }
+      for (Class<? extends Record> type : touched) {
+        records(type).sort(BY_START_TIME);
+      }
+    }
+    simulateLatency(records.size());
+    return ids;
+  }
+
+  @Override
+  public void deleteRecords(KClass<? extends Record> dataType, List<String> ids, List<String> clientIds) throws InterruptedException {
+    maybeFail();
+    Set<String> idSet = new HashSet<>(ids);
+    Set<String> clientIdSet = new HashSet<>(clientIds);
+    synchronized (this) {
+      Class<? extends Record> type = JvmClassMappingKt.getJavaClass(dataType);
+      records(type).removeIf(r -> {
+        boolean deleted = idSet.contains(r.getMetadata().getId())
+          || (r.getMetadata().getClientRecordId() != null && clientIdSet.contains(r.getMetadata().getClientRecordId()));
+        if (deleted) {
+          logChange(type, null, r.getMetadata().getId());
+          forgetClientId(r);
+        }
+        return deleted;
+      });
+    }
+    simulateLatency(ids.size() + clientIds.size());
+  }
+
+  @Override
+  public void deleteRecords(KClass<? extends Record> dataType, Instant start, Instant end) throws InterruptedException {
+    maybeFail();
+    synchronized (this) {
+      Class<? extends Record> type = JvmClassMappingKt.getJavaClass(dataType);
+      List<Record> records = records(type);
+      int from = lowerBound(records, start);
+      int to = lowerBound(records, end);
+      for (Record r : records.subList(from, to)) {
+        logChange(type, null, r.getMetadata().getId());
+        forgetClientId(r);
+      }
+      records.subList(from, to).clear();
+    }
+    simulateLatency(0);
+  }
+
+  @Override
+  public String getChangesToken(Set<KClass<? extends Record>> dataTypes) throws InterruptedException {
+    maybeFail();
+    StringBuilder token = new StringBuilder();
+    synchronized (this) {
+      trackChanges = true;
+      token.append(changesOffset + changes.size());
+    }
+    for (KClass<? extends Record> dataType : dataTypes) {
+      token.append(':').append(JvmClassMappingKt.getJavaClass(dataType).getName());
+    }
+    simulateLatency(0);
+    return token.toString();
+  }
+
+  @Override
+  public ChangesPage getChanges(String token) throws InterruptedException {
+    maybeFail();
+    String[] parts = token.split(":");
+    long pos = Long.parseLong(parts[0]);
+    Set<String> types = new HashSet<>(Arrays.asList(parts).subList(1, parts.length));
+    List<Record> upserted = new ArrayList<>();
+    List<String> deleted = new ArrayList<>();
+    boolean hasMore;
+    synchronized (this) {
+      if (pos < changesOffset) {
+        return new ChangesPage(upserted, deleted, token, false, true);
+      }
+      int i = (int) (pos - changesOffset);
+      int count = 0;
+      for (; i < changes.size() && count < CHANGES_PAGE_SIZE; i++) {
+        Change change = changes.get(i);
+        if (!types.contains(change.type.getName())) continue;
+        if (change.upserted != null) {
+          upserted.add(change.upserted);
+        } else {
+          deleted.add(change.deletedId);
+        }
+        count++;
+      }
+      pos = changesOffset + i;
+      hasMore = i < changes.size();
+    }
+    simulateLatency(upserted.size() + deleted.size());
+    StringBuilder next = new StringBuilder().append(pos);
+    for (int t = 1; t < parts.length; t++) {
+      next.append(':').append(parts[t]);
+    }
+    return new ChangesPage(upserted, deleted, next.toString(), hasMore, false);
+  }
+
+  /**
+   * Keeps a change for changes tokens, once a token has been issued
+   */
+  private void logChange(Class<? extends Record> type, Record upserted, String deletedId) {
+    if (!trackChanges) return;
+    changes.add(new Change(type, upserted, deletedId));
+    if (changes.size() > MAX_CHANGES) {
+      int dropped = changes.size() - MAX_CHANGES / 2;
+      changes.subList(0, dropped).clear();
+      changesOffset += dropped;
+    }
+  }
+
+  private List<Record> records(Class<? extends Record> type) {
+    return store.computeIfAbsent(type, k -> new ArrayList<>());
+  }
+
+  private void trackSpan(Class<? extends Record> type, Duration span) {
+    Duration longest = longestSpan.get(type);
+    if (longest == null || span.compareTo(longest) > 0) {
+      longestSpan.put(type, span);
+    }
+  }
+
+  private static String clientKey(String packageName, Class<? extends Record> type, String clientRecordId) {
+    return packageName + "/" + type.getSimpleName() + "/" + clientRecordId;
+  }
+
+  private void forgetClientId(Record r) {
+    Metadata md = r.getMetadata();
+    if (md.getClientRecordId() != null && md.getDataOrigin() != null) {
+      byClientId.remove(clientKey(md.getDataOrigin().getPackageName(), r.getClass(), md.getClientRecordId()), r);
+    }
+  }
+
+  /**
+   * Removes a stored record, found by its start time
+   */
+  private void remove(Record r) {
+    List<Record> records = records(r.getClass());
+    for (int i = lowerBound(records, RecordUtils.startTime(r)); i < records.size(); i++) {
+      if (records.get(i) == r) {
+        records.remove(i);
+        return;
+      }
+      if (RecordUtils.startTime(records.get(i)).isAfter(RecordUtils.startTime(r))) break;
+    }
+    // records inserted by the current batch are not sorted yet
+    records.removeIf(x -> x == r);
+  }
+
+  private String nextId() {
+    return "mem-" + idCounter.incrementAndGet();
+  }
+
+  /**
+   * Index of the first record starting at or after the given time
+   */
+  private static int lowerBound(List<Record> records, Instant time) {
+    int lo = 0;
+    int hi = records.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (RecordUtils.startTime(records.get(mid)).isBefore(time)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private void maybeFail() {
+    if (quotaPerSecond > 0) {
+      synchronized (this) {
+        long window = System.nanoTime() / 1_000_000_000L;
+        if (window != quotaWindow) {
+          quotaWindow = window;
+          quotaUsed = 0;
+        }
+        if (++quotaUsed > quotaPerSecond) {
+          throw new RateLimitException("Rate limited request quota has been exceeded");
+        }
+      }
+    }
+    if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+      throw failure.get();
+    }
+  }
+
+  private void simulateLatency(int records) throws InterruptedException {
+    long nanos = latencyMillis * 1_000_000L + latencyNanosPerRecord * records;
+    if (nanos > 0) {
+      Thread.sleep(nanos / 1_000_000L, (int) (nanos % 1_000_000L));
+    } else if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Aggregates the records overlapping a time window, interval records contribute proportionally to the overlap
+   */
+  private AggregateBucket aggregateWindow(Set<AggregateMetric<?>> metrics, Instant start, Instant end, Set<DataOrigin> dataOrigins) {
+    AggregateBucket bucket = new AggregateBucket(start, end);
+    for (AggregateMetric<?> metric : metrics) {
+      if (metric == StepsRecord.COUNT_TOTAL) {
+        double steps = 0;
+        boolean found = false;
+        for (Record r : overlapping(StepsRecord.class, start, end, dataOrigins)) {
+          steps += ((StepsRecord) r).getCount() * overlapFraction(r, start, end);
+          found = true;
+        }
+        bucket.put(StepsRecord.COUNT_TOTAL, found ? Math.round(steps) : null);
+      } else if (metric == ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL) {
+        double kcals = 0;
+        boolean found = false;
+        for (Record r : overlapping(ActiveCaloriesBurnedRecord.class, start, end, dataOrigins)) {
+          kcals += ((ActiveCaloriesBurnedRecord) r).getEnergy().getKilocalories() * overlapFraction(r, start, end);
+          found = true;
+        }
+        bucket.put(ActiveCaloriesBurnedRecord.ACTIVE_CALORIES_TOTAL, found ? Energy.kilocalories(kcals) : null);
+      } else if (metric == ExerciseSessionRecord.EXERCISE_DURATION_TOTAL) {
+        Duration total = Duration.ZERO;
+        boolean found = false;
+        for (Record r : overlapping(ExerciseSessionRecord.class, start, end, dataOrigins)) {
+          Instant ost = RecordUtils.startTime(r).isAfter(start) ? RecordUtils.startTime(r) : start;
+          Instant oet = RecordUtils.endTime(r).isBefore(end) ? RecordUtils.endTime(r) : end;
+          total = total.plus(Duration.between(ost, oet));
+          found = true;
+        }
+        bucket.put(ExerciseSessionRecord.EXERCISE_DURATION_TOTAL, found ? total : null);
+      } else if (metric == BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL) {
+        // each rate holds until the following one is recorded
+        List<Record> rates = records(BasalMetabolicRateRecord.class);
+        double kcals = 0;
+        boolean found = false;
+        for (int i = 0; i < rates.size(); i++) {
+          BasalMetabolicRateRecord rate = (BasalMetabolicRateRecord) rates.get(i);
+          if (!dataOrigins.isEmpty() && !dataOrigins.contains(rate.getMetadata().getDataOrigin())) continue;
+          Instant from = rate.getTime().isAfter(start) ? rate.getTime() : start;
+          Instant until = i + 1 < rates.size() ? RecordUtils.startTime(rates.get(i + 1)) : end;
+          if (until.isAfter(end)) until = end;
+          if (from.isBefore(until)) {
+            kcals += rate.getBasalMetabolicRate().getKilocaloriesPerDay() * Duration.between(from, until).toMillis() / 86400000d;
+            found = true;
+          }
+        }
+        bucket.put(BasalMetabolicRateRecord.BASAL_CALORIES_TOTAL, found ? Energy.kilocalories(kcals) : null);
+      } else {
+        throw new IllegalArgumentException("Aggregate metric not supported by the in-memory backend");
+      }
+    }
+    return bucket;
+  }
+
+  private List<Record> overlapping(Class<? extends Record> type, Instant start, Instant end, Set<DataOrigin> dataOrigins) {
+    List<Record> records = records(type);
+    Duration span = longestSpan.getOrDefault(type, Duration.ZERO);
+    List<Record> found = new LinkedList<>();
+    for (int i = lowerBound(records, start.minus(span)); i < records.size(); i++) {
+      Record r = records.get(i);
+      if (!RecordUtils.startTime(r).isBefore(end)) break;
+      if (RecordUtils.endTime(r).isAfter(start)
+        && (dataOrigins.isEmpty() || dataOrigins.contains(r.getMetadata().getDataOrigin()))) {
+        found.add(r);
+      }
+    }
+    return found;
+  }
+
+  private static double overlapFraction(Record r, Instant start, Instant end) {
+    long rst = RecordUtils.startTime(r).toEpochMilli();
+    long ret = RecordUtils.endTime(r).toEpochMilli();
+    if (ret <= rst) return 1;
+    long ost = Math.max(rst, start.toEpochMilli());
+    long oet = Math.min(ret, end.toEpochMilli());
+    return Math.max(0, oet - ost) / (double) (ret - rst);
+  }
+
+  // DATA_TYPE add here when supporting new ones
+  private static Record synthesize(Class<? extends Record> type, Instant t, Duration interval, Metadata md,
+                                   Random rnd, int hrSamples) {
+    Instant et = t.plus(interval);
+    if (type == StepsRecord.class) {
+      return new StepsRecord(t, null, et, null, 1 + rnd.nextInt(180), md);
+    } else if (type == DistanceRecord.class) {
+      return new DistanceRecord(t, null, et, null, Length.meters(1 + rnd.nextDouble() * 150), md);
+    } else if (type == FloorsClimbedRecord.class) {
+      return new FloorsClimbedRecord(t, null, et, null, rnd.nextInt(3), md);
+    } else if (type == ActiveCaloriesBurnedRecord.class) {
+      return new ActiveCaloriesBurnedRecord(t, null, et, null, Energy.kilocalories(rnd.nextDouble() * 10), md);
+    } else if (type == HeartRateRecord.class) {
+      List<HeartRateRecord.Sample> samples = new ArrayList<>(hrSamples);
+      long bpm = 60 + rnd.nextInt(60);
+      for (int i = 0; i < hrSamples; i++) {
+        bpm = Math.max(40, Math.min(200, bpm + rnd.nextInt(11) - 5));
+        samples.add(new HeartRateRecord.Sample(t.plus(interval.multipliedBy(i).dividedBy(hrSamples)), bpm));
+      }
+      return new HeartRateRecord(t, null, et, null, samples, md);
+    } else if (type == ExerciseSessionRecord.class) {
+      int exType = EXERCISE_TYPES[rnd.nextInt(EXERCISE_TYPES.length)];
+      return new ExerciseSessionRecord(t, null, et, null, exType, null, null, md,
+        new LinkedList<ExerciseSegment>(), new LinkedList<ExerciseLap>());
+    } else if (type == SleepSessionRecord.class) {
+      List<SleepSessionRecord.Stage> stages = new ArrayList<>(SLEEP_STAGES.length);
+      for (int i = 0; i < SLEEP_STAGES.length; i++) {
+        stages.add(new SleepSessionRecord.Stage(
+          t.plus(interval.multipliedBy(i).dividedBy(SLEEP_STAGES.length)),
+          t.plus(interval.multipliedBy(i + 1).dividedBy(SLEEP_STAGES.length)),
+          SLEEP_STAGES[i]));
+      }
+      return new SleepSessionRecord(t, null, et, null, null, null, stages, md);
+    } else if (type == WeightRecord.class) {
+      return new WeightRecord(t, null, Mass.kilograms(60 + rnd.nextDouble() * 30), md);
+    } else if (type == BodyFatRecord.class) {
+      return new BodyFatRecord(t, null, new Percentage(10 + rnd.nextDouble() * 25), md);
+    } else if (type == OxygenSaturationRecord.class) {
+      return new OxygenSaturationRecord(t, null, new Percentage(92 + rnd.nextDouble() * 8), md);
+    } else if (type == BasalMetabolicRateRecord.class) {
+      return new BasalMetabolicRateRecord(t, null, Power.kilocaloriesPerDay(1400 + rnd.nextDouble() * 600), md);
+    }
+    throw new IllegalArgumentException("Record type not supported " + type.getSimpleName());
+  }
+
+  // DATA_TYPE add here when supporting new ones
+  private static Record withMetadata(Record r, Metadata md) {
+    if (r instanceof StepsRecord) {
+      StepsRecord rec = (StepsRecord) r;
+      return new StepsRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(), rec.getCount(), md);
+    } else if (r instanceof DistanceRecord) {
+      DistanceRecord rec = (DistanceRecord) r;
+      return new DistanceRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(), rec.getDistance(), md);
+    } else if (r instanceof FloorsClimbedRecord) {
+      FloorsClimbedRecord rec = (FloorsClimbedRecord) r;
+      return new FloorsClimbedRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(), rec.getFloors(), md);
+    } else if (r instanceof ActiveCaloriesBurnedRecord) {
+      ActiveCaloriesBurnedRecord rec = (ActiveCaloriesBurnedRecord) r;
+      return new ActiveCaloriesBurnedRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(), rec.getEnergy(), md);
+    } else if (r instanceof HeartRateRecord) {
+      HeartRateRecord rec = (HeartRateRecord) r;
+      return new HeartRateRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(), rec.getSamples(), md);
+    } else if (r instanceof ExerciseSessionRecord) {
+      ExerciseSessionRecord rec = (ExerciseSessionRecord) r;
+      return new ExerciseSessionRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(),
+        rec.getExerciseType(), rec.getTitle(), rec.getNotes(), md, new LinkedList<ExerciseSegment>(), new LinkedList<ExerciseLap>());
+    } else if (r instanceof SleepSessionRecord) {
+      SleepSessionRecord rec = (SleepSessionRecord) r;
+      return new SleepSessionRecord(rec.getStartTime(), rec.getStartZoneOffset(), rec.getEndTime(), rec.getEndZoneOffset(),
+        rec.getTitle(), rec.getNotes(), rec.getStages(), md);
+    } else if (r instanceof WeightRecord) {
+      WeightRecord rec = (WeightRecord) r;
+      return new WeightRecord(rec.getTime(), rec.getZoneOffset(), rec.getWeight(), md);
+    } else if (r instanceof BodyFatRecord) {
+      BodyFatRecord rec = (BodyFatRecord) r;
+      return new BodyFatRecord(rec.getTime(), rec.getZoneOffset(), rec.getPercentage(), md);
+    } else if (r instanceof OxygenSaturationRecord) {
+      OxygenSaturationRecord rec = (OxygenSaturationRecord) r;
+      return new OxygenSaturationRecord(rec.getTime(), rec.getZoneOffset(), rec.getPercentage(), md);
+    } else if (r instanceof BasalMetabolicRateRecord) {
+      BasalMetabolicRateRecord rec = (BasalMetabolicRateRecord) r;
+      return new BasalMetabolicRateRecord(rec.getTime(), rec.getZoneOffset(), rec.getBasalMetabolicRate(), md);
+    }
+    throw new IllegalArgumentException("Record type not supported " + r.getClass().getSimpleName());
+  }
+}
@@ -0,0 +1,164 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.health.connect.client.records.Record;
+import androidx.health.connect.client.records.StepsRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import kotlin.jvm.JvmClassMappingKt;
+
+public class InMemoryHealthBackendTest {
+
+  private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+  private static final int RECORDS = 10_000;
+
+  private static InMemoryHealthBackend generated() {
+    InMemoryHealthBackend backend = new InMemoryHealthBackend(42);
+    backend.generate(StepsRecord.class, START, Duration.ofMinutes(1), RECORDS);
+    return backend;
+  }
+
+  /**
+   * Reads all pages of a range and checks that records come once each, in order
+   *
+   * @return the number of records read
+   */
+  private static int readAll(InMemoryHealthBackend backend, Instant start, Instant end, Set<DataOrigin> origins,
+                             boolean ascending, int pageSize) throws InterruptedException {
+    int count = 0;
+    Instant last = null;
+    String token = null;
+    do {
+      RecordPage page = backend.readRecords(JvmClassMappingKt.getKotlinClass(StepsRecord.class), start, end, origins,
+        ascending, pageSize, token);
+      assertTrue(page.getRecords().size() <= pageSize);
+      for (Record record : page.getRecords()) {
+        Instant t = RecordUtils.startTime(record);
+        assertTrue(!t.isBefore(start) && t.isBefore(end));
+        if (last != null) {
+          assertTrue("records out of order", ascending ? t.isAfter(last) : t.isBefore(last));
+        }
+        last = t;
+        count++;
+      }
+      token = page.getPageToken();
+    } while (token != null);
+    return count;
+  }
+
+  @Test
+  public void pagesCoverTheRangeOnce() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    Instant end = START.plus(Duration.ofMinutes(RECORDS));
+    assertEquals(RECORDS, readAll(backend, START, end, Collections.emptySet(), true, 777));
+    assertEquals(RECORDS, readAll(backend, START, end, Collections.emptySet(), false, 777));
+    // exact multiple of the page size, the last page has no token
+    assertEquals(RECORDS, readAll(backend, START, end, Collections.emptySet(), true, 1000));
+  }
+
+  @Test
+  public void pagesStayWithinTheRange() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    Instant from = START.plus(Duration.ofMinutes(100));
+    Instant to = START.plus(Duration.ofMinutes(350));
+    assertEquals(250, readAll(backend, from, to, Collections.emptySet(), true, 100));
+    assertEquals(250, readAll(backend, from, to, Collections.emptySet(), false, 100));
+    assertEquals(0, readAll(backend, START.minus(Duration.ofDays(1)), START, Collections.emptySet(), true, 100));
+  }
+
+  @Test
+  public void pagesOnlyHoldTheRequestedOrigins() throws InterruptedException {
+    InMemoryHealthBackend backend = new InMemoryHealthBackend(42);
+    backend.setOrigins("com.example.phone", "com.example.watch");
+    backend.generate(StepsRecord.class, START, Duration.ofMinutes(1), 1000);
+    Set<DataOrigin> watch = new HashSet<>();
+    watch.add(new DataOrigin("com.example.watch"));
+    RecordPage page = backend.readRecords(JvmClassMappingKt.getKotlinClass(StepsRecord.class), START,
+      START.plus(Duration.ofDays(1)), watch, true, 5000, null);
+    assertEquals(500, page.getRecords().size());
+    for (Record record : page.getRecords()) {
+      assertEquals("com.example.watch", record.getMetadata().getDataOrigin().getPackageName());
+    }
+    assertNull(page.getPageToken());
+  }
+
+  @Test
+  public void pagesLargerThanTheMaximumAreRejected() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    backend.setMaxPageSize(100);
+    try {
+      backend.readRecords(JvmClassMappingKt.getKotlinClass(StepsRecord.class), START, START.plus(Duration.ofDays(1)),
+        Collections.emptySet(), true, 101, null);
+      fail("page size above the maximum accepted");
+    } catch (IllegalArgumentException expected) {
+      // as Health Connect does
+    }
+    assertEquals(100, readAll(backend, START, START.plus(Duration.ofMinutes(100)), Collections.emptySet(), true, 100));
+  }
+
+  @Test
+  public void failuresAreInjectedAtTheGivenRate() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    backend.setFailureRate(1, () -> new IllegalStateException("Injected failure"));
+    try {
+      backend.getGrantedPermissions();
+      fail("no failure injected");
+    } catch (IllegalStateException expected) {
+      assertEquals("Injected failure", expected.getMessage());
+    }
+
+    backend.setFailureRate(0.3, () -> new IllegalStateException("Injected failure"));
+    int failed = 0;
+    for (int i = 0; i < 10_000; i++) {
+      try {
+        backend.getGrantedPermissions();
+      } catch (IllegalStateException ex) {
+        failed++;
+      }
+    }
+    // about 3000, more than 10 standard deviations away is a bug
+    assertTrue("failed " + failed, failed > 2500 && failed < 3500);
+
+    backend.setFailureRate(0, null);
+    backend.getGrantedPermissions();
+  }
+
+  @Test
+  public void callsAboveTheQuotaAreRateLimited() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    backend.setQuota(5);
+    int limited = 0;
+    // the quota is per second, 11 quick calls exceed it even if a second starts in between
+    for (int i = 0; i < 11; i++) {
+      try {
+        backend.getGrantedPermissions();
+      } catch (RateLimitException ex) {
+        limited++;
+      }
+    }
+    assertTrue(limited > 0);
+  }
+
+  @Test
+  public void latencyIsSimulated() throws InterruptedException {
+    InMemoryHealthBackend backend = generated();
+    backend.setLatency(30, 0);
+    long start = System.nanoTime();
+    backend.readRecords(JvmClassMappingKt.getKotlinClass(StepsRecord.class), START, START.plus(Duration.ofMinutes(10)),
+      Collections.emptySet(), true, 10, null);
+    assertTrue(System.nanoTime() - start >= Duration.ofMillis(30).toNanos());
+  }
+}
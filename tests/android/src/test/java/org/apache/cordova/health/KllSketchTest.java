@@ -0,0 +1,134 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class KllSketchTest {
+
+  private static final int SAMPLES = 1_000_000;
+
+  /**
+   * Documented bound, for the default k
+   */
+  private static final double MAX_RANK_ERROR = 0.015;
+
+  private static final double[] QUANTILES = {0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999};
+
+  private static double[] uniform(Random rnd) {
+    double[] values = new double[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) values[i] = rnd.nextDouble();
+    return values;
+  }
+
+  private static double[] skewed(Random rnd) {
+    // heart rates or step counts are far from uniform
+    double[] values = new double[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) values[i] = Math.exp(rnd.nextGaussian() * 2);
+    return values;
+  }
+
+  private static double[] sorted(Random rnd) {
+    double[] values = uniform(rnd);
+    Arrays.sort(values);
+    return values;
+  }
+
+  private static double[] reversed(Random rnd) {
+    double[] values = sorted(rnd);
+    for (int i = 0; i < SAMPLES / 2; i++) {
+      double v = values[i];
+      values[i] = values[SAMPLES - 1 - i];
+      values[SAMPLES - 1 - i] = v;
+    }
+    return values;
+  }
+
+  private static void assertRetainedBound(KllSketch sketch) {
+    double bound = 3 * KllSketch.DEFAULT_K + 2 * Math.log(Math.max(1, sketch.getCount())) / Math.log(2);
+    assertTrue("retained " + sketch.getRetained() + " of " + sketch.getCount(), sketch.getRetained() < bound);
+  }
+
+  private static KllSketch sketch(double[] values, int from, int to) {
+    KllSketch sketch = new KllSketch();
+    for (int i = from; i < to; i++) {
+      sketch.add(values[i]);
+      assertRetainedBound(sketch);
+    }
+    return sketch;
+  }
+
+  /**
+   * Checks the estimated quantiles against the exact ranks of the values
+   */
+  private static void assertRankError(KllSketch sketch, double[] values) {
+    assertEquals(values.length, sketch.getCount());
+    assertRetainedBound(sketch);
+    double[] exact = values.clone();
+    Arrays.sort(exact);
+    for (double q : QUANTILES) {
+      double estimate = sketch.quantile(q);
+      // fraction of the values below or equal to the estimate
+      int rank = Arrays.binarySearch(exact, estimate);
+      assertTrue("estimate is not a value", rank >= 0);
+      while (rank + 1 < exact.length && exact[rank + 1] == estimate) rank++;
+      double error = Math.abs((rank + 1) / (double) exact.length - q);
+      assertTrue("rank error " + error + " at " + q, error < MAX_RANK_ERROR);
+    }
+  }
+
+  @Test
+  public void emptySketch() {
+    assertTrue(Double.isNaN(new KllSketch().quantile(0.5)));
+  }
+
+  @Test
+  public void fewValuesAreExact() {
+    KllSketch sketch = new KllSketch();
+    for (int i = 1; i <= 100; i++) sketch.add(i);
+    assertEquals(50, sketch.quantile(0.5), 0);
+    assertEquals(1, sketch.quantile(0), 0);
+    assertEquals(100, sketch.quantile(1), 0);
+  }
+
+  @Test
+  public void quantilesOfAMillionValues() {
+    Random rnd = new Random(42);
+    for (double[] values : new double[][]{uniform(rnd), skewed(rnd), sorted(rnd), reversed(rnd)}) {
+      assertRankError(sketch(values, 0, values.length), values);
+    }
+  }
+
+  @Test
+  public void quantilesOfMergedSketches() {
+    Random rnd = new Random(42);
+    for (double[] values : new double[][]{uniform(rnd), skewed(rnd), sorted(rnd)}) {
+      // uneven buckets, as days of data with more or less samples
+      KllSketch merged = new KllSketch();
+      int from = 0;
+      while (from < values.length) {
+        int to = Math.min(values.length, from + 1 + rnd.nextInt(100_000));
+        merged.merge(sketch(values, from, to));
+        assertRetainedBound(merged);
+        from = to;
+      }
+      assertRankError(merged, values);
+
+      // merged two by two
+      KllSketch[] sketches = new KllSketch[16];
+      for (int i = 0; i < sketches.length; i++) {
+        sketches[i] = sketch(values, i * values.length / sketches.length, (i + 1) * values.length / sketches.length);
+      }
+      for (int width = 1; width < sketches.length; width *= 2) {
+        for (int i = 0; i + width < sketches.length; i += 2 * width) {
+          sketches[i].merge(sketches[i + width]);
+        }
+      }
+      assertRankError(sketches[0], values);
+    }
+  }
+}
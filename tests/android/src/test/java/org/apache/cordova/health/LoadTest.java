@@ -0,0 +1,199 @@
+package org.apache.cordova.health;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import androidx.health.connect.client.records.StepsRecord;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of query(), queryAggregated(), store() and delete() on a plain JVM, against InMemoryHealthBackend.
+ * Calls go through HealthPlugin.execute() as they do from JS, the WebView and the Cordova activity are replaced
+ * by proxies that only deliver results and provide the thread pool and a context whose folders are temporary.
+ * At the end, the metrics of the plugin, as returned by getMetrics(), are printed. The run fails if errors were
+ * raised after a result had been sent, as they would be hidden from the app.
+ * <p>
+ * Usage: LoadTest [records] [clients] [seconds], run it with gradle -p tests/android loadTest -Pargs="1000000 8 30"
+ */
+public class LoadTest {
+
+  private static final AtomicInteger callbackIds = new AtomicInteger();
+
+  /**
+   * Final results of the calls waiting for one, by callback id
+   */
+  private static final Map<String, CompletableFuture<PluginResult>> pending = new ConcurrentHashMap<>();
+
+  public static void main(String[] args) throws Exception {
+    int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+    InMemoryHealthBackend backend = new InMemoryHealthBackend(42);
+    // one record per minute, up to now
+    Instant end = Instant.now();
+    Instant start = end.minus(Duration.ofMinutes(records));
+    backend.generate(StepsRecord.class, start, Duration.ofMinutes(1), records);
+    backend.setLatency(5, 200);
+
+    ExecutorService threadPool = Executors.newCachedThreadPool();
+    File dir = Files.createTempDirectory("health-load-test").toFile();
+    Context context = new ContextWrapper(null) {
+      @Override
+      public File getCacheDir() {
+        return new File(dir, "cache");
+      }
+
+      @Override
+      public File getFilesDir() {
+        return new File(dir, "files");
+      }
+    };
+    HealthPlugin plugin = new HealthPlugin();
+    plugin.cordova = (CordovaInterface) Proxy.newProxyInstance(LoadTest.class.getClassLoader(),
+      new Class<?>[]{CordovaInterface.class},
+      (proxy, method, methodArgs) -> {
+        if ("getThreadPool".equals(method.getName())) return threadPool;
+        if ("getContext".equals(method.getName())) return context;
+        return null;
+      });
+    plugin.webView = (CordovaWebView) Proxy.newProxyInstance(LoadTest.class.getClassLoader(),
+      new Class<?>[]{CordovaWebView.class},
+      (proxy, method, methodArgs) -> {
+        if ("sendPluginResult".equals(method.getName())) {
+          deliver((PluginResult) methodArgs[0], (String) methodArgs[1]);
+        }
+        return defaultValue(method.getReturnType());
+      });
+    plugin.setBackend(backend);
+
+    System.out.println("Generated " + records + " steps records, running " + clients + " clients for " + seconds + " s");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    AtomicLong calls = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+    ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+    List<Future<?>> running = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      running.add(clientPool.submit(() -> {
+        while (System.nanoTime() < deadline) {
+          try {
+            PluginResult result = call(plugin, randomRequest(start.toEpochMilli(), end.toEpochMilli()));
+            if (result.getStatus() != PluginResult.Status.OK.ordinal()) {
+              errors.incrementAndGet();
+            }
+          } catch (Exception ex) {
+            errors.incrementAndGet();
+          }
+          calls.incrementAndGet();
+        }
+        return null;
+      }));
+    }
+    for (Future<?> client : running) {
+      client.get();
+    }
+    clientPool.shutdown();
+
+    System.out.println(calls.get() + " calls, " + errors.get() + " errors");
+    JSONObject metrics = new JSONObject(call(plugin, new Object[]{"getMetrics", new JSONObject()}).getMessage());
+    System.out.println(metrics.toString(2));
+    long lateErrors = 0;
+    JSONArray actions = metrics.getJSONArray("actions");
+    for (int i = 0; i < actions.length(); i++) {
+      lateErrors += actions.getJSONObject(i).getLong("lateErrors");
+    }
+    threadPool.shutdownNow();
+    if (lateErrors > 0) {
+      System.out.println(lateErrors + " errors were raised after the result had been sent");
+    }
+    System.exit(lateErrors > 0 ? 1 : 0);
+  }
+
+  /**
+   * @return action and options of a random request within the generated data
+   */
+  private static Object[] randomRequest(long start, long end) throws JSONException {
+    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+    long day = TimeUnit.DAYS.toMillis(1);
+    long st = start + (long) (rnd.nextDouble() * Math.max(1, end - start - 7 * day));
+    JSONObject opts = new JSONObject();
+    opts.put("dataType", "steps");
+    double dice = rnd.nextDouble();
+    if (dice < 0.5) {
+      opts.put("startDate", st);
+      opts.put("endDate", st + day);
+      opts.put("limit", 1000);
+      return new Object[]{"query", opts};
+    } else if (dice < 0.8) {
+      opts.put("startDate", st);
+      opts.put("endDate", st + 7 * day);
+      opts.put("bucket", "day");
+      return new Object[]{"queryAggregated", opts};
+    } else if (dice < 0.95) {
+      opts.put("startDate", st);
+      opts.put("endDate", st + TimeUnit.MINUTES.toMillis(1));
+      opts.put("value", rnd.nextInt(1, 200));
+      return new Object[]{"store", opts};
+    } else {
+      opts.put("startDate", st);
+      opts.put("endDate", st + TimeUnit.HOURS.toMillis(1));
+      return new Object[]{"delete", opts};
+    }
+  }
+
+  /**
+   * Calls the plugin and waits for the final result, pages and progress updates are skipped
+   */
+  private static PluginResult call(HealthPlugin plugin, Object[] request) throws Exception {
+    String callbackId = "LoadTest" + callbackIds.incrementAndGet();
+    CompletableFuture<PluginResult> result = new CompletableFuture<>();
+    pending.put(callbackId, result);
+    try {
+      CallbackContext callbackContext = new CallbackContext(callbackId, plugin.webView);
+      plugin.execute((String) request[0], new JSONArray().put(request[1]), callbackContext);
+      return result.get(60, TimeUnit.SECONDS);
+    } finally {
+      pending.remove(callbackId);
+    }
+  }
+
+  private static void deliver(PluginResult result, String callbackId) {
+    if (result.getKeepCallback()) return;
+    CompletableFuture<PluginResult> future = pending.get(callbackId);
+    if (future != null) {
+      future.complete(result);
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    return null;
+  }
+}
@@ -0,0 +1,149 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.health.connect.client.records.StepsRecord;
+import androidx.health.connect.client.records.WeightRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Metadata;
+import androidx.health.connect.client.units.Mass;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+public class OverlapResolverTest {
+
+  private static final String WATCH = "com.example.watch";
+
+  private static final String PHONE = "com.example.phone";
+
+  private static final String OTHER = "com.example.other";
+
+  private static final List<String> FIELDS = Arrays.asList("sourceBundleId", "startDate", "endDate", "value");
+
+  private static final long MIN = 60_000;
+
+  private static Metadata metadata(String source) {
+    return new Metadata("", new DataOrigin(source), Instant.EPOCH, null, 0, null, 0);
+  }
+
+  private static RecordRow steps(String source, long startMin, long endMin, long count) {
+    return new RecordRow(new StepsRecord(Instant.ofEpochMilli(startMin * MIN), null, Instant.ofEpochMilli(endMin * MIN),
+      null, count, metadata(source)));
+  }
+
+  private static RecordRow weight(String source, long min, double kg) {
+    return new RecordRow(new WeightRecord(Instant.ofEpochMilli(min * MIN), null, Mass.kilograms(kg), metadata(source)));
+  }
+
+  private static JSONArray resolve(RecordRow... rows) throws JSONException {
+    OverlapResolver resolver = new OverlapResolver(Arrays.asList(WATCH, PHONE));
+    for (RecordRow row : rows) {
+      resolver.add(row);
+    }
+    return resolver.resolve(FIELDS, true, Integer.MAX_VALUE);
+  }
+
+  private static void assertRecord(JSONObject obj, String source, long startMin, long endMin, long value) throws JSONException {
+    assertEquals(source, obj.getString("sourceBundleId"));
+    assertEquals(startMin * MIN, obj.getLong("startDate"));
+    assertEquals(endMin * MIN, obj.getLong("endDate"));
+    assertEquals(value, obj.getLong("value"));
+    assertTrue("counts are integers", obj.get("value") instanceof Long);
+  }
+
+  @Test
+  public void lowerPriorityKeepsWhatIsNotClaimed() throws JSONException {
+    JSONArray result = resolve(steps(PHONE, 0, 30, 300), steps(WATCH, 10, 20, 150));
+    assertEquals(3, result.length());
+    assertRecord(result.getJSONObject(0), PHONE, 0, 10, 100);
+    assertRecord(result.getJSONObject(1), WATCH, 10, 20, 150);
+    assertRecord(result.getJSONObject(2), PHONE, 20, 30, 100);
+  }
+
+  @Test
+  public void touchingIntervalsAreKeptWhole() throws JSONException {
+    JSONArray result = resolve(steps(PHONE, 0, 10, 100), steps(WATCH, 10, 20, 150), steps(PHONE, 20, 30, 100));
+    assertEquals(3, result.length());
+    assertRecord(result.getJSONObject(0), PHONE, 0, 10, 100);
+    assertRecord(result.getJSONObject(1), WATCH, 10, 20, 150);
+    assertRecord(result.getJSONObject(2), PHONE, 20, 30, 100);
+
+    // claimed intervals that touch are merged, what is between them stays free
+    result = resolve(steps(WATCH, 0, 10, 100), steps(WATCH, 10, 20, 100), steps(WATCH, 25, 30, 50), steps(PHONE, 5, 35, 300));
+    assertEquals(5, result.length());
+    assertRecord(result.getJSONObject(2), PHONE, 20, 25, 50);
+    assertRecord(result.getJSONObject(4), PHONE, 30, 35, 50);
+  }
+
+  @Test
+  public void instantsInsideAClaimedRangeAreDropped() throws JSONException {
+    JSONArray result = resolve(steps(WATCH, 10, 20, 100),
+      weight(PHONE, 5, 70), weight(PHONE, 10, 71), weight(PHONE, 15, 72), weight(PHONE, 20, 73));
+    // the range is [start, end): its start is claimed, its end is not
+    assertEquals(3, result.length());
+    assertEquals(5 * MIN, result.getJSONObject(0).getLong("startDate"));
+    assertEquals(WATCH, result.getJSONObject(1).getString("sourceBundleId"));
+    assertEquals(20 * MIN, result.getJSONObject(2).getLong("startDate"));
+    assertEquals(73, result.getJSONObject(2).getDouble("value"), 0);
+  }
+
+  @Test
+  public void proratedCountsAddUpToTheRoundedShare() throws JSONException {
+    // 2 steps over 8 minutes, every other minute claimed: 0.25 steps per part, 1 step in all
+    JSONArray result = resolve(steps(PHONE, 0, 8, 2), steps(WATCH, 1, 2, 1), steps(WATCH, 3, 4, 1),
+      steps(WATCH, 5, 6, 1), steps(WATCH, 7, 8, 1));
+    long phone = 0;
+    for (int i = 0; i < result.length(); i++) {
+      JSONObject obj = result.getJSONObject(i);
+      assertTrue(obj.get("value") instanceof Long);
+      if (PHONE.equals(obj.getString("sourceBundleId"))) phone += obj.getLong("value");
+    }
+    assertEquals(1, phone);
+
+    // 10 steps over 30 minutes, the middle claimed: 3.33 steps on each side
+    result = resolve(steps(PHONE, 0, 30, 10), steps(WATCH, 10, 20, 0));
+    assertRecord(result.getJSONObject(0), PHONE, 0, 10, 3);
+    assertRecord(result.getJSONObject(2), PHONE, 20, 30, 4);
+  }
+
+  @Test
+  public void equalStartsAreResolvedByRank() throws JSONException {
+    // whatever the order they are added in
+    for (boolean watchFirst : new boolean[]{true, false}) {
+      RecordRow watch = steps(WATCH, 0, 5, 50);
+      RecordRow phone = steps(PHONE, 0, 10, 100);
+      RecordRow other = steps(OTHER, 0, 20, 200);
+      JSONArray result = watchFirst ? resolve(watch, phone, other) : resolve(other, phone, watch);
+      assertEquals(3, result.length());
+      assertRecord(result.getJSONObject(0), WATCH, 0, 5, 50);
+      assertRecord(result.getJSONObject(1), PHONE, 5, 10, 50);
+      // apps not listed come last
+      assertRecord(result.getJSONObject(2), OTHER, 10, 20, 100);
+    }
+
+    // same rank and start, the first added wins
+    JSONArray result = resolve(steps(PHONE, 0, 10, 100), steps(PHONE, 0, 20, 200));
+    assertEquals(2, result.length());
+    assertRecord(result.getJSONObject(0), PHONE, 0, 10, 100);
+    assertRecord(result.getJSONObject(1), PHONE, 10, 20, 100);
+  }
+
+  @Test
+  public void limitAndOrder() throws JSONException {
+    OverlapResolver resolver = new OverlapResolver(Arrays.asList(WATCH, PHONE));
+    resolver.add(steps(PHONE, 0, 30, 300));
+    resolver.add(steps(WATCH, 10, 20, 150));
+    JSONArray result = resolver.resolve(FIELDS, false, 2);
+    assertEquals(2, result.length());
+    assertRecord(result.getJSONObject(0), PHONE, 20, 30, 100);
+    assertRecord(result.getJSONObject(1), WATCH, 10, 20, 150);
+  }
+}
@@ -0,0 +1,117 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestSchedulerTest {
+
+  /**
+   * Rates high enough for the buckets not to throttle the calls of the tests
+   */
+  private static RequestScheduler scheduler() {
+    return new RequestScheduler(1000, 100, 1000, 100);
+  }
+
+  @Test
+  public void rateLimitsAreRecognized() {
+    assertTrue(RequestScheduler.isRateLimit(new RateLimitException("Rate limited request quota has been exceeded")));
+    // as thrown by a future or a coroutine wrapping the call
+    assertTrue(RequestScheduler.isRateLimit(new ExecutionException(new RateLimitException("quota"))));
+    assertTrue(RequestScheduler.isRateLimit(new RuntimeException(new IllegalStateException(new RateLimitException("quota")))));
+
+    // the backend translates the exceptions of the client, others are not rate limits whatever their message
+    assertFalse(RequestScheduler.isRateLimit(new IllegalStateException("Rate limited request quota has been exceeded")));
+    assertFalse(RequestScheduler.isRateLimit(new SecurityException("Caller doesn't have permission")));
+    assertFalse(RequestScheduler.isRateLimit(new IllegalStateException()));
+  }
+
+  @Test
+  public void rateLimitedCallsAreRetriedAfterABackoff() throws InterruptedException {
+    RequestScheduler scheduler = scheduler();
+    AtomicInteger attempts = new AtomicInteger();
+    long start = System.nanoTime();
+    String result = scheduler.execute(RequestScheduler.Kind.READ, RequestScheduler.Lane.INTERACTIVE, () -> {
+      if (attempts.incrementAndGet() <= 2) throw new RateLimitException("quota");
+      return "done";
+    });
+    long elapsed = System.nanoTime() - start;
+    assertEquals("done", result);
+    assertEquals(3, attempts.get());
+    assertEquals(2, scheduler.rateLimited.sum());
+    // the backoffs have a jitter, at least half of 200 ms then half of 400 ms
+    long minBackoff = TimeUnit.MILLISECONDS.toNanos(RequestScheduler.BASE_BACKOFF_MS / 2 + RequestScheduler.BASE_BACKOFF_MS);
+    assertTrue("retried after " + elapsed / 1e6 + " ms", elapsed >= minBackoff);
+    assertTrue(scheduler.throttledNanos.sum() >= minBackoff);
+  }
+
+  @Test
+  public void retriesAreLimited() throws InterruptedException {
+    RequestScheduler scheduler = scheduler();
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      scheduler.execute(RequestScheduler.Kind.WRITE, RequestScheduler.Lane.BULK, () -> {
+        attempts.incrementAndGet();
+        throw new RateLimitException("quota");
+      });
+      fail("rate limit not reported");
+    } catch (RateLimitException expected) {
+      // the call is given up
+    }
+    assertEquals(RequestScheduler.MAX_RETRIES + 1, attempts.get());
+    assertEquals(RequestScheduler.MAX_RETRIES, scheduler.rateLimited.sum());
+  }
+
+  @Test
+  public void otherErrorsAreNotRetried() throws InterruptedException {
+    RequestScheduler scheduler = scheduler();
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      scheduler.execute(RequestScheduler.Kind.READ, RequestScheduler.Lane.INTERACTIVE, () -> {
+        attempts.incrementAndGet();
+        throw new IllegalStateException("Rate limited request quota has been exceeded");
+      });
+      fail("error not reported");
+    } catch (IllegalStateException expected) {
+      assertEquals(1, attempts.get());
+    }
+    assertEquals(0, scheduler.rateLimited.sum());
+  }
+
+  @Test
+  public void rateLimitsPauseOtherCalls() throws Exception {
+    RequestScheduler scheduler = scheduler();
+    AtomicLong limitedAt = new AtomicLong();
+    Thread limited = new Thread(() -> {
+      try {
+        AtomicInteger attempts = new AtomicInteger();
+        scheduler.execute(RequestScheduler.Kind.READ, RequestScheduler.Lane.INTERACTIVE, () -> {
+          if (attempts.incrementAndGet() > 1) return null;
+          limitedAt.set(System.nanoTime());
+          throw new RateLimitException("quota");
+        });
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    limited.start();
+    while (scheduler.rateLimited.sum() == 0) {
+      Thread.sleep(1);
+    }
+    // leaves time for the pause to be set
+    Thread.sleep(10);
+    // the quota is per app, an unrelated call waits too
+    scheduler.execute(RequestScheduler.Kind.READ, RequestScheduler.Lane.INTERACTIVE, () -> null);
+    long waited = System.nanoTime() - limitedAt.get();
+    assertTrue("waited " + waited / 1e6 + " ms", waited >= TimeUnit.MILLISECONDS.toNanos(RequestScheduler.BASE_BACKOFF_MS / 2));
+    limited.join();
+  }
+}
@@ -0,0 +1,195 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SeriesStoreTest {
+
+  private static final long DAY = 19_700;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * @return one sample per hour of the day, valued day * 100 + hour
+   */
+  private static SeriesStore.Samples day(long epochDay) {
+    SeriesStore.Samples samples = new SeriesStore.Samples();
+    for (int hour = 0; hour < 24; hour++) {
+      samples.add(epochDay * SeriesStore.DAY_MS + hour * 3_600_000L, 60_000, epochDay * 100 + hour);
+    }
+    return samples;
+  }
+
+  private static void writeDay(SeriesStore store, long epochDay) throws IOException {
+    SeriesStore.Samples samples = day(epochDay);
+    assertTrue(store.writeDay(epochDay, samples, 0, samples.size(), "count", store.getChangesToken()));
+  }
+
+  private static List<Double> scan(SeriesStore store, long fromDay, long toDay) throws IOException {
+    List<Double> values = new ArrayList<>();
+    long count = store.scan(fromDay, toDay, (time, duration, value) -> values.add(value));
+    assertEquals(values.size(), count);
+    return values;
+  }
+
+  private SeriesStore newStore() throws IOException {
+    SeriesStore store = new SeriesStore(folder.getRoot(), "steps");
+    store.setChangesToken("token");
+    return store;
+  }
+
+  private SeriesStore reopen() {
+    return new SeriesStore(folder.getRoot(), "steps");
+  }
+
+  @Test
+  public void daysAreReadBackAfterReopening() throws IOException {
+    SeriesStore store = newStore();
+    for (long d = DAY; d < DAY + 5; d++) {
+      writeDay(store, d);
+    }
+    SeriesStore reopened = reopen();
+    assertEquals("count", reopened.getUnit());
+    assertEquals("token", reopened.getChangesToken());
+    List<Double> values = scan(reopened, DAY + 1, DAY + 2);
+    assertEquals(48, values.size());
+    assertEquals((DAY + 1) * 100, values.get(0), 0);
+    assertEquals((DAY + 2) * 100 + 23, values.get(47), 0);
+  }
+
+  @Test
+  public void daysAreNotWrittenWithAnOutdatedToken() throws IOException {
+    SeriesStore store = newStore();
+    SeriesStore.Samples samples = day(DAY);
+    assertFalse(store.writeDay(DAY, samples, 0, samples.size(), "count", "older"));
+    assertFalse(store.writeDay(DAY, samples, 0, samples.size(), "count", null));
+    assertFalse(store.hasDay(DAY));
+  }
+
+  @Test
+  public void latestBlockOfADayWins() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    SeriesStore.Samples samples = new SeriesStore.Samples();
+    samples.add(DAY * SeriesStore.DAY_MS, 0, 42);
+    assertTrue(store.writeDay(DAY, samples, 0, 1, "count", "token"));
+    assertEquals(1, scan(store, DAY, DAY).size());
+    assertEquals(42, scan(reopen(), DAY, DAY).get(0), 0);
+  }
+
+  @Test
+  public void droppedDaysStayDroppedOnReplay() throws IOException {
+    SeriesStore store = newStore();
+    for (long d = DAY; d < DAY + 5; d++) {
+      writeDay(store, d);
+    }
+    store.dropDays(DAY + 1, DAY + 2);
+    // dropped then written again, then dropped again: the last entry of the index wins
+    writeDay(store, DAY + 3);
+    store.dropDays(DAY + 3, DAY + 3);
+    writeDay(store, DAY + 1);
+
+    for (SeriesStore s : new SeriesStore[]{store, reopen()}) {
+      assertTrue(s.hasDay(DAY));
+      assertTrue(s.hasDay(DAY + 1));
+      assertFalse(s.hasDay(DAY + 2));
+      assertFalse(s.hasDay(DAY + 3));
+      assertTrue(s.hasDay(DAY + 4));
+      assertEquals(72, scan(s, DAY, DAY + 4).size());
+    }
+  }
+
+  @Test
+  public void allDaysDroppedThenWritten() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    store.dropDays(DAY, DAY);
+    // the index is empty, it is started again
+    writeDay(store, DAY + 1);
+    SeriesStore reopened = reopen();
+    assertFalse(reopened.hasDay(DAY));
+    assertEquals(24, scan(reopened, DAY, DAY + 1).size());
+  }
+
+  @Test
+  public void blocksBeyondATruncatedDataFileAreIgnored() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    writeDay(store, DAY + 1);
+    File data = new File(folder.getRoot(), "steps.dat");
+    try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+      file.setLength(file.length() - 1);
+    }
+    SeriesStore reopened = reopen();
+    assertTrue(reopened.hasDay(DAY));
+    assertFalse(reopened.hasDay(DAY + 1));
+    assertEquals(24, scan(reopened, DAY, DAY + 1).size());
+  }
+
+  @Test
+  public void indexEntryCutByACrashIsIgnored() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    writeDay(store, DAY + 1);
+    File index = new File(folder.getRoot(), "steps.idx");
+    try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+      file.setLength(file.length() - 5);
+    }
+    SeriesStore reopened = reopen();
+    assertTrue(reopened.hasDay(DAY));
+    assertFalse(reopened.hasDay(DAY + 1));
+    assertEquals(24, scan(reopened, DAY, DAY + 1).size());
+
+    // entries written next replace the cut one instead of following it
+    writeDay(reopened, DAY + 1);
+    reopened.dropDays(DAY, DAY);
+    writeDay(reopened, DAY + 2);
+    SeriesStore replayed = reopen();
+    assertFalse(replayed.hasDay(DAY));
+    assertTrue(replayed.hasDay(DAY + 1));
+    assertTrue(replayed.hasDay(DAY + 2));
+    assertEquals(48, scan(replayed, DAY, DAY + 2).size());
+  }
+
+  @Test
+  public void dataFileTruncatedAfterLoadingFailsTheScan() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    assertTrue(store.hasDay(DAY));
+    try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "steps.dat"), "rw")) {
+      file.setLength(file.length() - 1);
+    }
+    try {
+      scan(store, DAY, DAY);
+      fail("truncated block decoded");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().startsWith("Truncated block"));
+    }
+  }
+
+  @Test
+  public void deleteRemovesEverything() throws IOException {
+    SeriesStore store = newStore();
+    writeDay(store, DAY);
+    store.delete();
+    assertFalse(store.hasDay(DAY));
+    SeriesStore reopened = reopen();
+    assertFalse(reopened.hasDay(DAY));
+    assertNull(reopened.getUnit());
+    assertNull(reopened.getChangesToken());
+  }
+}
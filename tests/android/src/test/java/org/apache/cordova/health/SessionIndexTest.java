@@ -0,0 +1,129 @@
+package org.apache.cordova.health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.health.connect.client.records.SleepSessionRecord;
+import androidx.health.connect.client.records.metadata.DataOrigin;
+import androidx.health.connect.client.records.metadata.Metadata;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class SessionIndexTest {
+
+  private static final String[] SOURCES = {"com.example.watch", "com.example.phone", "com.example.ring"};
+
+  private static final Set<String> SLEEP = Collections.singleton("sleep");
+
+  private static SleepSessionRecord sleep(String id, long start, long end, String source) {
+    return new SleepSessionRecord(Instant.ofEpochMilli(start), null, Instant.ofEpochMilli(end), null, null, null,
+      Collections.emptyList(), new Metadata(id, new DataOrigin(source), Instant.EPOCH, null, 0, null, 0));
+  }
+
+  /**
+   * Checks a query against a scan of all the sessions
+   */
+  private static void assertOverlaps(SessionIndex index, Map<String, SleepSessionRecord> sessions, long start, long end,
+                                     Set<String> dataTypes, Set<String> sources) {
+    Set<String> expected = new HashSet<>();
+    for (SleepSessionRecord s : sessions.values()) {
+      if (s.getEndTime().toEpochMilli() > start && s.getStartTime().toEpochMilli() < end && dataTypes.contains("sleep")
+        && (sources.isEmpty() || sources.contains(s.getMetadata().getDataOrigin().getPackageName()))) {
+        expected.add(s.getMetadata().getId());
+      }
+    }
+    List<SessionIndex.Entry> found = index.overlaps(start, end, dataTypes, sources);
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < found.size(); i++) {
+      SessionIndex.Entry e = found.get(i);
+      assertTrue("found twice: " + e.id, ids.add(e.id));
+      assertTrue("not sorted by start", i == 0 || found.get(i - 1).start <= e.start);
+      SleepSessionRecord s = sessions.get(e.id);
+      assertEquals(s.getStartTime().toEpochMilli(), e.start);
+      assertEquals(s.getEndTime().toEpochMilli(), e.end);
+      assertEquals(s.getMetadata().getDataOrigin().getPackageName(), e.source);
+    }
+    assertEquals("[" + start + ", " + end + ")", expected, ids);
+  }
+
+  @Test
+  public void emptyIndex() {
+    SessionIndex index = new SessionIndex();
+    assertTrue(index.overlaps(0, Long.MAX_VALUE, SLEEP, Collections.emptySet()).isEmpty());
+  }
+
+  @Test
+  public void boundsAreExcluded() {
+    SessionIndex index = new SessionIndex();
+    index.put(sleep("a", 100, 200, SOURCES[0]));
+    assertTrue(index.overlaps(0, 100, SLEEP, Collections.emptySet()).isEmpty());
+    assertTrue(index.overlaps(200, 300, SLEEP, Collections.emptySet()).isEmpty());
+    assertEquals(1, index.overlaps(199, 300, SLEEP, Collections.emptySet()).size());
+    assertEquals(1, index.overlaps(0, 101, SLEEP, Collections.emptySet()).size());
+    assertEquals(1, index.overlaps(150, 151, SLEEP, Collections.emptySet()).size());
+    assertTrue(index.overlaps(0, 300, Collections.singleton("activity"), Collections.emptySet()).isEmpty());
+  }
+
+  @Test
+  public void randomSessionsMatchAScan() {
+    Random rnd = new Random(42);
+    SessionIndex index = new SessionIndex();
+    Map<String, SleepSessionRecord> sessions = new HashMap<>();
+    List<String> ids = new ArrayList<>();
+    for (int round = 0; round < 50; round++) {
+      // add, replace and remove sessions between the queries, so that the tree is rebuilt
+      for (int i = 0; i < 200; i++) {
+        int op = rnd.nextInt(10);
+        if (op < 2 && !ids.isEmpty()) {
+          String id = ids.remove(rnd.nextInt(ids.size()));
+          sessions.remove(id);
+          index.remove(id);
+          continue;
+        }
+        String id = op < 4 && !ids.isEmpty() ? ids.get(rnd.nextInt(ids.size())) : "s" + round + "-" + i;
+        if (!sessions.containsKey(id)) ids.add(id);
+        long start = rnd.nextInt(100_000);
+        // mostly short sessions, a few very long ones that span many others
+        long length = 1 + (rnd.nextInt(20) == 0 ? rnd.nextInt(50_000) : rnd.nextInt(500));
+        SleepSessionRecord session = sleep(id, start, start + length, SOURCES[rnd.nextInt(SOURCES.length)]);
+        sessions.put(id, session);
+        index.put(session);
+      }
+      assertEquals(sessions.size(), index.size());
+      for (int q = 0; q < 100; q++) {
+        long start = rnd.nextInt(110_000) - 5_000;
+        long end = start + 1 + rnd.nextInt(rnd.nextBoolean() ? 1_000 : 50_000);
+        Set<String> sources = new HashSet<>();
+        for (String source : SOURCES) {
+          if (rnd.nextInt(3) == 0) sources.add(source);
+        }
+        assertOverlaps(index, sessions, start, end, SLEEP, sources);
+      }
+      assertOverlaps(index, sessions, Long.MIN_VALUE, Long.MAX_VALUE, SLEEP, Collections.emptySet());
+      assertOverlaps(index, sessions, 0, 100_000, Collections.singleton("activity"), Collections.emptySet());
+    }
+  }
+
+  @Test
+  public void clearDropsEverything() {
+    SessionIndex index = new SessionIndex();
+    index.put(sleep("a", 100, 200, SOURCES[0]));
+    index.setChangesToken("token");
+    assertTrue(index.isLoaded());
+    index.clear();
+    assertFalse(index.isLoaded());
+    assertEquals(0, index.size());
+    assertTrue(index.overlaps(0, 300, SLEEP, Collections.emptySet()).isEmpty());
+  }
+}
@@ -1,5 +1,174 @@
 var exec = require("cordova/exec");
 
+// when additional information is requested (e.g. a profile) the native side
+// wraps the data in an object, here the additional properties are moved onto the data
+var unwrapResult = function (res) {
+  if (res && !Array.isArray(res) && res.data !== undefined) {
+    var data = res.data
+    for (var key in res) {
+      if (key !== 'data') data[key] = res[key]
+    }
+    return data
+  }
+  return res
+}
+
+// handles identify running requests, so that they can be cancelled
+var lastHandle = 0
+// returns a copy of the options with a handle, the caller's object is left as is so that it can be reused
+var withHandle = function (opts) {
+  var copy = Object.assign({}, opts)
+  if (!copy.handle) copy.handle = 'h' + (++lastHandle)
+  return copy
+}
+// results of queries being completed in JS (e.g. with calories), by handle, true once cancelled
+var processing = {}
+
+// processes the result of overlaps() and at(): dates are converted
+var sessionsResult = function (res) {
+  var data = unwrapResult(res)
+  for (var i = 0; i < data.length; i++) {
+    data[i].startDate = new Date(data[i].startDate)
+    data[i].endDate = new Date(data[i].endDate)
+  }
+  return data
+}
+
+// processes the result of query() and queryNext(): dates are converted
+// and activities are enriched with calories and distance if requested
+var queryResultHandler = function (queryOpts, opts, onSuccess, onError) {
+  var handle = opts.handle
+  // the deadline also applies to the additional queries done here
+  var deadline = opts.timeoutMs ? Date.now() + opts.timeoutMs : 0
+  var expired = () => deadline && Date.now() >= deadline
+  var finish = (callback, arg) => {
+    delete processing[handle]
+    callback(arg)
+  }
+  return (res) => {
+    var data = unwrapResult(res)
+    processing[handle] = false
+    // remember the query, so that queryNext() can process its results in the same way
+    if (data.cursor) rememberCursor(data.cursor, queryOpts)
+    // here we use a recursive function instead of a simple loop
+    // this is to deal with additional queries required for the special case
+    // of activity with calories and/or distance
+    var finalizeResult = (i) => {
+      if (processing[handle]) {
+        // cancelled while fetching calories or distance
+        finish(onError, 'Request cancelled')
+      } else if (i >= data.length) {
+        // completed, return results
+        finish(onSuccess, data);
+      } else if (queryOpts.dataType == 'activity' && (queryOpts.includeCalories || queryOpts.includeDistance) && expired()) {
+        // out of time: the remaining activities are returned without calories or distance
+        for (var j = i; j < data.length; j++) {
+          if (data[j].startDate) data[j].startDate = new Date(data[j].startDate)
+          if (data[j].endDate) data[j].endDate = new Date(data[j].endDate)
+        }
+        data.partial = true
+        finish(onSuccess, data)
+      } else {
+        // iterate
+        // convert timestamps to date
+        if (data[i].startDate) data[i].startDate = new Date(data[i].startDate)
+        if (data[i].endDate) data[i].endDate = new Date(data[i].endDate)
+
+        if (queryOpts.dataType == 'activity' && (queryOpts.includeCalories || queryOpts.includeDistance)) {
+          // we need to also fetch calories and/or distance
+
+          // helper function to get aggregated calories for that activity
+          var getCals = (onDone) => {
+            module.exports.queryAggregated({
+              startDate: data[i].startDate,
+              endDate: data[i].endDate,
+              dataType: 'calories.active',
+              sources: queryOpts.sources,
+              timeoutMs: deadline ? Math.max(1, deadline - Date.now()) : undefined
+            }, (cals) => {
+              data[i].calories = cals.value
+              onDone()
+            }, (err) => {
+              // timed out, the deadline check above returns what is available
+              if (expired()) finalizeResult(i)
+              else finish(onError, err)
+            })
+          }
+          // helper function to get aggregated distance for that activity
+          var getDist = (onDone) => {
+            module.exports.queryAggregated({
+              startDate: data[i].startDate,
+              endDate: data[i].endDate,
+              dataType: 'distance',
+              sources: queryOpts.sources,
+              timeoutMs: deadline ? Math.max(1, deadline - Date.now()) : undefined
+            }, (dist) => {
+              data[i].distance = dist.value
+              onDone()
+            }, (err) => {
+              // timed out, the deadline check above returns what is available
+              if (expired()) finalizeResult(i)
+              else finish(onError, err)
+            })
+          }
+
+          if (queryOpts.includeCalories) {
+            // calories are needed, fetch them
+            getCals(() => {
+              // now get the distance, if needed
+              if (queryOpts.includeDistance) {
+                getDist(() => {
+                  finalizeResult(i + 1)
+                })
+              } else {
+                // no distance needed, move on
+                finalizeResult(i + 1)
+              }
+            })
+          } else {
+            // distance only is needed
+            getDist(() => {
+              finalizeResult(i + 1)
+            })
+          }
+        } else {
+          finalizeResult(i + 1)
+        }
+      }
+    }
+    finalizeResult(0);
+  }
+}
+
+// queries that can be continued, by cursor, no more than the native side keeps
+var cursorQueries = {}
+var MAX_CURSORS = 64
+var rememberCursor = function (cursor, queryOpts) {
+  // the most recently used cursors come last, the oldest ones are dropped as on the native side
+  delete cursorQueries[cursor]
+  cursorQueries[cursor] = queryOpts
+  var cursors = Object.keys(cursorQueries)
+  for (var i = 0; i < cursors.length - MAX_CURSORS; i++) {
+    delete cursorQueries[cursors[i]]
+  }
+}
+
+// processes the pages of a streamed query(): when the page has been handled,
+// also asynchronously if onPage returns a promise, credit for one more page is given
+var streamResultHandler = function (opts, onPage) {
+  return (res) => {
+    var data = unwrapResult(res)
+    for (var i = 0; i < data.length; i++) {
+      if (data[i].startDate) data[i].startDate = new Date(data[i].startDate)
+      if (data[i].endDate) data[i].endDate = new Date(data[i].endDate)
+    }
+    var handled = onPage(data)
+    if (data.done) return
+    var grant = () => module.exports.grantCredit(opts.handle, 1)
+    if (handled && typeof handled.then == 'function') handled.then(grant, grant)
+    else grant()
+  }
+}
 
 module.exports = {
 
@@ -30,78 +199,40 @@ module.exports = {
       opts.startDate = opts.startDate.getTime()
     if (opts.endDate && (typeof opts.endDate == 'object'))
       opts.endDate = opts.endDate.getTime();
-    exec((data) => {
-      // here we use a recursive function instead of a simple loop
-      // this is to deal with additional queries required for the special case
-      // of activity with calories and/or distance
-      finalizeResult = (i) => {
-        if (i >= data.length) {
-          // completed, return results
-          onSuccess(data);
-        } else {
-          // iterate
-          // convert timestamps to date
-          if (data[i].startDate) data[i].startDate = new Date(data[i].startDate)
-          if (data[i].endDate) data[i].endDate = new Date(data[i].endDate)
-
-          if (opts.dataType == 'activity' && (opts.includeCalories || opts.includeDistance)) {
-            // we need to also fetch calories and/or distance
-
-            // helper function to get aggregated calories for that activity
-            getCals = (onDone) => {
-              this.queryAggregated({
-                startDate: data[i].startDate,
-                endDate: data[i].endDate,
-                dataType: 'calories.active'
-              }, (cals) => {
-                data[i].calories = cals.value
-                onDone()
-              }, onError)
-            }
-            // helper function to get aggregated distance for that activity
-            getDist = (onDone) => {
-              this.queryAggregated({
-                startDate: data[i].startDate,
-                endDate: data[i].endDate,
-                dataType: 'distance'
-              }, (dist) => {
-                data[i].distance = dist.value
-                onDone()
-              }, onError)
-            }
-
-            if (opts.includeCalories) {
-              // calories are needed, fetch them
-              getCals(() => {
-                // now get the distance, if needed
-                if (opts.includeDistance) {
-                  getDist(() => {
-                    finalizeResult(i + 1)
-                  })
-                } else {
-                  // no distance needed, move on
-                  finalizeResult(i + 1)
-                }
-              })
-            } else {
-              // distance only is needed
-              getDist(() => {
-                finalizeResult(i + 1)
-              })
-            }
-          } else {
-            finalizeResult(i + 1)
-          }
-        }
-      }
-      finalizeResult(0);
-    }, onError, "health", "query", [opts])
+    opts = withHandle(opts)
+    var handler = opts.stream ? streamResultHandler(opts, onSuccess) : queryResultHandler(opts, opts, onSuccess, onError)
+    exec(handler, onError, "health", "query", [opts])
+    return opts.handle
+  },
+
+  grantCredit (handle, pages, onSuccess, onError) {
+    exec(onSuccess, onError, "health", "grantCredit", [handle, pages])
+  },
+
+  queryNext (opts, onSuccess, onError) {
+    if (typeof opts == 'string') opts = { cursor: opts }
+    var queryOpts = cursorQueries[opts.cursor] || {}
+    delete cursorQueries[opts.cursor]
+    opts = withHandle(opts)
+    exec(queryResultHandler(queryOpts, opts, onSuccess, onError), (err) => {
+      // unless the native cursor is gone, the same records can be requested again
+      if (typeof err != 'string' || err.indexOf('expired or unknown') < 0) rememberCursor(opts.cursor, queryOpts)
+      onError(err)
+    }, "health", "queryNext", [opts])
+    return opts.handle
+  },
+
+  closeCursor (cursor, onSuccess, onError) {
+    delete cursorQueries[cursor]
+    exec(onSuccess, onError, "health", "closeCursor", [cursor])
   },
 
   queryAggregated (opts, onSuccess, onError) {
     if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
     if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
-    exec((data) => {
+    opts = withHandle(opts)
+    exec((res) => {
+      var data = unwrapResult(res)
       //reconvert the dates back to Date objects
       if (Object.prototype.toString.call(data) === '[object Array]') {
         //it's an array, iterate through each item
@@ -116,22 +247,145 @@ module.exports = {
 
       onSuccess(data)
     }, onError, 'health', 'queryAggregated', [opts])
+    return opts.handle
+  },
+
+  stats (opts, onSuccess, onError) {
+    if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
+    if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      var data = unwrapResult(res)
+      var buckets = Array.isArray(data) ? data : [data]
+      for (var i = 0; i < buckets.length; i++) {
+        buckets[i].startDate = new Date(buckets[i].startDate)
+        buckets[i].endDate = new Date(buckets[i].endDate)
+      }
+      onSuccess(data)
+    }, onError, 'health', 'stats', [opts])
+    return opts.handle
+  },
+
+  analyzeSessions (opts, onSuccess, onError) {
+    if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
+    if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      var data = unwrapResult(res)
+      for (var i = 0; i < data.length; i++) {
+        data[i].startDate = new Date(data[i].startDate)
+        data[i].endDate = new Date(data[i].endDate)
+      }
+      onSuccess(data)
+    }, onError, 'health', 'analyzeSessions', [opts])
+    return opts.handle
+  },
+
+  coverage (opts, onSuccess, onError) {
+    if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
+    if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      var data = unwrapResult(res)
+      var maps = Array.isArray(data) ? data : [data]
+      var toDates = (runs) => runs.map((run) => ({ startDate: new Date(run[0]), endDate: new Date(run[1]) }))
+      for (var i = 0; i < maps.length; i++) {
+        maps[i].covered = toDates(maps[i].covered)
+        maps[i].gaps = toDates(maps[i].gaps)
+      }
+      onSuccess(data)
+    }, onError, 'health', 'coverage', [opts])
+    return opts.handle
+  },
+
+  overlaps (opts, onSuccess, onError) {
+    if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
+    if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      onSuccess(sessionsResult(res))
+    }, onError, 'health', 'overlaps', [opts])
+    return opts.handle
+  },
+
+  at (opts, onSuccess, onError) {
+    if (typeof opts.date == 'object') opts.date = opts.date.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      onSuccess(sessionsResult(res))
+    }, onError, 'health', 'at', [opts])
+    return opts.handle
+  },
+
+  exportToFile (opts, onSuccess, onError) {
+    if (typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime()
+    if (typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime()
+    opts = withHandle(opts)
+    exec((res) => {
+      onSuccess(unwrapResult(res))
+    }, onError, 'health', 'exportToFile', [opts])
+    return opts.handle
+  },
+
+  importFromFile (opts, onSuccess, onError, onProgress) {
+    opts = withHandle(opts)
+    exec((res) => {
+      var data = unwrapResult(res)
+      if (data.done === undefined) {
+        // progress after each batch, the result follows
+        if (onProgress) onProgress(data)
+        return
+      }
+      onSuccess(data)
+    }, onError, 'health', 'importFromFile', [opts])
+    return opts.handle
   },
 
   store (data, onSuccess, onError) {
-    if (data.startDate && (typeof data.startDate == 'object'))
-      data.startDate = data.startDate.getTime()
-    if (data.endDate && (typeof data.endDate == 'object'))
-      data.endDate = data.endDate.getTime()
+    // an array of data points is stored in batch
+    var items = Array.isArray(data) ? data : [data]
+    for (var i = 0; i < items.length; i++) {
+      if (items[i].startDate && (typeof items[i].startDate == 'object'))
+        items[i].startDate = items[i].startDate.getTime()
+      if (items[i].endDate && (typeof items[i].endDate == 'object'))
+        items[i].endDate = items[i].endDate.getTime()
+    }
 
     exec(onSuccess, onError, "health", "store", [data])
   },
 
   delete (data, onSuccess, onError) {
-    if (data.startDate && (typeof data.startDate == 'object'))
-      data.startDate = data.startDate.getTime()
-    if (data.endDate && (typeof data.endDate == 'object'))
-      data.endDate = data.endDate.getTime()
-    exec(onSuccess, onError, "health", "delete", [data]);
+    // an array of items is deleted in bulk
+    if (Array.isArray(data)) data = { items: data }
+    var items = data.items || [data]
+    for (var i = 0; i < items.length; i++) {
+      if (items[i].startDate && (typeof items[i].startDate == 'object'))
+        items[i].startDate = items[i].startDate.getTime()
+      if (items[i].endDate && (typeof items[i].endDate == 'object'))
+        items[i].endDate = items[i].endDate.getTime()
+    }
+    data = withHandle(data)
+    exec((res) => {
+      onSuccess(unwrapResult(res))
+    }, onError, "health", "delete", [data]);
+    return data.handle
+  },
+
+  cancel (handle, onSuccess, onError) {
+    // results still being completed in JS are dropped, a request that is over is left alone
+    var inJS = processing[handle] !== undefined
+    if (inJS) processing[handle] = true
+    exec((res) => {
+      // res is true if the native request was still running and has been stopped
+      if (onSuccess) onSuccess(res || inJS)
+    }, onError, "health", "cancel", [handle])
+  },
+
+  getMetrics (opts, onSuccess, onError) {
+    exec(onSuccess, onError, "health", "getMetrics", [opts || {}])
+  },
+
+  stopMetricsPush (onSuccess, onError) {
+    exec(onSuccess, onError, "health", "stopMetricsPush", [])
   }
 }